@@ -117,7 +117,9 @@ pub fn createJavaWorker(package_name:String, classpath:String, libpath:String) -
         let env = vm.attach_current_thread().unwrap();
 
         // do all the init work
-        native_types::register(env.clone());
+        if let Err(e) = native_types::register(env.clone()){
+            eprintln!("some natives are not registered, calling them throws UnsatisfiedLinkError: {}", e);
+        }
 
         loop{
             let next = reciever.recv().unwrap();
@@ -75,48 +75,64 @@ pub fn finalize(env:JNIEnv, proxy:JObject){
     }
 }
 
+/*
+    the other VM cannot see java objects of this one, so the request is copied
+    out of the data parcel's buffer and read in place there, and the reply is
+    copied back the same way.
+*/
 #[no_mangle]
 pub fn transact(env:JNIEnv, proxy:JObject, 
     code:jint, data:JObject, reply:JObject, flags:jint
 ) -> jboolean{
     if let Ok(p) = env.get_rust_field::<_,_,Arc<BinderProxy>>(proxy, "mNativePtr"){
-        if let Ok(data ) = Parcel::fromParcelObject(env, data){
-            if let Ok(reply) = Parcel::fromParcelObject(env, reply){
-
-                let globref = p.thatObject.clone();
-
-                let re = p.thatVm.run(move |that_env|{
-
-                    let obj = globref.as_obj();
-                    let data1 = that_env.new_object(
-                        "android/os/Parcel", "(J;)V", &[JValue::Long(0)]).unwrap();
-                    let reply1 = that_env.new_object(
-                        "android/os/Parcel", "(J;)V", &[JValue::Long(0)]).unwrap();
-                    
-                    that_env.set_rust_field(data1, "mNativePtr", data.clone());
-                    that_env.set_rust_field(reply1, "mNativePtr", reply.clone());
-
-                    let re = that_env.call_method(obj, "onTransact", "(I;Landroid/os/Parcel;Landroid/os/Parcel;I;)Z", &[
-                        JValue::Int(code),
-                        JValue::Object(data1),
-                        JValue::Object(reply1),
-                        JValue::Int(flags)
-                    ]);
-                    if let Ok(v) = re{
-                        if let JValue::Bool(b) = v{
-                            return b != 0;
-                        } else{
-                            return false;
-                        }
-                    } else {
-                        return false;
-                    }
-                });
+        let data = match Parcel::fromParcelObject(env, data){
+            Ok(d) => Arc::new(d),
+            Err(e) => {
+                let _ = env.throw(("java/lang/IllegalArgumentException", e));
+                return 0;
+            }
+        };
+
+        let globref = p.thatObject.clone();
+
+        let re = p.thatVm.run(move |that_env|{
 
-                if let Some(v) = re{
-                    return v as jboolean;
+            let obj = globref.as_obj();
+            let data1 = unsafe{Parcel::TemporaryParcel(that_env, &data)}.ok()?;
+            let reply1 = that_env.call_static_method(
+                "android/os/Parcel", "obtain", "()Landroid/os/Parcel;", &[]).and_then(|v| v.l()).ok()?;
+
+            let re = that_env.call_method(obj, "onTransact", "(ILandroid/os/Parcel;Landroid/os/Parcel;I)Z", &[
+                JValue::Int(code),
+                JValue::Object(data1),
+                JValue::Object(reply1),
+                JValue::Int(flags)
+            ]);
+            let ok = match re{
+                Ok(JValue::Bool(b)) => b != 0,
+                _ => false
+            };
+
+            // the data parcel reads our copy in place, it must let go of it before we return
+            let _ = that_env.call_method(data1, "recycle", "()V", &[]);
+            let replyData = Parcel::fromParcelObject(that_env, reply1);
+            let _ = that_env.call_method(reply1, "recycle", "()V", &[]);
+            Some((ok, replyData))
+        });
+
+        if let Some(Some((ok, replyData))) = re{
+            match replyData{
+                Ok(r) => {
+                    if r.appendToParcelObject(env, reply).is_ok(){
+                        let _ = env.call_method(reply, "setDataPosition", "(I)V", &[JValue::Int(0)]);
+                    }
+                },
+                Err(e) => {
+                    let _ = env.throw(("java/lang/IllegalArgumentException", e));
+                    return 0;
                 }
             }
+            return ok as jboolean;
         }
     }
     return 0;
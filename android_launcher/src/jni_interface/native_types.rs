@@ -4,14 +4,40 @@ use jni::JNIEnv;
 use jni::errors::Error;
 
 
+/*
+    registers the natives of every class. a class that fails to register does not
+    stop the others: its failure is reported and the first one is returned.
+*/
 pub fn register(env:JNIEnv) -> Result<(), Error>{
-    SharedMemory::register(env)?;
-    StatFs::register(env)?;
-    Trace::register(env)?;
-    Clipboard::register(env)?;
-    RestrictionManager::register(env)?;
-    CursorWindow::register(env)?;
-    SQLiteConnection::register(env)?;
+    let modules:[(&str, fn(JNIEnv) -> Result<(), Error>); 8] = [
+        ("android.os.SharedMemory", SharedMemory::register),
+        ("android.os.StatFs", StatFs::register),
+        ("android.os.Trace", Trace::register),
+        ("android.content.ClipboardManager", Clipboard::register),
+        ("android.content.RestrictionManager", RestrictionManager::register),
+        ("android.database.CursorWindow", CursorWindow::register),
+        ("android.database.sqlite.SQLiteConnection", SQLiteConnection::register),
+        ("Fuse.FuseSession", FuseSession::register),
+    ];
+
+    let mut first = None;
+    for (name, register) in modules{
+        if let Err(e) = register(env){
+            // RegisterNatives leaves a NoSuchMethodError or NoClassDefFoundError pending
+            if env.exception_check().unwrap_or(false){
+                let _ = env.exception_describe();
+                let _ = env.exception_clear();
+            }
+            eprintln!("failed to register the natives of {}: {}", name, e);
+            if first.is_none(){
+                first = Some(e);
+            }
+        }
+    }
+
+    if let Some(e) = first{
+        return Err(e);
+    }
     return Ok(())
 }
 
@@ -311,9 +337,14 @@ mod Clipboard{
     }
 
     fn setPrimaryClip(env:JNIEnv, class:JClass, clip:JObject){
-        if let Ok(p) = Parcel::fromParcelObject(env, clip){
-            unsafe{PrimaryClip = Some(p.read().clone())};
-            onPrimaryClipChanged();
+        match Parcel::fromParcelObject(env, clip){
+            Ok(p) => {
+                unsafe{PrimaryClip = Some(p)};
+                onPrimaryClipChanged();
+            },
+            Err(e) => {
+                let _ = env.throw(("java/lang/IllegalArgumentException", e));
+            }
         }
     }
 
@@ -811,19 +842,21 @@ pub mod CursorWindow{
 
     #[no_mangle]
     fn CreateFromParcel(env:JNIEnv, obj:JObject, parcel:JObject){
-        if let Ok(parcel) = Parcel::fromParcelObject(env, parcel){
-            if let Ok(c) = parcel.write().readCursorWindow(){
+        if let Ok(mut p) = Parcel::fromParcelObject(env, parcel){
+            if let Ok(c) = p.readCursorWindow(){
                 env.set_rust_field(obj, "mNativePtr", c);
+                p.syncPosition(env, parcel);
             }
         }
     }
 
     #[no_mangle]
     fn WriteToParcel(env:JNIEnv, obj:JObject, parcel:JObject){
-        if let Ok(parcel) = Parcel::fromParcelObject(env, parcel){
-            if let Ok(w) = env.get_rust_field::<_,_,Arc<RwLock<CursorWindow>>>(obj, "mNativePtr"){
-                parcel.write().writeCursorWindow(w.clone())
-            }
+        if let Ok(w) = env.get_rust_field::<_,_,Arc<RwLock<CursorWindow>>>(obj, "mNativePtr"){
+            let mut p = Parcel::new();
+            p.writeCursorWindow(&w);
+            drop(w);
+            p.appendToParcelObject(env, parcel);
         }
     }
 
@@ -1025,8 +1058,112 @@ pub mod CursorWindow{
     }
 
     pub fn register(env:JNIEnv) -> Result<(), jni::errors::Error>{
-        env.register_native_methods("android.database.CursorWindow", &[
-            todo!("register CursorWindow")
+        env.register_native_methods("android/database/CursorWindow", &[
+            jni::NativeMethod{
+                name:"nativeCreate".into(),
+                sig:"(Ljava/lang/String;I)V".into(),
+                fn_ptr:Create as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeCreateFromParcel".into(),
+                sig:"(Landroid/os/Parcel;)V".into(),
+                fn_ptr:CreateFromParcel as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeDispose".into(),
+                sig:"()V".into(),
+                fn_ptr:Dispose as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeWriteToParcel".into(),
+                sig:"(Landroid/os/Parcel;)V".into(),
+                fn_ptr:WriteToParcel as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeGetName".into(),
+                sig:"()Ljava/lang/String;".into(),
+                fn_ptr:GetName as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeGetBlob".into(),
+                sig:"(II)[B".into(),
+                fn_ptr:GetBlob as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeGetString".into(),
+                sig:"(II)Ljava/lang/String;".into(),
+                fn_ptr:GetString as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeCopyStringToBuffer".into(),
+                sig:"(II[C)I".into(),
+                fn_ptr:CopyStringToBuffer as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativePutBlob".into(),
+                sig:"([BII)Z".into(),
+                fn_ptr:PutBlob as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativePutString".into(),
+                sig:"(Ljava/lang/String;II)Z".into(),
+                fn_ptr:PutString as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeClear".into(),
+                sig:"()V".into(),
+                fn_ptr:Clear as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeGetNumRows".into(),
+                sig:"()I".into(),
+                fn_ptr:GetNumRows as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeSetNumColumns".into(),
+                sig:"(I)Z".into(),
+                fn_ptr:SetNumColumns as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeAllocRow".into(),
+                sig:"()Z".into(),
+                fn_ptr:AllowRow as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeFreeLastRow".into(),
+                sig:"()V".into(),
+                fn_ptr:FreeLastRow as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeGetType".into(),
+                sig:"(II)I".into(),
+                fn_ptr:GetType as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeGetLong".into(),
+                sig:"(II)J".into(),
+                fn_ptr:GetLong as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativeGetDouble".into(),
+                sig:"(II)D".into(),
+                fn_ptr:GetDouble as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativePutLong".into(),
+                sig:"(JII)Z".into(),
+                fn_ptr:PutLong as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativePutDouble".into(),
+                sig:"(DII)Z".into(),
+                fn_ptr:PutDouble as *mut libc::c_void
+            },
+            jni::NativeMethod{
+                name:"nativePutNull".into(),
+                sig:"(II)Z".into(),
+                fn_ptr:PutNull as *mut libc::c_void
+            }
         ])
     }
 }
@@ -1061,6 +1198,10 @@ mod SQLiteConnection{
     extern crate libsqlite3_sys;
 
     struct SQLStatment<'a>{
+        // rows being stepped through by Step, borrows inner so it is dropped first
+        rows:Option<Rows<'a>>,
+        // the values of the current row of rows
+        row:Vec<types::Value>,
         inner:Statement<'a>,
         binding:Vec<ToSqlOutput<'a>>
     }
@@ -1244,6 +1385,322 @@ mod SQLiteConnection{
         }
     }
 
+    /// a java SQLiteTypedFunction with the SQLiteFunctionArgs and SQLiteFunctionResult
+    /// it is called with, which are reused for every row. arguments and results cross
+    /// JNI as primitives and are never converted to strings.
+    struct TypedFunction{
+        worker:Arc<VmManager::JavaVmWorker>,
+        function:GlobalRef,
+        args:GlobalRef,
+        result:GlobalRef
+    }
+
+    /// why a call into a SQLiteTypedFunction failed
+    #[derive(Debug)]
+    enum TypedFunctionError{
+        /// the java function threw, with the description of the exception
+        Threw(String),
+        /// the java function set a result of a type SQLiteFunctionResult does not allow
+        ResultType(jint),
+        Jni(jni::errors::Error),
+        /// the worker thread of the VM returned no result
+        NoResult
+    }
+
+    impl std::fmt::Display for TypedFunctionError{
+        fn fmt(&self, f:&mut std::fmt::Formatter<'_>) -> std::fmt::Result{
+            match self{
+                TypedFunctionError::Threw(e) => write!(f, "{}", e),
+                TypedFunctionError::ResultType(t) => write!(f, "invalid result type {}", t),
+                TypedFunctionError::Jni(e) => write!(f, "{}", e),
+                TypedFunctionError::NoResult => write!(f, "the java worker thread returned no result")
+            }
+        }
+    }
+
+    impl std::error::Error for TypedFunctionError{}
+
+    impl From<jni::errors::Error> for TypedFunctionError{
+        fn from(e:jni::errors::Error) -> Self{
+            TypedFunctionError::Jni(e)
+        }
+    }
+
+    impl TypedFunction{
+        /// copies the arguments of a call, to be moved to the worker thread
+        fn values(ctx:&functions::Context) -> Result<Vec<types::Value>>{
+            let mut values = Vec::with_capacity(ctx.len());
+            for i in 0..ctx.len(){
+                values.push(match ctx.get_raw(i){
+                    types::ValueRef::Null => types::Value::Null,
+                    types::ValueRef::Integer(v) => types::Value::Integer(v),
+                    types::ValueRef::Real(v) => types::Value::Real(v),
+                    types::ValueRef::Text(s) => match std::str::from_utf8(s){
+                        Ok(s) => types::Value::Text(s.to_owned()),
+                        Err(_) => return Err(rusqlite::Error::InvalidFunctionParameterType(i, types::Type::Text))
+                    },
+                    types::ValueRef::Blob(b) => types::Value::Blob(b.to_vec())
+                });
+            }
+            Ok(values)
+        }
+
+        /// runs a call into java on the worker thread. it runs in a local frame so
+        /// the references created for each row are freed once it returns.
+        fn call<F, R>(self:&Arc<Self>, task:F) -> Result<R>
+        where F:Fn(JNIEnv, &TypedFunction) -> std::result::Result<R, TypedFunctionError> + 'static + Send + Sync, R:std::any::Any + Send + Sync + 'static{
+            let this = self.clone();
+            let re = self.worker.run(move |env|{
+                let mut value = None;
+                let frame = env.with_local_frame(16, ||{
+                    value = Some(task(env, &this));
+                    Ok(JObject::null())
+                });
+                let value = frame.map_err(TypedFunctionError::from).and_then(|_| value.unwrap());
+
+                // report what the function threw rather than the JNI error
+                if value.is_err() && env.exception_check().unwrap_or(false){
+                    let description = env.exception_occurred().ok().map(|e|{
+                        let _ = env.exception_clear();
+                        env.call_method(e, "toString", "()Ljava/lang/String;", &[])
+                            .and_then(|s| s.l())
+                            .and_then(|s| env.get_string(s.into()).map(String::from))
+                    });
+                    let _ = env.exception_clear();
+                    if let Some(Ok(description)) = description{
+                        return Err(TypedFunctionError::Threw(description));
+                    }
+                }
+                value
+            });
+
+            match re.unwrap_or(Err(TypedFunctionError::NoResult)){
+                Ok(v) => Ok(v),
+                Err(e) => Err(rusqlite::Error::UserFunctionError(Box::new(e)))
+            }
+        }
+
+        /// fills the SQLiteFunctionArgs, each argument going to the array of its type
+        fn fillArgs(&self, env:JNIEnv, values:&[types::Value]) -> jni::errors::Result<()>{
+            let args = self.args.as_obj();
+            env.call_method(args, "reset", "(I)V", &[JValue::Int(values.len() as jint)])?;
+
+            let mut typeCodes = vec![0 as jint; values.len()];
+            let mut longs = vec![0 as jlong; values.len()];
+            let mut doubles = vec![0 as jdouble; values.len()];
+            let mut objects = JObject::null();
+
+            for (i, v) in values.iter().enumerate(){
+                let object:JObject = match v{
+                    types::Value::Null => continue,
+                    types::Value::Integer(v) => {
+                        typeCodes[i] = 1;
+                        longs[i] = *v;
+                        continue;
+                    },
+                    types::Value::Real(v) => {
+                        typeCodes[i] = 2;
+                        doubles[i] = *v;
+                        continue;
+                    },
+                    types::Value::Text(s) => {
+                        typeCodes[i] = 3;
+                        env.new_string(s)?.into()
+                    },
+                    types::Value::Blob(b) => {
+                        typeCodes[i] = 4;
+                        env.byte_array_from_slice(b)?.into()
+                    }
+                };
+                if objects.is_null(){
+                    objects = env.get_field(args, "mObjects", "[Ljava/lang/Object;")?.l()?;
+                }
+                env.set_object_array_element(objects.into_inner(), i as jsize, object)?;
+            }
+
+            if values.is_empty(){
+                return Ok(());
+            }
+            env.set_int_array_region(env.get_field(args, "mTypes", "[I")?.l()?.into_inner(), 0, &typeCodes)?;
+            env.set_long_array_region(env.get_field(args, "mLongs", "[J")?.l()?.into_inner(), 0, &longs)?;
+            env.set_double_array_region(env.get_field(args, "mDoubles", "[D")?.l()?.into_inner(), 0, &doubles)?;
+            Ok(())
+        }
+
+        /// reads the SQLiteFunctionResult set by the java function
+        fn readResult(&self, env:JNIEnv) -> std::result::Result<types::Value, TypedFunctionError>{
+            let result = self.result.as_obj();
+            let value = match env.get_field(result, "mType", "I")?.i()?{
+                // Cursor.FIELD_TYPE_*
+                0 => types::Value::Null,
+                1 => types::Value::Integer(env.get_field(result, "mLong", "J")?.j()?),
+                2 => types::Value::Real(env.get_field(result, "mDouble", "D")?.d()?),
+                3 => {
+                    let s = env.get_field(result, "mObject", "Ljava/lang/Object;")?.l()?;
+                    if s.is_null() || !env.is_instance_of(s, "java/lang/String")?{
+                        return Err(TypedFunctionError::ResultType(3));
+                    }
+                    types::Value::Text(env.get_string(s.into())?.into())
+                },
+                4 => {
+                    let b = env.get_field(result, "mObject", "Ljava/lang/Object;")?.l()?;
+                    if b.is_null() || !env.is_instance_of(b, "[B")?{
+                        return Err(TypedFunctionError::ResultType(4));
+                    }
+                    types::Value::Blob(env.convert_byte_array(b.into_inner())?)
+                },
+                t => return Err(TypedFunctionError::ResultType(t))
+            };
+            Ok(value)
+        }
+
+        fn scalar(self:&Arc<Self>, values:Vec<types::Value>) -> Result<types::Value>{
+            self.call(move |env, f|{
+                f.fillArgs(env, &values)?;
+                env.call_method(f.result.as_obj(), "reset", "()V", &[])?;
+                env.call_method(f.function.as_obj(), "dispatchScalar",
+                    "(Landroid/database/sqlite/SQLiteFunctionArgs;Landroid/database/sqlite/SQLiteFunctionResult;)V", &[
+                    f.args.as_obj().into(),
+                    f.result.as_obj().into()
+                ])?;
+                f.readResult(env)
+            })
+        }
+
+        /// the state is the java object returned by dispatchStep, null before the first row
+        fn step(self:&Arc<Self>, values:Vec<types::Value>, state:Option<GlobalRef>) -> Result<Option<GlobalRef>>{
+            self.call(move |env, f|{
+                f.fillArgs(env, &values)?;
+                let old = state.as_ref().map(|s| s.as_obj()).unwrap_or(JObject::null());
+                let new = env.call_method(f.function.as_obj(), "dispatchStep",
+                    "(Ljava/lang/Object;Landroid/database/sqlite/SQLiteFunctionArgs;)Ljava/lang/Object;", &[
+                    old.into(),
+                    f.args.as_obj().into()
+                ])?.l()?;
+
+                // states are usually mutated in place, keep the reference then
+                if state.is_some() && env.is_same_object(old, new)?{
+                    return Ok(state.clone());
+                }
+                Ok(Some(env.new_global_ref(new)?))
+            })
+        }
+
+        fn inverse(self:&Arc<Self>, values:Vec<types::Value>, state:Option<GlobalRef>) -> Result<()>{
+            self.call(move |env, f|{
+                f.fillArgs(env, &values)?;
+                env.call_method(f.function.as_obj(), "dispatchInverse",
+                    "(Ljava/lang/Object;Landroid/database/sqlite/SQLiteFunctionArgs;)V", &[
+                    state.as_ref().map(|s| s.as_obj()).unwrap_or(JObject::null()).into(),
+                    f.args.as_obj().into()
+                ])?;
+                Ok(())
+            })
+        }
+
+        fn result(self:&Arc<Self>, state:Option<GlobalRef>) -> Result<types::Value>{
+            self.call(move |env, f|{
+                env.call_method(f.result.as_obj(), "reset", "()V", &[])?;
+                env.call_method(f.function.as_obj(), "dispatchResult",
+                    "(Ljava/lang/Object;Landroid/database/sqlite/SQLiteFunctionResult;)V", &[
+                    state.as_ref().map(|s| s.as_obj()).unwrap_or(JObject::null()).into(),
+                    f.result.as_obj().into()
+                ])?;
+                f.readResult(env)
+            })
+        }
+    }
+
+    /// aggregate and window functions of a TypedFunction
+    struct TypedAggregator(Arc<TypedFunction>);
+
+    impl rusqlite::functions::Aggregate<Option<GlobalRef>, types::Value> for TypedAggregator{
+        fn init(&self, ctx: &mut functions::Context<'_>) -> Result<Option<GlobalRef>> {
+            return Ok(None);
+        }
+
+        fn step(&self, ctx: &mut functions::Context<'_>, state: &mut Option<GlobalRef>) -> Result<()> {
+            *state = self.0.step(TypedFunction::values(ctx)?, state.take())?;
+            return Ok(());
+        }
+
+        fn finalize(&self, ctx: &mut functions::Context<'_>, state: Option<Option<GlobalRef>>) -> Result<types::Value> {
+            return self.0.result(state.flatten());
+        }
+    }
+
+    impl rusqlite::functions::WindowAggregate<Option<GlobalRef>, types::Value> for TypedAggregator{
+        fn value(&self, state: Option<&Option<GlobalRef>>) -> Result<types::Value> {
+            return self.0.result(state.cloned().flatten());
+        }
+
+        fn inverse(&self, ctx: &mut functions::Context<'_>, state: &mut Option<GlobalRef>) -> Result<()> {
+            return self.0.inverse(TypedFunction::values(ctx)?, state.clone());
+        }
+    }
+
+    /// Register a SQLiteTypedFunction: a scalar, aggregate or window function with
+    /// any number of arguments of any type
+    #[no_mangle]
+    unsafe fn RegisterTypedFunction(env:JNIEnv, conn:JObject, function:JObject){
+        let connection = if let Ok(v) = env.get_rust_field::<_,_,Arc<Mutex<Connection>>>(conn, "mNativePtr"){
+            v
+        } else{
+            env.throw(("android/database/sqlite/SQLiteException", "failed to get connection."));
+            return;
+        };
+
+        let re = (|| -> jni::errors::Result<(String, jint, jint, bool, bool, Arc<TypedFunction>)>{
+            let name:String = env.get_string(env.get_field(function, "name", "Ljava/lang/String;")?.l()?.into())?.into();
+            let numArgs = env.get_field(function, "numArgs", "I")?.i()?;
+            let flags = env.get_field(function, "flags", "I")?.i()?;
+            let isScalar = !env.get_field(function, "mScalar", "Landroid/database/sqlite/SQLiteDatabase$ScalarFunction;")?.l()?.is_null();
+            let isWindow = env.get_field(function, "mIsWindow", "Z")?.z()?;
+
+            let typed = Arc::new(TypedFunction{
+                worker:VmManager::resolveWorker(env).unwrap(),
+                function:env.new_global_ref(function)?,
+                args:env.new_global_ref(env.new_object("android/database/sqlite/SQLiteFunctionArgs", "()V", &[])?)?,
+                result:env.new_global_ref(env.new_object("android/database/sqlite/SQLiteFunctionResult", "()V", &[])?)?
+            });
+            Ok((name, numArgs, flags, isScalar, isWindow, typed))
+        })();
+
+        let (name, numArgs, flags, isScalar, isWindow, typed) = match re{
+            Ok(v) => v,
+            Err(e) => {
+                if !env.exception_check().unwrap_or(false){
+                    env.throw(("android/database/sqlite/SQLiteException", e.to_string()));
+                }
+                return;
+            }
+        };
+
+        // SQLiteDatabase.FUNCTION_FLAG_DETERMINISTIC and FUNCTION_FLAG_DIRECT_ONLY
+        let mut functionFlags = functions::FunctionFlags::SQLITE_UTF8;
+        if (flags & 0x00000800) != 0{
+            functionFlags |= functions::FunctionFlags::SQLITE_DETERMINISTIC;
+        }
+        if (flags & 0x00080000) != 0{
+            functionFlags |= functions::FunctionFlags::SQLITE_DIRECTONLY;
+        }
+
+        let connection = connection.lock();
+        let re = if isScalar{
+            connection.create_scalar_function(name.as_str(), numArgs, functionFlags, move |ctx|{
+                typed.scalar(TypedFunction::values(ctx)?)
+            })
+        } else if isWindow{
+            connection.create_window_function(name.as_str(), numArgs, functionFlags, TypedAggregator(typed))
+        } else{
+            connection.create_aggregate_function(name.as_str(), numArgs, functionFlags, TypedAggregator(typed))
+        };
+
+        if let Err(e) = re{
+            env.throw(("android/database/sqlite/SQLiteException", e.to_string()));
+        }
+    }
+
     /// register the "LOCALIZED" collator, todo
     #[no_mangle]
     unsafe fn RegisterLocalizedCollators(env:JNIEnv, conn:JObject, locale:JString){
@@ -1271,6 +1728,8 @@ mod SQLiteConnection{
                     let c = r.parameter_count();
 
                     let stmt = Box::leak(Box::new(SQLStatment{
+                        rows:None,
+                        row:Vec::new(),
                         inner:r,
                         binding:Vec::new(),
                     }));
@@ -1388,6 +1847,10 @@ mod SQLiteConnection{
     #[no_mangle]
     unsafe fn ResetStatementAndClearBindings(env:JNIEnv, conn:JObject, stmt:jlong){
         if let Some(stmt) = (stmt as *mut SQLStatment).as_mut(){
+            // dropping the rows resets the statement
+            stmt.rows = None;
+            stmt.row.clear();
+
             let c = stmt.binding.len();
             stmt.binding.clear();
             stmt.binding.resize(c, ToSqlOutput::Owned(types::Value::Null));
@@ -1610,6 +2073,133 @@ mod SQLiteConnection{
         return 0;
     }
 
+    /// moves to the next row, running the statement on the first call. the values
+    /// of the row are kept for the GetColumn functions until the next step.
+    #[no_mangle]
+    unsafe fn Step(env:JNIEnv, conn:JObject, stmt:jlong) -> jboolean{
+        if let Some(stmt) = (stmt as *mut SQLStatment).as_mut(){
+
+            if stmt.rows.is_none(){
+                let re = stmt.inner.query(params_from_iter(stmt.binding.as_slice()));
+                if let Ok(rows) = re{
+                    // the rows borrow the leaked statement, which outlives them
+                    stmt.rows = Some(std::mem::transmute::<Rows, Rows>(rows));
+                } else{
+                    env.throw(("android/database/sqlite/SQLiteException", re.err().unwrap().to_string()));
+                    return 0;
+                }
+            }
+
+            let numColumns = stmt.inner.column_count();
+            let re = stmt.rows.as_mut().unwrap().next().map(|row| row.map(|row|{
+                (0..numColumns).map(|i| row.get::<_,types::Value>(i).unwrap_or(types::Value::Null)).collect::<Vec<_>>()
+            }));
+
+            stmt.row.clear();
+            match re{
+                Ok(Some(values)) => {
+                    stmt.row = values;
+                    return 1;
+                },
+                Ok(None) => {
+                    stmt.rows = None;
+                },
+                Err(e) => {
+                    stmt.rows = None;
+                    env.throw(("android/database/sqlite/SQLiteException", e.to_string()));
+                }
+            }
+        } else{
+            env.throw(("android/database/sqlite/SQLiteException", "error getting Statment."));
+        }
+        return 0;
+    }
+
+    /// a value of the current row of Step
+    unsafe fn column<'b>(env:JNIEnv, stmt:jlong, index:jint) -> Option<&'b types::Value>{
+        if let Some(stmt) = (stmt as *mut SQLStatment).as_mut(){
+            if stmt.row.is_empty(){
+                env.throw(("android/database/sqlite/SQLiteException", "no current row."));
+                return None;
+            }
+            if index < 0 || index as usize >= stmt.row.len(){
+                env.throw(("android/database/sqlite/SQLiteException", "column index out of range."));
+                return None;
+            }
+            return Some(&stmt.row[index as usize]);
+        } else{
+            env.throw(("android/database/sqlite/SQLiteException", "error getting Statment."));
+            return None;
+        }
+    }
+
+    /// returns one of the Cursor.FIELD_TYPE_* constants
+    #[no_mangle]
+    unsafe fn GetColumnType(env:JNIEnv, conn:JObject, stmt:jlong, index:jint) -> jint{
+        match column(env, stmt, index){
+            Some(types::Value::Integer(_)) => 1,
+            Some(types::Value::Real(_)) => 2,
+            Some(types::Value::Text(_)) => 3,
+            Some(types::Value::Blob(_)) => 4,
+            _ => 0
+        }
+    }
+
+    // the conversions below follow sqlite3_column_*
+    #[no_mangle]
+    unsafe fn GetColumnLong(env:JNIEnv, conn:JObject, stmt:jlong, index:jint) -> jlong{
+        match column(env, stmt, index){
+            Some(types::Value::Integer(v)) => *v,
+            Some(types::Value::Real(v)) => *v as jlong,
+            Some(types::Value::Text(s)) => s.trim().parse::<jlong>().or_else(|_| s.trim().parse::<jdouble>().map(|v| v as jlong)).unwrap_or(0),
+            _ => 0
+        }
+    }
+
+    #[no_mangle]
+    unsafe fn GetColumnDouble(env:JNIEnv, conn:JObject, stmt:jlong, index:jint) -> jdouble{
+        match column(env, stmt, index){
+            Some(types::Value::Integer(v)) => *v as jdouble,
+            Some(types::Value::Real(v)) => *v,
+            Some(types::Value::Text(s)) => s.trim().parse::<jdouble>().unwrap_or(0.0),
+            _ => 0.0
+        }
+    }
+
+    #[no_mangle]
+    unsafe fn GetColumnString(env:JNIEnv, conn:JObject, stmt:jlong, index:jint) -> jstring{
+        let s = match column(env, stmt, index){
+            Some(types::Value::Integer(v)) => v.to_string(),
+            Some(types::Value::Real(v)) => v.to_string(),
+            Some(types::Value::Text(s)) => s.clone(),
+            Some(types::Value::Blob(b)) => String::from_utf8_lossy(b).into_owned(),
+            _ => return 0 as jstring
+        };
+        if let Ok(s) = env.new_string(s){
+            return s.into_inner();
+        } else{
+            env.throw(("android/database/sqlite/SQLiteException", "error creating String."));
+        }
+        return 0 as jstring;
+    }
+
+    #[no_mangle]
+    unsafe fn GetColumnBlob(env:JNIEnv, conn:JObject, stmt:jlong, index:jint) -> jbyteArray{
+        let re = match column(env, stmt, index){
+            Some(types::Value::Integer(v)) => env.byte_array_from_slice(v.to_string().as_bytes()),
+            Some(types::Value::Real(v)) => env.byte_array_from_slice(v.to_string().as_bytes()),
+            Some(types::Value::Text(s)) => env.byte_array_from_slice(s.as_bytes()),
+            Some(types::Value::Blob(b)) => env.byte_array_from_slice(b),
+            _ => return 0 as jbyteArray
+        };
+        if let Ok(b) = re{
+            return b;
+        } else{
+            env.throw(("android/database/sqlite/SQLiteException", "error creating byte[]."));
+        }
+        return 0 as jbyteArray;
+    }
+
     #[no_mangle]
     unsafe fn GetDbLookaside(env:JNIEnv, conn:JObject) -> jint{
         if let Ok(conn) = env.get_rust_field::<_,_,Arc<Mutex<Connection>>>(conn, "mNativePtr"){
@@ -1626,13 +2216,392 @@ mod SQLiteConnection{
     }
 
     #[no_mangle]
-    fn ResetCancel(env:JNIEnv, conn:JObject){
+    fn ResetCancel(env:JNIEnv, conn:JObject, cancelable:jboolean){
 
     }
 
     pub fn register(env:JNIEnv) -> Result<(), jni::errors::Error>{
-        env.register_native_methods("android.database.sqlite.SQLiteConnection", &[
-            todo!("register SQLiteConnector")
+        env.register_native_methods("android/database/sqlite/SQLiteConnection", &[
+            NativeMethod{
+                name:"nativeOpen".into(),
+                sig:"(Ljava/lang/String;ILjava/lang/String;ZZII)V".into(),
+                fn_ptr:Open as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeClose".into(),
+                sig:"()V".into(),
+                fn_ptr:Close as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeRegisterCustomScalarFunction".into(),
+                sig:"(Ljava/lang/String;Ljava/util/function/UnaryOperator;)V".into(),
+                fn_ptr:RegisterCustomScalarFunction as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeRegisterCustomAggregateFunction".into(),
+                sig:"(Ljava/lang/String;Ljava/util/function/BinaryOperator;)V".into(),
+                fn_ptr:RegisterCustomAggregateFunction as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeRegisterTypedFunction".into(),
+                sig:"(Landroid/database/sqlite/SQLiteTypedFunction;)V".into(),
+                fn_ptr:RegisterTypedFunction as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeRegisterLocalizedCollators".into(),
+                sig:"(Ljava/lang/String;)V".into(),
+                fn_ptr:RegisterLocalizedCollators as *mut c_void
+            },
+            NativeMethod{
+                name:"nativePrepareStatement".into(),
+                sig:"(Ljava/lang/String;)J".into(),
+                fn_ptr:PrepareStatement as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeFinalizeStatement".into(),
+                sig:"(J)V".into(),
+                fn_ptr:FinalizeStatement as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetParameterCount".into(),
+                sig:"(J)I".into(),
+                fn_ptr:GetParameterCount as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeIsReadOnly".into(),
+                sig:"(J)Z".into(),
+                fn_ptr:IsReadOnly as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetColumnCount".into(),
+                sig:"(J)I".into(),
+                fn_ptr:GetColumnCount as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetColumnName".into(),
+                sig:"(JI)Ljava/lang/String;".into(),
+                fn_ptr:GetColumnName as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeBindNull".into(),
+                sig:"(JI)V".into(),
+                fn_ptr:BindNull as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeBindLong".into(),
+                sig:"(JIJ)V".into(),
+                fn_ptr:BindLong as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeBindDouble".into(),
+                sig:"(JID)V".into(),
+                fn_ptr:BindDouble as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeBindString".into(),
+                sig:"(JILjava/lang/String;)V".into(),
+                fn_ptr:BindString as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeBindBlob".into(),
+                sig:"(JI[B)V".into(),
+                fn_ptr:BindBlob as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeResetStatementAndClearBindings".into(),
+                sig:"(J)V".into(),
+                fn_ptr:ResetStatementAndClearBindings as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeExecute".into(),
+                sig:"(J)V".into(),
+                fn_ptr:Execute as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeExecuteForLong".into(),
+                sig:"(J)J".into(),
+                fn_ptr:ExecuteForLong as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeExecuteForString".into(),
+                sig:"(J)Ljava/lang/String;".into(),
+                fn_ptr:ExecuteForString as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeExecuteForBlobFileDescriptor".into(),
+                sig:"(J)I".into(),
+                fn_ptr:ExecuteForBlobFileDescriptor as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeExecuteForChangedRowCount".into(),
+                sig:"(J)I".into(),
+                fn_ptr:ExecuteForChangedRowCount as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeExecuteForLastInsertedRowId".into(),
+                sig:"(J)J".into(),
+                fn_ptr:ExecuteForLastInsertedRowId as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeExecuteForCursorWindow".into(),
+                sig:"(JLandroid/database/CursorWindow;IIZ)J".into(),
+                fn_ptr:ExecuteForCursorWindow as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeStep".into(),
+                sig:"(J)Z".into(),
+                fn_ptr:Step as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetColumnType".into(),
+                sig:"(JI)I".into(),
+                fn_ptr:GetColumnType as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetColumnLong".into(),
+                sig:"(JI)J".into(),
+                fn_ptr:GetColumnLong as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetColumnDouble".into(),
+                sig:"(JI)D".into(),
+                fn_ptr:GetColumnDouble as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetColumnString".into(),
+                sig:"(JI)Ljava/lang/String;".into(),
+                fn_ptr:GetColumnString as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetColumnBlob".into(),
+                sig:"(JI)[B".into(),
+                fn_ptr:GetColumnBlob as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeGetDbLookaside".into(),
+                sig:"()I".into(),
+                fn_ptr:GetDbLookaside as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeCancel".into(),
+                sig:"()V".into(),
+                fn_ptr:Cancel as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeResetCancel".into(),
+                sig:"(Z)V".into(),
+                fn_ptr:ResetCancel as *mut c_void
+            }
+        ])
+    }
+}
+/*
+    native side of Fuse.FuseSession: mounts /dev/fuse and moves whole requests
+    and replies between the device and direct byte buffers, the protocol itself
+    is decoded in java.
+*/
+#[allow(unused, non_snake_case)]
+mod FuseSession{
+    use std::ffi::CString;
+    use std::process::Command;
+
+    use libc::c_char;
+    use libc::c_int;
+    use libc::c_void;
+
+    use jni::JNIEnv;
+    use jni::NativeMethod;
+    use jni::objects::*;
+    use jni::sys::jint;
+
+    const MOUNT_OPTIONS:&str = "ro,nosuid,nodev,fsname=obbfs,subtype=obbfs";
+    const HELPERS:[&str; 2] = ["fusermount3", "fusermount"];
+
+    fn errno() -> c_int{
+        std::io::Error::last_os_error().raw_os_error().unwrap_or(libc::EIO)
+    }
+
+    /*
+        mount(2) needs CAP_SYS_ADMIN.
+    */
+    unsafe fn mountDirect(path:&CString) -> Result<c_int, c_int>{
+        let fd = libc::open("/dev/fuse\0".as_ptr() as *const c_char, libc::O_RDWR | libc::O_CLOEXEC);
+        if fd < 0{
+            return Err(errno());
+        }
+
+        let options = CString::new(format!("fd={},rootmode=40000,user_id={},group_id={}",
+            fd, libc::getuid(), libc::getgid())).unwrap();
+        let res = libc::mount(
+            "obbfs\0".as_ptr() as *const c_char,
+            path.as_ptr(),
+            "fuse.obbfs\0".as_ptr() as *const c_char,
+            libc::MS_NOSUID | libc::MS_NODEV | libc::MS_RDONLY,
+            options.as_ptr() as *const c_void
+        );
+        if res < 0{
+            let err = errno();
+            libc::close(fd);
+            return Err(err);
+        }
+        return Ok(fd);
+    }
+
+    /*
+        unprivileged processes go through the setuid fusermount helper, which
+        mounts and sends the /dev/fuse descriptor back over a unix socket.
+    */
+    unsafe fn mountWithHelper(path:&str) -> Result<c_int, c_int>{
+        let mut socks = [0 as c_int; 2];
+        if libc::socketpair(libc::AF_UNIX, libc::SOCK_STREAM, 0, socks.as_mut_ptr()) < 0{
+            return Err(errno());
+        }
+        // only the helper's end is inherited
+        libc::fcntl(socks[0], libc::F_SETFD, libc::FD_CLOEXEC);
+
+        let mut result = Err(libc::ENODEV);
+        for helper in HELPERS{
+            let status = Command::new(helper)
+                .env("_FUSE_COMMFD", socks[1].to_string())
+                .args(["-o", MOUNT_OPTIONS, "--", path])
+                .status();
+            if let Ok(status) = status{
+                result = if status.success(){
+                    receiveFd(socks[0])
+                } else{
+                    Err(libc::EPERM)
+                };
+                break;
+            }
+        }
+
+        libc::close(socks[0]);
+        libc::close(socks[1]);
+        return result;
+    }
+
+    unsafe fn receiveFd(sock:c_int) -> Result<c_int, c_int>{
+        let mut byte = 0u8;
+        let mut iov = libc::iovec{
+            iov_base:&mut byte as *mut u8 as *mut c_void,
+            iov_len:1
+        };
+        // u64 keeps the control buffer aligned for cmsghdr
+        let mut control = [0u64; 8];
+
+        let mut msg:libc::msghdr = std::mem::zeroed();
+        msg.msg_iov = &mut iov;
+        msg.msg_iovlen = 1;
+        msg.msg_control = control.as_mut_ptr() as *mut c_void;
+        msg.msg_controllen = libc::CMSG_SPACE(std::mem::size_of::<c_int>() as u32) as _;
+
+        let n = libc::recvmsg(sock, &mut msg, 0);
+        if n < 0{
+            return Err(errno());
+        }
+        let cmsg = libc::CMSG_FIRSTHDR(&msg);
+        if n == 0 || cmsg.is_null() || (*cmsg).cmsg_type != libc::SCM_RIGHTS{
+            return Err(libc::EIO);
+        }
+        let fd = std::ptr::read_unaligned(libc::CMSG_DATA(cmsg) as *const c_int);
+        libc::fcntl(fd, libc::F_SETFD, libc::FD_CLOEXEC);
+        return Ok(fd);
+    }
+
+    pub unsafe fn mount(env:JNIEnv, class:JClass, mountPoint:JString) -> jint{
+        let path:String = match env.get_string(mountPoint){
+            Ok(s) => s.into(),
+            Err(_) => return -libc::EINVAL
+        };
+        let cpath = match CString::new(path.clone()){
+            Ok(s) => s,
+            Err(_) => return -libc::EINVAL
+        };
+
+        let re = match mountDirect(&cpath){
+            Ok(fd) => Ok(fd),
+            Err(_) => mountWithHelper(&path)
+        };
+        match re{
+            Ok(fd) => fd as jint,
+            Err(err) => -err as jint
+        }
+    }
+
+    pub unsafe fn unmount(env:JNIEnv, class:JClass, mountPoint:JString){
+        let path:String = match env.get_string(mountPoint){
+            Ok(s) => s.into(),
+            Err(_) => return
+        };
+        if let Ok(cpath) = CString::new(path.clone()){
+            if libc::umount2(cpath.as_ptr(), libc::MNT_DETACH) == 0{
+                return;
+            }
+        }
+        for helper in HELPERS{
+            if Command::new(helper).args(["-u", "-z", "--", path.as_str()]).status().is_ok(){
+                return;
+            }
+        }
+    }
+
+    pub unsafe fn read(env:JNIEnv, class:JClass, fd:jint, buffer:JByteBuffer, size:jint) -> jint{
+        let dst = match env.get_direct_buffer_address(buffer){
+            Ok(s) => s,
+            Err(_) => return -libc::EINVAL
+        };
+        let len = std::cmp::min(dst.len(), size as usize);
+        let n = libc::read(fd as c_int, dst.as_mut_ptr() as *mut c_void, len);
+        if n < 0{
+            return -errno() as jint;
+        }
+        return n as jint;
+    }
+
+    pub unsafe fn write(env:JNIEnv, class:JClass, fd:jint, buffer:JByteBuffer, size:jint) -> jint{
+        let src = match env.get_direct_buffer_address(buffer){
+            Ok(s) => s,
+            Err(_) => return -libc::EINVAL
+        };
+        let len = std::cmp::min(src.len(), size as usize);
+        let n = libc::write(fd as c_int, src.as_ptr() as *const c_void, len);
+        if n < 0{
+            return -errno() as jint;
+        }
+        return n as jint;
+    }
+
+    pub unsafe fn close(env:JNIEnv, class:JClass, fd:jint){
+        libc::close(fd as c_int);
+    }
+
+    pub fn register(env:JNIEnv) -> Result<(), jni::errors::Error>{
+        env.register_native_methods("Fuse/FuseSession", &[
+            NativeMethod{
+                name:"nativeMount".into(),
+                sig:"(Ljava/lang/String;)I".into(),
+                fn_ptr:mount as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeUnmount".into(),
+                sig:"(Ljava/lang/String;)V".into(),
+                fn_ptr:unmount as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeRead".into(),
+                sig:"(ILjava/nio/ByteBuffer;I)I".into(),
+                fn_ptr:read as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeWrite".into(),
+                sig:"(ILjava/nio/ByteBuffer;I)I".into(),
+                fn_ptr:write as *mut c_void
+            },
+            NativeMethod{
+                name:"nativeClose".into(),
+                sig:"(I)V".into(),
+                fn_ptr:close as *mut c_void
+            }
         ])
     }
-}
\ No newline at end of file
+}
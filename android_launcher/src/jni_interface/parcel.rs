@@ -1,186 +1,163 @@
-use std::borrow::Borrow;
-use std::mem::size_of;
-use std::mem::transmute;
-use std::ops::Add;
 use std::sync::Arc;
 
 use jni::JNIEnv;
 use jni::objects::*;
 
 use jni::sys::*;
-use parking_lot::Mutex;
 use parking_lot::RwLock;
-use lock_api::*;
-use paste::paste;
 
-use super::binder::BinderProxy;
 use super::native_types::CursorWindow::CursorWindow;
 
-fn addReturn(b:&mut usize, n:usize) -> usize{
-    *b+=n;
-    return *b;
-}
-
-macro_rules! gen_read {
-    ($name:ident, $return:ty) => {
-        paste!{
-            pub fn [<read $name>](&mut self) -> Result<$return, &'static str>{
-                if let Some(v) = self.readNext(){
-                    match v{
-                        ParcelValue::$name(v) => return Ok(v.clone()),
-                        v => match v{
-                            ParcelValue::Binder(_) => Err(stringify!(Parcel.[<read $name>]: next value expected $name, got Binder.)),
-                            ParcelValue::CursorWindow(_) => Err(stringify!(Parcel.[<read $name>]: next value expected $name, got CursorWindow.)),
-                            ParcelValue::Int(_) => Err(stringify!(Parcel.[<read $name>]: next value expected $name, got Int.)),
-                            ParcelValue::Long(_) => Err(stringify!(Parcel.[<read $name>]: next value expected $name, got Long.)),
-                            ParcelValue::Bool(_) => Err(stringify!(Parcel.[<read $name>]: next value expected $name, got Boolean.)),
-                            ParcelValue::Float(_) => Err(stringify!(Parcel.[<read $name>]: next value expected $name, got Float.)),
-                            ParcelValue::Double(_) => Err(stringify!(Parcel.[<read $name>]: next value expected $name, got Double.)),
-                            ParcelValue::String(_) => Err(stringify!(Parcel.[<read $name>]: next value expected $name, got String.)),
-                        }
-                    }
-                } else{
-                    return Err("Parcel.next(): all value readed.")
-                }
-            }
-        }
-    };
-}
-
-#[repr(u8)]
-pub enum ParcelValue{
-    Int(i32),
-    Long(jlong),
-    Bool(jboolean),
-    Float(f32),
-    Double(f64),
-    String(String),
-
-    Binder(Arc<BinderProxy>),
-    CursorWindow(Arc<RwLock<CursorWindow>>),
-}
-
-#[repr(u8)]
-pub enum ParcelValueType{
-    Int,
-    Long,
-    Bool,
-    Float,
-    Double,
-    String,
-    Binder,
-    CursorWindow,
-}
+/*
+    a copy of the data of a java android.os.Parcel.
 
+    java keeps parcel data in android.os.ParcelBuffer, a direct ByteBuffer in
+    libbinder's wire format: values in native byte order, each padded to 4
+    bytes. the data is read and written through that buffer in bulk, never
+    one value per JNI call.
+*/
 #[derive(Clone)]
 pub struct Parcel{
     bytes:Vec<u8>,
     pos:usize
 }
 
+fn pad(len:usize) -> usize{
+    (len + 3) & !3
+}
+
 impl Parcel{
-    pub fn fromParcelObject(env:JNIEnv, obj:JObject) -> Result<Arc<RwLock<Parcel>>, jni::errors::Error>{
-        let guard = env.get_rust_field::<_,_,Arc<RwLock<Parcel>>>(obj, "mNativePtr")?;
-        Ok(guard.clone())
+    pub fn new() -> Parcel{
+        Parcel{
+            bytes:Vec::new(),
+            pos:0
+        }
     }
 
-    pub unsafe fn TemporaryParcel(env:JNIEnv, parcel:Arc<RwLock<Parcel>>) -> Result<JObject, jni::errors::Error>{
-        let buf = env.new_direct_byte_buffer((parcel.read().bytes.as_slice() as *const [u8] as *mut [u8]).as_mut().unwrap()).unwrap();
-        let p = env.new_object("Landroid/os/Parcel", "(J;Ljava/nio/ByteBuffer)V", &[
-            JValue::Long(parcel.as_ref() as *const RwLock<Parcel> as i64),
-            JValue::Object(buf.into())
+    /*
+        copies all the data of a java parcel, positioned where the java parcel is.
 
-            ])?;
+        fails with an error message if the parcel holds binders or file
+        descriptors: they are flattened into indices of a table of java
+        objects, which mean nothing outside of the parcel's VM.
+    */
+    pub fn fromParcelObject(env:JNIEnv, obj:JObject) -> Result<Parcel, String>{
+        let err = |e:jni::errors::Error| e.to_string();
+
+        let data = env.get_field(obj, "mData", "Landroid/os/ParcelBuffer;").and_then(|v| v.l()).map_err(err)?;
+        if env.call_method(data, "hasObjects", "()Z", &[]).and_then(|v| v.z()).map_err(err)?{
+            return Err("Parcel holds binders or file descriptors, which cannot leave this VM.".to_string());
+        }
+        let size = env.call_method(data, "dataSize", "()I", &[]).and_then(|v| v.i()).map_err(err)? as usize;
+        let pos = env.call_method(data, "dataPosition", "()I", &[]).and_then(|v| v.i()).map_err(err)? as usize;
+        let buffer = env.call_method(data, "buffer", "()Ljava/nio/ByteBuffer;", &[]).and_then(|v| v.l()).map_err(err)?;
+
+        let mut bytes = Vec::with_capacity(size);
+        if !buffer.is_null(){
+            let src = env.get_direct_buffer_address(buffer.into()).map_err(err)?;
+            bytes.extend_from_slice(&src[..std::cmp::min(size, src.len())]);
+        }
+        let pos = std::cmp::min(pos, bytes.len());
+        Ok(Parcel{bytes, pos})
+    }
+
+    /*
+        wraps the data in a java parcel that reads it in place, through the
+        Parcel(long, ByteBuffer) constructor. the data must outlive the java
+        parcel; recycle it once done, which drops its reference to the data.
+    */
+    pub unsafe fn TemporaryParcel<'a>(env:JNIEnv<'a>, parcel:&Parcel) -> Result<JObject<'a>, jni::errors::Error>{
+        let data = std::slice::from_raw_parts_mut(parcel.bytes.as_ptr() as *mut u8, parcel.bytes.len());
+        let buf = env.new_direct_byte_buffer(data)?;
+        let p = env.new_object("android/os/Parcel", "(JLjava/nio/ByteBuffer;)V", &[
+            JValue::Long(0),
+            JValue::Object(buf.into())
+        ])?;
         return Ok(p);
     }
 
-    
-
-    pub fn readNext(&mut self) -> Option<ParcelValue>{
-        if let Some(header) = self.bytes.get(self.pos){
-            self.pos+=1;
-            let start = self.pos;
-            unsafe{
-                return Some(match transmute::<u8, ParcelValueType>(*header){
-                    ParcelValueType::Int => {
-                        self.pos += size_of::<jint>();
-                        ParcelValue::Int(transmute::<[u8;4],_>(self.bytes[start..self.pos].try_into().unwrap()))
-                    },
-                    ParcelValueType::Long => {
-                        self.pos += size_of::<jlong>();
-                        ParcelValue::Long(transmute::<[u8;8],_>(self.bytes[start..self.pos].try_into().unwrap()))
-                    },
-                    ParcelValueType::Bool => {
-                        self.pos += size_of::<jboolean>();
-                        ParcelValue::Bool(transmute::<[u8;1],_>(self.bytes[start..self.pos].try_into().unwrap()))
-                    },
-                    ParcelValueType::Float => {
-                        self.pos = size_of::<jfloat>();
-                        ParcelValue::Float(transmute::<[u8;4],_>(self.bytes[start..self.pos].try_into().unwrap()))
-                    },
-                    ParcelValueType::Double => {
-                        self.pos += size_of::<jdouble>();
-                        ParcelValue::Double(transmute::<[u8;8],_>(self.bytes[start..self.pos].try_into().unwrap()))
-                    },
-                    ParcelValueType::String => {
-                        self.pos += size_of::<jint>();
-                        let len:jint = transmute::<[u8;4],_>(self.bytes[start..self.pos].try_into().unwrap());
-                        let b:&[u8] = &self.bytes[self.pos..len as usize];
-                        self.pos += len as usize;
-                        ParcelValue::String(String::from_utf8(b.to_vec()).unwrap())
-                    },
-                    ParcelValueType::Binder => {
-                        self.pos += size_of::<jlong>();
-                        let ptr:jlong = transmute::<[u8;8],_>(self.bytes[start..self.pos].try_into().unwrap());
-                        let ptr = transmute(ptr as isize);
-                        let re = ParcelValue::Binder(Clone::clone(&ptr));
-                        std::mem::forget(ptr);
-                        re
-                    },
-                    ParcelValueType::CursorWindow => {
-                        self.pos += size_of::<jlong>();
-                        let ptr:jlong = transmute::<[u8;8], _>(self.bytes[start..self.pos].try_into().unwrap());
-                        let ptr = transmute(ptr as isize);
-                        let re = ParcelValue::CursorWindow(Clone::clone(&ptr));
-                        std::mem::forget(ptr);
-                        re
-                    },
-                })
-            }
+    /*
+        appends the data at the position of a java parcel, as Parcel.appendFrom does.
+    */
+    pub fn appendToParcelObject(&self, env:JNIEnv, obj:JObject) -> Result<(), jni::errors::Error>{
+        if self.bytes.is_empty(){
+            return Ok(());
         }
-        return None;
+        let tmp = unsafe{Parcel::TemporaryParcel(env, self)?};
+        let re = env.call_method(obj, "appendFrom", "(Landroid/os/Parcel;II)V", &[
+            JValue::Object(tmp),
+            JValue::Int(0),
+            JValue::Int(self.bytes.len() as jint)
+        ]);
+        env.call_method(tmp, "recycle", "()V", &[])?;
+        re.map(|_| ())
     }
 
-    gen_read!(Binder, Arc<BinderProxy>);
-    gen_read!(CursorWindow, Arc<RwLock<CursorWindow>>);
-    gen_read!(Int, jint);
-    gen_read!(Long, jlong);
-    gen_read!(Bool, jboolean);
-    gen_read!(Float, jfloat);
-    gen_read!(Double, jdouble);
-    gen_read!(String, String);
-
-    pub fn writeCursorWindow(&mut self, value:Arc<RwLock<CursorWindow>>){
-        self.bytes.push(ParcelValueType::CursorWindow as u8);
-        self.bytes.extend(unsafe{transmute::<_,[u8;8]>(value.as_ref() as *const RwLock<CursorWindow> as i64)});
+    /*
+        moves the position of a java parcel to where reading this copy stopped.
+    */
+    pub fn syncPosition(&self, env:JNIEnv, obj:JObject) -> Result<(), jni::errors::Error>{
+        env.call_method(obj, "setDataPosition", "(I)V", &[JValue::Int(self.pos as jint)])?;
+        Ok(())
     }
 
-    // native methods
-    pub unsafe fn create(env:JNIEnv, obj:JObject){
-        let mut p = Arc::new(RwLock::new(Parcel{
-            bytes:vec![0u8;256],
-            pos:0
-        }));
+    pub fn dataSize(&self) -> usize{
+        self.bytes.len()
+    }
+
+    fn readInplace(&mut self, len:usize) -> Result<&[u8], &'static str>{
+        let start = self.pos;
+        let end = start + pad(len);
+        if len > self.bytes.len() || end > self.bytes.len(){
+            return Err("Parcel: read past the end of the data.");
+        }
+        self.pos = end;
+        Ok(&self.bytes[start..start + len])
+    }
+
+    fn writeInplace(&mut self, data:&[u8]){
+        let end = self.pos + pad(data.len());
+        if self.bytes.len() < end{
+            self.bytes.resize(end, 0);
+        }
+        self.bytes[self.pos..self.pos + data.len()].copy_from_slice(data);
+        self.pos = end;
+    }
+
+    pub fn readInt(&mut self) -> Result<jint, &'static str>{
+        let b = self.readInplace(4)?;
+        Ok(jint::from_ne_bytes(b.try_into().unwrap()))
+    }
+
+    pub fn readLong(&mut self) -> Result<jlong, &'static str>{
+        let b = self.readInplace(8)?;
+        Ok(jlong::from_ne_bytes(b.try_into().unwrap()))
+    }
+
+    pub fn writeInt(&mut self, value:jint){
+        self.writeInplace(&value.to_ne_bytes());
+    }
 
-        env.set_rust_field(obj, "mNativePtr", p.clone());
-        let buf = env.new_direct_byte_buffer((p.read().bytes.as_slice() as *const [u8] as *mut [u8]).as_mut().unwrap()).unwrap();
-        env.set_field(obj, "mBuffer", "Ljava/nio/ByteBuffer", JValue::Object(buf.into()));
-        env.set_field(obj, "mIsOwned", "Z", JValue::Bool(1));
+    pub fn writeLong(&mut self, value:jlong){
+        self.writeInplace(&value.to_ne_bytes());
     }
 
-    pub fn finalize(env:JNIEnv, class:JClass, obj:JObject){
-        if let Ok(v) = env.take_rust_field::<_,_,Arc<RwLock<Parcel>>>(obj, "mNativePtr"){
-            drop(v);
+    /*
+        windows are shared in-process rather than copied: the parcel holds the
+        address of the window, which the writing CursorWindow keeps alive.
+    */
+    pub fn readCursorWindow(&mut self) -> Result<Arc<RwLock<CursorWindow>>, &'static str>{
+        let ptr = self.readLong()? as *const RwLock<CursorWindow>;
+        if ptr.is_null(){
+            return Err("Parcel.readCursorWindow: null window.");
         }
+        unsafe{
+            Arc::increment_strong_count(ptr);
+            Ok(Arc::from_raw(ptr))
+        }
+    }
+
+    pub fn writeCursorWindow(&mut self, value:&Arc<RwLock<CursorWindow>>){
+        self.writeLong(Arc::as_ptr(value) as jlong);
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package Fuse;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.TimerTask;
@@ -15,25 +16,75 @@ public class Fuse {
     }
 
     static HashMap<String, FsFile> mFiles = new HashMap<String, FsFile>();
-    static HashMap<String, FsDirectory> mDirectories = new HashMap<String, FsDirectory>();
+    static HashMap<String, FuseServer> mDirectories = new HashMap<String, FuseServer>();
+    static HashMap<String, FuseSession> mSessions = new HashMap<String, FuseSession>();
 
     public String mountPoint(){
         return MountPoint;
     }
 
     public Path mountFile(String name, FsFile file){
+        synchronized (mFiles){
+            mFiles.put(name, file);
+        }
         return Path.of(MountPoint, name);
     }
 
-    public Path mountDirectory(String name, FsDirectory dir){
-        return Path.of(MountPoint, name);
+    /*
+        mounts the directory read-only at MountPoint/name; a FuseSession thread
+        serves the kernel requests from a FuseServer over the directory.
+    */
+    public Path mountDirectory(String name, FsDirectory dir) throws IOException{
+        Path path = Path.of(MountPoint, name);
+        FuseServer server = new FuseServer(dir);
+        FuseSession session = new FuseSession(server, path);
+        session.start();
+
+        synchronized (mDirectories){
+            mDirectories.put(name, server);
+            mSessions.put(name, session);
+        }
+        return path;
+    }
+
+    public FuseServer getServer(String name){
+        synchronized (mDirectories){
+            return mDirectories.get(name);
+        }
+    }
+
+    /*
+        resolves a path below the mount point to the served file, so in-process
+        readers do not need a round trip through the kernel.
+    */
+    public FsFile resolveFile(Path path) throws IOException{
+        Path relative = Path.of(MountPoint).relativize(path);
+        if (relative.getNameCount() == 0) return null;
+
+        String name = relative.getName(0).toString();
+        if (relative.getNameCount() == 1){
+            synchronized (mFiles){
+                if (mFiles.containsKey(name)) return mFiles.get(name);
+            }
+        }
+
+        FuseServer server = getServer(name);
+        if (server == null) return null;
+        return server.resolveFile(relative.getNameCount() == 1 ? "" : relative.subpath(1, relative.getNameCount()).toString());
     }
 
     public void unmountDirectory(String name){
-        mDirectories.remove(name);
+        FuseSession session;
+        synchronized (mDirectories){
+            mDirectories.remove(name);
+            session = mSessions.remove(name);
+        }
+        if (session != null) session.stop();
     }
 
     public void unmountFile(String name){
-        mFiles.remove(name);
+        synchronized (mFiles){
+            mFiles.remove(name);
+        }
     }
 }
@@ -0,0 +1,352 @@
+package Fuse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import obbstorage.fat32.FsDirectory;
+import obbstorage.fat32.FsDirectoryEntry;
+import obbstorage.fat32.FsFile;
+
+/**
+ * Serves the read-only subset of the FUSE low level protocol (lookup, getattr,
+ * opendir/readdir, open/read, release and forget) for a {@link FsDirectory}
+ * tree, so a mounted OBB is read in place instead of being extracted.
+ *
+ * Inode numbers are handed out on first lookup and stay stable while the
+ * kernel holds a reference. Errors are returned as negative errno values, the
+ * way they go back to the kernel.
+ */
+public class FuseServer {
+    public static final long ROOT_ID = 1;
+
+    /* reported by readdir for entries that were not looked up yet; readdir(3)
+       hides entries with inode 0 */
+    public static final long UNKNOWN_INO = 0xffffffffL;
+
+    public static final int ENOENT = 2;
+    public static final int EIO = 5;
+    public static final int EBADF = 9;
+    public static final int EACCES = 13;
+    public static final int ENOTDIR = 20;
+    public static final int EISDIR = 21;
+
+    public static final int S_IFDIR = 0040000;
+    public static final int S_IFREG = 0100000;
+
+    private static final int O_ACCMODE = 03;
+    private static final int O_RDONLY = 0;
+
+    public static class Attr {
+        public long ino;
+        public int mode;
+        public int nlink;
+        public long size;
+        public long mtime;
+    }
+
+    public interface DirFiller {
+        /**
+         * Adds one directory entry to the reply.
+         *
+         * @return false if the reply buffer is full; the entry was not added
+         * and will be offered again by the next readdir at {@code offset}
+         */
+        boolean add(String name, long ino, int mode, long nextOffset);
+    }
+
+    private static class Node {
+        final long ino;
+        final long parent;
+        /* the key of this node in the children of its parent */
+        final String name;
+        final FsDirectoryEntry entry;
+        FsDirectory dir;
+        FsFile file;
+        final HashMap<String, Long> children = new HashMap<String, Long>();
+        long lookups;
+
+        Node(long ino, long parent, String name, FsDirectoryEntry entry) {
+            this.ino = ino;
+            this.parent = parent;
+            this.name = name;
+            this.entry = entry;
+        }
+
+        boolean isDirectory() {
+            return entry == null || entry.isDirectory();
+        }
+    }
+
+    private static class DirHandle {
+        final String[] names;
+        final long[] inos;
+        final int[] modes;
+
+        DirHandle(int size) {
+            names = new String[size];
+            inos = new long[size];
+            modes = new int[size];
+        }
+    }
+
+    /* the FAT implementation is not thread safe, but FUSE requests may arrive
+       on several threads at once */
+    private final Object mLock = new Object();
+
+    private final ConcurrentHashMap<Long, Node> mNodes = new ConcurrentHashMap<Long, Node>();
+    private final ConcurrentHashMap<Long, FsFile> mOpenFiles = new ConcurrentHashMap<Long, FsFile>();
+    private final ConcurrentHashMap<Long, DirHandle> mOpenDirs = new ConcurrentHashMap<Long, DirHandle>();
+    private final AtomicLong mNextIno = new AtomicLong(ROOT_ID + 1);
+    private final AtomicLong mNextHandle = new AtomicLong(1);
+
+    public FuseServer(FsDirectory root) {
+        Node node = new Node(ROOT_ID, ROOT_ID, null, null);
+        node.dir = root;
+        mNodes.put(ROOT_ID, node);
+    }
+
+    /**
+     * Looks up a directory entry by name and fills out its attributes.
+     *
+     * @return 0 on success, or a negative errno
+     */
+    public int lookup(long parent, String name, Attr out) {
+        Node p = mNodes.get(parent);
+        if (p == null) return -ENOENT;
+        if (!p.isDirectory()) return -ENOTDIR;
+
+        if (name.equals(".")) return getattr(parent, out);
+        if (name.equals("..")) return getattr(p.parent, out);
+
+        synchronized (mLock) {
+            try {
+                Long known = p.children.get(name);
+                Node child = (known == null) ? null : mNodes.get(known);
+
+                if (child == null) {
+                    FsDirectoryEntry e = directory(p).getEntry(name);
+                    if (e == null) return -ENOENT;
+
+                    child = new Node(mNextIno.getAndIncrement(), p.ino, name, e);
+                    mNodes.put(child.ino, child);
+                    p.children.put(name, child.ino);
+                }
+
+                child.lookups++;
+                return fillAttr(child, out);
+            } catch (IOException e) {
+                return -EIO;
+            }
+        }
+    }
+
+    /**
+     * Drops {@code nlookup} kernel references to an inode, forgetting it once
+     * none are left.
+     */
+    public void forget(long ino, long nlookup) {
+        if (ino == ROOT_ID) return;
+
+        synchronized (mLock) {
+            Node node = mNodes.get(ino);
+            if (node == null) return;
+
+            node.lookups -= nlookup;
+            if (node.lookups <= 0) {
+                mNodes.remove(ino);
+                Node parent = mNodes.get(node.parent);
+                if (parent != null) parent.children.remove(node.name, node.ino);
+            }
+        }
+    }
+
+    public int getattr(long ino, Attr out) {
+        Node node = mNodes.get(ino);
+        if (node == null) return -ENOENT;
+
+        synchronized (mLock) {
+            try {
+                return fillAttr(node, out);
+            } catch (IOException e) {
+                return -EIO;
+            }
+        }
+    }
+
+    /**
+     * Opens a directory, taking a snapshot of its entries that later
+     * {@link #readdir} calls page through.
+     *
+     * @return a positive directory handle, or a negative errno
+     */
+    public long opendir(long ino) {
+        Node node = mNodes.get(ino);
+        if (node == null) return -ENOENT;
+        if (!node.isDirectory()) return -ENOTDIR;
+
+        synchronized (mLock) {
+            try {
+                List<FsDirectoryEntry> entries = new ArrayList<FsDirectoryEntry>();
+                Iterator<FsDirectoryEntry> it = directory(node).iterator();
+                while (it.hasNext()) {
+                    FsDirectoryEntry e = it.next();
+                    if (e.getName().equals(".") || e.getName().equals("..")) continue;
+                    entries.add(e);
+                }
+
+                DirHandle handle = new DirHandle(entries.size() + 2);
+                handle.names[0] = ".";
+                handle.inos[0] = node.ino;
+                handle.modes[0] = S_IFDIR;
+                handle.names[1] = "..";
+                handle.inos[1] = node.parent;
+                handle.modes[1] = S_IFDIR;
+
+                for (int i = 0; i < entries.size(); i++) {
+                    FsDirectoryEntry e = entries.get(i);
+                    Long known = node.children.get(e.getName());
+                    handle.names[i + 2] = e.getName();
+                    // readdir does not take a lookup reference, so entries are not assigned inodes here
+                    handle.inos[i + 2] = (known == null) ? UNKNOWN_INO : known;
+                    handle.modes[i + 2] = e.isDirectory() ? S_IFDIR : S_IFREG;
+                }
+
+                long fh = mNextHandle.getAndIncrement();
+                mOpenDirs.put(fh, handle);
+                return fh;
+            } catch (IOException e) {
+                return -EIO;
+            }
+        }
+    }
+
+    /**
+     * Passes directory entries starting at {@code offset} to the filler until
+     * it is full or the directory is exhausted.
+     *
+     * @return 0 on success, or a negative errno
+     */
+    public int readdir(long fh, long offset, DirFiller filler) {
+        DirHandle handle = mOpenDirs.get(fh);
+        if (handle == null) return -EBADF;
+
+        for (int i = (int) offset; i < handle.names.length; i++) {
+            if (!filler.add(handle.names[i], handle.inos[i], handle.modes[i], i + 1)) break;
+        }
+        return 0;
+    }
+
+    public int releasedir(long fh) {
+        return (mOpenDirs.remove(fh) == null) ? -EBADF : 0;
+    }
+
+    /**
+     * Opens a regular file for reading.
+     *
+     * @return a positive file handle, or a negative errno
+     */
+    public long open(long ino, int flags) {
+        if ((flags & O_ACCMODE) != O_RDONLY) return -EACCES;
+
+        Node node = mNodes.get(ino);
+        if (node == null) return -ENOENT;
+        if (node.isDirectory()) return -EISDIR;
+
+        synchronized (mLock) {
+            try {
+                long fh = mNextHandle.getAndIncrement();
+                mOpenFiles.put(fh, file(node));
+                return fh;
+            } catch (IOException e) {
+                return -EIO;
+            }
+        }
+    }
+
+    /**
+     * Reads from an open file into {@code dest}. Reads past the end of the
+     * file are cut short, as the kernel expects.
+     *
+     * @return the number of bytes read, or a negative errno
+     */
+    public int read(long fh, long offset, ByteBuffer dest) {
+        FsFile file = mOpenFiles.get(fh);
+        if (file == null) return -EBADF;
+
+        synchronized (mLock) {
+            long length = file.getLength();
+            if (offset >= length) return 0;
+
+            int size = (int) Math.min(dest.remaining(), length - offset);
+            int limit = dest.limit();
+            dest.limit(dest.position() + size);
+            try {
+                file.read(offset, dest);
+            } catch (IOException e) {
+                return -EIO;
+            } finally {
+                dest.limit(limit);
+            }
+            return size;
+        }
+    }
+
+    public int release(long fh) {
+        return (mOpenFiles.remove(fh) == null) ? -EBADF : 0;
+    }
+
+    /**
+     * Resolves a path relative to the mount root, for in-process callers that
+     * want to read a mounted file without going through the kernel.
+     *
+     * @return the file, or null if there is no regular file at the path
+     */
+    public FsFile resolveFile(String path) throws IOException {
+        synchronized (mLock) {
+            FsDirectory dir = mNodes.get(ROOT_ID).dir;
+            String[] parts = path.split("/");
+            FsDirectoryEntry entry = null;
+
+            for (int i = 0; i < parts.length; i++) {
+                if (parts[i].isEmpty()) continue;
+                if (dir == null) return null;
+
+                entry = dir.getEntry(parts[i]);
+                if (entry == null) return null;
+                dir = entry.isDirectory() ? entry.getDirectory() : null;
+            }
+            return (entry != null && entry.isFile()) ? entry.getFile() : null;
+        }
+    }
+
+    private FsDirectory directory(Node node) throws IOException {
+        if (node.dir == null) node.dir = node.entry.getDirectory();
+        return node.dir;
+    }
+
+    private FsFile file(Node node) throws IOException {
+        if (node.file == null) node.file = node.entry.getFile();
+        return node.file;
+    }
+
+    private int fillAttr(Node node, Attr out) throws IOException {
+        out.ino = node.ino;
+        if (node.isDirectory()) {
+            out.mode = S_IFDIR | 0555;
+            out.nlink = 2;
+            out.size = 0;
+        } else {
+            out.mode = S_IFREG | 0444;
+            out.nlink = 1;
+            out.size = file(node).getLength();
+        }
+        out.mtime = (node.entry == null) ? 0 : node.entry.getLastModified();
+        return 0;
+    }
+}
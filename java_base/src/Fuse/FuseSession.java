@@ -0,0 +1,356 @@
+package Fuse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import android.util.Log;
+
+/**
+ * The kernel side of a FUSE mount: mounts a {@link FuseServer} at a directory
+ * and runs a thread that reads requests from {@code /dev/fuse}, decodes them,
+ * calls the server and writes the replies back.
+ *
+ * Only the requests a read-only file system needs are decoded; everything
+ * else is answered with ENOSYS, which the kernel remembers for the optional
+ * ones (flush, access, xattrs) and stops sending.
+ */
+public class FuseSession {
+    private static final String TAG = "FuseSession";
+
+    /* protocol version 7.31, see include/uapi/linux/fuse.h */
+    private static final int KERNEL_VERSION = 7;
+    private static final int KERNEL_MINOR_VERSION = 31;
+
+    private static final int FUSE_LOOKUP = 1;
+    private static final int FUSE_FORGET = 2;
+    private static final int FUSE_GETATTR = 3;
+    private static final int FUSE_OPEN = 14;
+    private static final int FUSE_READ = 15;
+    private static final int FUSE_STATFS = 17;
+    private static final int FUSE_RELEASE = 18;
+    private static final int FUSE_INIT = 26;
+    private static final int FUSE_OPENDIR = 27;
+    private static final int FUSE_READDIR = 28;
+    private static final int FUSE_RELEASEDIR = 29;
+    private static final int FUSE_INTERRUPT = 36;
+    private static final int FUSE_DESTROY = 38;
+    private static final int FUSE_BATCH_FORGET = 42;
+
+    private static final int FOPEN_KEEP_CACHE = 1 << 1;
+
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+    private static final int ENODEV = 19;
+    private static final int ENOSYS = 38;
+
+    private static final int IN_HEADER_SIZE = 40;
+    private static final int OUT_HEADER_SIZE = 16;
+    private static final int ATTR_SIZE = 88;
+    private static final int DIRENT_SIZE = 24;
+
+    private static final int MAX_WRITE = 128 * 1024;
+    /* the kernel refuses reads into buffers that cannot hold a full request */
+    private static final int BUFFER_SIZE = MAX_WRITE + 4096;
+
+    /* attributes never change, the image is mounted read-only */
+    private static final long ATTR_VALID_SECONDS = 3600;
+
+    private final FuseServer mServer;
+    private final Path mMountPoint;
+    private final ByteBuffer mIn = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mOut = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final FuseServer.Attr mAttr = new FuseServer.Attr();
+
+    private volatile int mFd = -1;
+    private Thread mThread;
+
+    public FuseSession(FuseServer server, Path mountPoint) {
+        mServer = server;
+        mMountPoint = mountPoint;
+    }
+
+    /**
+     * Mounts the server at the mount point, creating the directory if needed,
+     * and starts serving requests.
+     *
+     * @throws IOException if the kernel refused the mount
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) return;
+
+        Files.createDirectories(mMountPoint);
+        int fd = nativeMount(mMountPoint.toString());
+        if (fd < 0) {
+            throw new IOException("Unable to mount FUSE at " + mMountPoint + ", errno " + -fd);
+        }
+        mFd = fd;
+
+        mThread = new Thread(this::loop, TAG + " " + mMountPoint.getFileName());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Unmounts the file system. The serving thread exits once the kernel
+     * reports the connection gone.
+     */
+    public synchronized void stop() {
+        if (mThread == null) return;
+        nativeUnmount(mMountPoint.toString());
+        mThread = null;
+    }
+
+    private void loop() {
+        while (true) {
+            mIn.clear();
+            int read = nativeRead(mFd, mIn, BUFFER_SIZE);
+            if (read < 0) {
+                // ENOENT: the request was interrupted before it was read
+                if (read == -EINTR || read == -EAGAIN || read == -FuseServer.ENOENT) continue;
+                // ENODEV: unmounted
+                break;
+            }
+            if (read < IN_HEADER_SIZE) continue;
+            mIn.limit(read);
+            if (!dispatch()) break;
+        }
+        nativeClose(mFd);
+        mFd = -1;
+    }
+
+    /**
+     * Handles the request in {@link #mIn}.
+     *
+     * @return false once the kernel asked the file system to shut down
+     */
+    private boolean dispatch() {
+        final int opcode = mIn.getInt(4);
+        final long unique = mIn.getLong(8);
+        final long nodeid = mIn.getLong(16);
+        mIn.position(IN_HEADER_SIZE);
+
+        mOut.clear();
+        mOut.position(OUT_HEADER_SIZE);
+        switch (opcode) {
+            case FUSE_INIT:
+                init();
+                break;
+            case FUSE_DESTROY:
+                reply(unique, 0);
+                return false;
+            case FUSE_LOOKUP: {
+                int res = mServer.lookup(nodeid, readName(), mAttr);
+                if (res < 0) {
+                    reply(unique, res);
+                    return true;
+                }
+                putEntry(mAttr);
+                break;
+            }
+            case FUSE_FORGET:
+                mServer.forget(nodeid, mIn.getLong());
+                // forgets are never answered
+                return true;
+            case FUSE_BATCH_FORGET: {
+                int count = mIn.getInt();
+                mIn.getInt();
+                for (int i = 0; i < count; i++) {
+                    long ino = mIn.getLong();
+                    mServer.forget(ino, mIn.getLong());
+                }
+                return true;
+            }
+            case FUSE_INTERRUPT:
+                // requests are handled synchronously, there is nothing to interrupt
+                return true;
+            case FUSE_GETATTR: {
+                int res = mServer.getattr(nodeid, mAttr);
+                if (res < 0) {
+                    reply(unique, res);
+                    return true;
+                }
+                mOut.putLong(ATTR_VALID_SECONDS);
+                mOut.putInt(0);
+                mOut.putInt(0);
+                putAttr(mAttr);
+                break;
+            }
+            case FUSE_OPEN:
+            case FUSE_OPENDIR: {
+                int flags = mIn.getInt();
+                long fh = (opcode == FUSE_OPEN) ? mServer.open(nodeid, flags) : mServer.opendir(nodeid);
+                if (fh < 0) {
+                    reply(unique, (int) fh);
+                    return true;
+                }
+                mOut.putLong(fh);
+                mOut.putInt(opcode == FUSE_OPEN ? FOPEN_KEEP_CACHE : 0);
+                mOut.putInt(0);
+                break;
+            }
+            case FUSE_READ: {
+                long fh = mIn.getLong();
+                long offset = mIn.getLong();
+                int size = Math.min(mIn.getInt(), MAX_WRITE);
+                mOut.limit(OUT_HEADER_SIZE + size);
+                int res = mServer.read(fh, offset, mOut);
+                if (res < 0) {
+                    reply(unique, res);
+                    return true;
+                }
+                mOut.limit(mOut.capacity());
+                mOut.position(OUT_HEADER_SIZE + res);
+                break;
+            }
+            case FUSE_READDIR: {
+                long fh = mIn.getLong();
+                long offset = mIn.getLong();
+                final int end = OUT_HEADER_SIZE + Math.min(mIn.getInt(), MAX_WRITE);
+                int res = mServer.readdir(fh, offset, (name, ino, mode, nextOffset) -> {
+                    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    int entrySize = (DIRENT_SIZE + bytes.length + 7) & ~7;
+                    if (mOut.position() + entrySize > end) return false;
+
+                    int start = mOut.position();
+                    mOut.putLong(ino);
+                    mOut.putLong(nextOffset);
+                    mOut.putInt(bytes.length);
+                    mOut.putInt(mode >>> 12);
+                    mOut.put(bytes);
+                    while (mOut.position() < start + entrySize) mOut.put((byte) 0);
+                    return true;
+                });
+                if (res < 0) {
+                    reply(unique, res);
+                    return true;
+                }
+                break;
+            }
+            case FUSE_RELEASE:
+                reply(unique, mServer.release(mIn.getLong()));
+                return true;
+            case FUSE_RELEASEDIR:
+                reply(unique, mServer.releasedir(mIn.getLong()));
+                return true;
+            case FUSE_STATFS:
+                for (int i = 0; i < 5; i++) mOut.putLong(0);
+                mOut.putInt(512);   // bsize
+                mOut.putInt(255);   // namelen
+                mOut.putInt(512);   // frsize
+                for (int i = 0; i < 7; i++) mOut.putInt(0);
+                break;
+            default:
+                reply(unique, -ENOSYS);
+                return true;
+        }
+        reply(unique, 0);
+        return true;
+    }
+
+    private void init() {
+        int major = mIn.getInt();
+        int minor = mIn.getInt();
+        int maxReadahead = mIn.getInt();
+
+        mOut.putInt(KERNEL_VERSION);
+        mOut.putInt((major > KERNEL_VERSION) ? KERNEL_MINOR_VERSION : Math.min(minor, KERNEL_MINOR_VERSION));
+        mOut.putInt(maxReadahead);
+        mOut.putInt(0);                 // flags
+        mOut.putShort((short) 16);      // max_background
+        mOut.putShort((short) 12);      // congestion_threshold
+        mOut.putInt(MAX_WRITE);
+        mOut.putInt(1);                 // time_gran
+        mOut.putShort((short) 0);       // max_pages
+        mOut.putShort((short) 0);       // map_alignment
+        for (int i = 0; i < 8; i++) mOut.putInt(0);
+    }
+
+    private String readName() {
+        int start = mIn.position();
+        int end = start;
+        while (end < mIn.limit() && mIn.get(end) != 0) end++;
+
+        byte[] bytes = new byte[end - start];
+        mIn.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void putEntry(FuseServer.Attr attr) {
+        mOut.putLong(attr.ino);
+        mOut.putLong(0);                // generation
+        mOut.putLong(ATTR_VALID_SECONDS);
+        mOut.putLong(ATTR_VALID_SECONDS);
+        mOut.putInt(0);
+        mOut.putInt(0);
+        putAttr(attr);
+    }
+
+    private void putAttr(FuseServer.Attr attr) {
+        long seconds = attr.mtime / 1000;
+        int nanos = (int) (attr.mtime % 1000) * 1000000;
+
+        int start = mOut.position();
+        mOut.putLong(attr.ino);
+        mOut.putLong(attr.size);
+        mOut.putLong((attr.size + 511) / 512);
+        mOut.putLong(seconds);          // atime
+        mOut.putLong(seconds);          // mtime
+        mOut.putLong(seconds);          // ctime
+        mOut.putInt(nanos);
+        mOut.putInt(nanos);
+        mOut.putInt(nanos);
+        mOut.putInt(attr.mode);
+        mOut.putInt(attr.nlink);
+        mOut.putInt(0);                 // uid
+        mOut.putInt(0);                 // gid
+        mOut.putInt(0);                 // rdev
+        mOut.putInt(4096);              // blksize
+        mOut.putInt(0);
+        if (mOut.position() - start != ATTR_SIZE) throw new AssertionError();
+    }
+
+    /**
+     * Writes the header and sends the reply. Errors carry no payload.
+     */
+    private void reply(long unique, int error) {
+        int length = (error == 0) ? mOut.position() : OUT_HEADER_SIZE;
+        mOut.putInt(0, length);
+        mOut.putInt(4, error);
+        mOut.putLong(8, unique);
+
+        int res = nativeWrite(mFd, mOut, length);
+        // ENOENT: the request was interrupted and is gone, anything else is fatal for it alone
+        if (res < 0 && res != -FuseServer.ENOENT && res != -ENODEV) {
+            Log.w(TAG, "Reply to request " + unique + " failed, errno " + -res);
+        }
+    }
+
+    /**
+     * Mounts a FUSE file system at {@code mountPoint}.
+     *
+     * @return the {@code /dev/fuse} descriptor, or a negative errno
+     */
+    private static native int nativeMount(String mountPoint);
+
+    private static native void nativeUnmount(String mountPoint);
+
+    /**
+     * Reads one request into a direct buffer.
+     *
+     * @return the request length, or a negative errno
+     */
+    private static native int nativeRead(int fd, ByteBuffer buffer, int size);
+
+    /**
+     * Writes one reply from a direct buffer.
+     *
+     * @return the number of bytes written, or a negative errno
+     */
+    private static native int nativeWrite(int fd, ByteBuffer buffer, int size);
+
+    private static native void nativeClose(int fd);
+}
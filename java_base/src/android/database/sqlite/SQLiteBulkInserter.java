@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.annotation.NonNull;
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.DatabaseUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Inserts many rows into a table, for example to implement
+ * {@link ContentProvider#bulkInsert} on top of a {@link SQLiteDatabase}:
+ * <pre>
+ * public int bulkInsert(Uri uri, ContentValues[] values) {
+ *     return new SQLiteBulkInserter(mOpenHelper.getWritableDatabase(), getTable(uri))
+ *             .insert(values);
+ * }
+ * </pre>
+ * <p>
+ * All the rows are inserted in a single transaction.  Consecutive rows that have the
+ * same columns are inserted together by statements with multi-row {@code VALUES}
+ * clauses, each reused for as many rows as it can take, instead of one statement
+ * execution per row.
+ * </p><p>
+ * The inserter keeps the number of rows it inserted and the time it took, which
+ * {@link #getRowsPerSecond} reports.  This class is not thread-safe.
+ * </p>
+ */
+public final class SQLiteBulkInserter {
+    private static final String TAG = "SQLiteBulkInserter";
+
+    // The maximum number of bind arguments of a statement (SQLITE_MAX_VARIABLE_NUMBER
+    // before SQLite 3.32) and of rows of a VALUES clause (SQLITE_MAX_COMPOUND_SELECT).
+    private static final int MAX_BIND_ARGS = 999;
+    private static final int MAX_ROWS_PER_STATEMENT = 500;
+
+    private final SQLiteDatabase mDatabase;
+    private final String mTable;
+    private final int mConflictAlgorithm;
+
+    private long mInsertedRowCount;
+    private long mElapsedNanos;
+
+    /**
+     * Creates an inserter that fails on constraint violations, like
+     * {@link SQLiteDatabase#insertOrThrow}.
+     *
+     * @param db the database to insert into
+     * @param table the table to insert into
+     */
+    public SQLiteBulkInserter(@NonNull SQLiteDatabase db, @NonNull String table) {
+        this(db, table, SQLiteDatabase.CONFLICT_NONE);
+    }
+
+    /**
+     * Creates an inserter.
+     *
+     * @param db the database to insert into
+     * @param table the table to insert into
+     * @param conflictAlgorithm the conflict resolution algorithm, one of the
+     *            {@code SQLiteDatabase.CONFLICT_*} constants, as for
+     *            {@link SQLiteDatabase#insertWithOnConflict}
+     */
+    public SQLiteBulkInserter(@NonNull SQLiteDatabase db, @NonNull String table,
+            int conflictAlgorithm) {
+        if (db == null) {
+            throw new IllegalArgumentException("db must not be null.");
+        }
+        if (table == null) {
+            throw new IllegalArgumentException("table must not be null.");
+        }
+        if (conflictAlgorithm < 0
+                || conflictAlgorithm >= SQLiteDatabase.CONFLICT_VALUES.length) {
+            throw new IllegalArgumentException("Invalid conflict algorithm: "
+                    + conflictAlgorithm);
+        }
+        mDatabase = db;
+        mTable = table;
+        mConflictAlgorithm = conflictAlgorithm;
+    }
+
+    /**
+     * Inserts rows in a single transaction.  If a row cannot be inserted, the
+     * transaction is rolled back and none of the rows are inserted.
+     *
+     * @param values the rows to insert, as maps from column names to values
+     * @return the number of rows inserted, which can be less than the number of rows
+     *         given if the conflict algorithm ignores some of them
+     * @throws SQLException if a row could not be inserted
+     */
+    public int insert(@NonNull ContentValues[] values) {
+        final long startNanos = System.nanoTime();
+        int insertedRows = 0;
+        mDatabase.beginTransaction();
+        try {
+            int start = 0;
+            while (start < values.length) {
+                int end = start + 1;
+                while (end < values.length
+                        && values[end].keySet().equals(values[start].keySet())) {
+                    end++;
+                }
+                insertedRows += insertRows(values, start, end);
+                start = end;
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        mInsertedRowCount += insertedRows;
+        mElapsedNanos += elapsedNanos;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Inserted " + insertedRows + " rows into " + mTable + " in "
+                    + (elapsedNanos / 1000000) + " ms ("
+                    + rowsPerSecond(insertedRows, elapsedNanos) + " rows/s)");
+        }
+        return insertedRows;
+    }
+
+    /**
+     * Returns the total number of rows inserted by this inserter.
+     */
+    public long getInsertedRowCount() {
+        return mInsertedRowCount;
+    }
+
+    /**
+     * Returns the total time spent inserting rows by this inserter, in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return mElapsedNanos / 1000000;
+    }
+
+    /**
+     * Returns the number of rows inserted per second by this inserter, or 0 if it has
+     * not inserted any rows yet.
+     */
+    public long getRowsPerSecond() {
+        return rowsPerSecond(mInsertedRowCount, mElapsedNanos);
+    }
+
+    /**
+     * Applies a batch of operations to a provider backed by a database, in a single
+     * transaction, for example to implement {@link ContentProvider#applyBatch}:
+     * <pre>
+     * public ContentProviderResult[] applyBatch(ArrayList&lt;ContentProviderOperation&gt; ops)
+     *         throws OperationApplicationException {
+     *     return SQLiteBulkInserter.applyBatch(mOpenHelper.getWritableDatabase(), this, ops);
+     * }
+     * </pre>
+     * <p>
+     * Each operation runs on the same connection, so the operations that execute the
+     * same SQL reuse the statement prepared by the first of them.  The transaction yields
+     * to other threads after the operations that allow it, as reported by
+     * {@link ContentProviderOperation#isYieldAllowed}.  If an operation fails, the
+     * operations applied since the last yield are rolled back.
+     * </p>
+     *
+     * @param db the database of the provider
+     * @param provider the provider to apply the operations to
+     * @param operations the operations to apply
+     * @return the results of the operations
+     * @throws OperationApplicationException if an operation failed
+     */
+    public static @NonNull ContentProviderResult[] applyBatch(@NonNull SQLiteDatabase db,
+            @NonNull ContentProvider provider,
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < numOperations; i++) {
+                final ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(provider, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Inserts values[start..end), which all have the same columns.
+    private int insertRows(ContentValues[] values, int start, int end) {
+        final String[] columns = values[start].keySet().toArray(new String[0]);
+        if (columns.length == 0) {
+            return insertDefaultRows(end - start);
+        }
+
+        final int rowsPerStatement = Math.max(1,
+                Math.min(MAX_ROWS_PER_STATEMENT, MAX_BIND_ARGS / columns.length));
+        int insertedRows = 0;
+        SQLiteStatement fullStatement = null;
+        SQLiteStatement statement = null;
+        try {
+            for (int row = start; row < end; row += rowsPerStatement) {
+                final int rows = Math.min(rowsPerStatement, end - row);
+                if (rows == rowsPerStatement) {
+                    if (fullStatement == null) {
+                        fullStatement = compileInsert(columns, rows);
+                    }
+                    statement = fullStatement;
+                } else {
+                    // Only the last statement of a run can have fewer rows.
+                    statement = compileInsert(columns, rows);
+                }
+
+                int index = 1;
+                for (int i = row; i < row + rows; i++) {
+                    final ContentValues rowValues = values[i];
+                    for (String column : columns) {
+                        DatabaseUtils.bindObjectToProgram(statement, index++,
+                                rowValues.get(column));
+                    }
+                }
+                insertedRows += statement.executeUpdateDelete();
+            }
+        } finally {
+            if (statement != null && statement != fullStatement) {
+                statement.close();
+            }
+            if (fullStatement != null) {
+                fullStatement.close();
+            }
+        }
+        return insertedRows;
+    }
+
+    private int insertDefaultRows(int count) {
+        final SQLiteStatement statement = mDatabase.compileStatement("INSERT"
+                + SQLiteDatabase.CONFLICT_VALUES[mConflictAlgorithm] + " INTO " + mTable
+                + " DEFAULT VALUES");
+        try {
+            int insertedRows = 0;
+            for (int i = 0; i < count; i++) {
+                insertedRows += statement.executeUpdateDelete();
+            }
+            return insertedRows;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private SQLiteStatement compileInsert(String[] columns, int rows) {
+        final StringBuilder sql = new StringBuilder();
+        sql.append("INSERT");
+        sql.append(SQLiteDatabase.CONFLICT_VALUES[mConflictAlgorithm]);
+        sql.append(" INTO ");
+        sql.append(mTable);
+        sql.append('(');
+        for (int i = 0; i < columns.length; i++) {
+            sql.append((i > 0) ? "," : "");
+            sql.append(columns[i]);
+        }
+        sql.append(") VALUES ");
+        for (int row = 0; row < rows; row++) {
+            sql.append((row > 0) ? ",(" : "(");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append((i > 0) ? ",?" : "?");
+            }
+            sql.append(')');
+        }
+        return mDatabase.compileStatement(sql.toString());
+    }
+
+    private static long rowsPerSecond(long rows, long elapsedNanos) {
+        return elapsedNanos > 0 ? rows * 1000000000L / elapsedNanos : 0;
+    }
+}
@@ -42,6 +42,7 @@ import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.BinaryOperator;
 import java.util.function.UnaryOperator;
@@ -109,6 +110,17 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final boolean mIsPrimaryConnection;
     private final boolean mIsReadOnlyConnection;
     private final PreparedStatementCache mPreparedStatementCache;
+
+    // The SQL of the statements most recently evicted from the prepared statement cache.
+    // Preparing one of them again means that the statements in use do not fit in the
+    // cache, which then grows by one, up to SQLiteDatabase.MAX_SQL_CACHE_SIZE.
+    private final LinkedHashMap<String, Boolean> mEvictedSql =
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+                }
+            };
     private PreparedStatement mPreparedStatementPool;
 
     // The recent operations log.
@@ -131,6 +143,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private native void nativeClose();
     private native void nativeRegisterCustomScalarFunction(String name, UnaryOperator<String> function);
     private native void nativeRegisterCustomAggregateFunction(String name, BinaryOperator<String> function);
+    private native void nativeRegisterTypedFunction(SQLiteTypedFunction function);
     private native void nativeRegisterLocalizedCollators(String locale);
     private native long nativePrepareStatement(String sql);
     private native void nativeFinalizeStatement(long statementPtr);
@@ -160,6 +173,12 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private native long nativeExecuteForCursorWindow(
             long statementPtr, CursorWindow window,
             int startPos, int requiredPos, boolean countAllRows);
+    private native boolean nativeStep(long statementPtr);
+    private native int nativeGetColumnType(long statementPtr, int index);
+    private native long nativeGetColumnLong(long statementPtr, int index);
+    private native double nativeGetColumnDouble(long statementPtr, int index);
+    private native String nativeGetColumnString(long statementPtr, int index);
+    private native byte[] nativeGetColumnBlob(long statementPtr, int index);
     private native int nativeGetDbLookaside();
     private native void nativeCancel();
     private native void nativeResetCancel(boolean cancelable);
@@ -258,6 +277,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         setJournalSizeLimit();
         setAutoCheckpointInterval();
         setLocaleFromConfiguration();
+        setCustomFunctionsFromConfiguration();
         executePerConnectionSqlFromConfiguration(0);
     }
 
@@ -495,6 +515,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
                     mConfiguration.customAggregateFunctions.keyAt(i),
                     mConfiguration.customAggregateFunctions.valueAt(i));
         }
+        for (int i = 0; i < mConfiguration.customTypedFunctions.size(); i++) {
+            nativeRegisterTypedFunction(mConfiguration.customTypedFunctions.valueAt(i));
+        }
     }
 
     private void executePerConnectionSqlFromConfiguration(int startIndex) {
@@ -560,15 +583,22 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
                 .equals(mConfiguration.customScalarFunctions);
         boolean customAggregateFunctionsChanged = !configuration.customAggregateFunctions
                 .equals(mConfiguration.customAggregateFunctions);
+        boolean customTypedFunctionsChanged = !configuration.customTypedFunctions
+                .equals(mConfiguration.customTypedFunctions);
         final int oldSize = mConfiguration.perConnectionSql.size();
         final int newSize = configuration.perConnectionSql.size();
         boolean perConnectionSqlChanged = newSize > oldSize;
+        boolean maxSqlCacheSizeChanged =
+                configuration.maxSqlCacheSize != mConfiguration.maxSqlCacheSize;
 
         // Update configuration parameters.
         mConfiguration.updateParametersFrom(configuration);
 
-        // Update prepared statement cache size.
-        mPreparedStatementCache.resize(configuration.maxSqlCacheSize);
+        // Update prepared statement cache size.  Keep the size it grew to otherwise.
+        if (maxSqlCacheSizeChanged) {
+            mPreparedStatementCache.resize(configuration.maxSqlCacheSize);
+            mEvictedSql.clear();
+        }
 
         if (foreignKeyModeChanged) {
             setForeignKeyModeFromConfiguration();
@@ -579,6 +609,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         if (localeChanged) {
             setLocaleFromConfiguration();
         }
+        if (customScalarFunctionsChanged || customAggregateFunctionsChanged
+                || customTypedFunctionsChanged) {
+            setCustomFunctionsFromConfiguration();
+        }
         if (perConnectionSqlChanged) {
             executePerConnectionSqlFromConfiguration(oldSize);
         }
@@ -883,6 +917,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
                 attachCancellationSignal(cancellationSignal);
                 try {
                     changedRows = nativeExecuteForChangedRowCount(statement.mStatementPtr);
+                    mRecentOperations.setRowCount(changedRows);
                     return changedRows;
                 } finally {
                     detachCancellationSignal(cancellationSignal);
@@ -998,6 +1033,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
                         countedRows = (int)result;
                         filledRows = window.getNumRows();
                         window.setStartPosition(actualPos);
+                        mRecentOperations.setRowCount(countedRows);
                         return countedRows;
                     } finally {
                         detachCancellationSignal(cancellationSignal);
@@ -1022,11 +1058,56 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    /**
+     * Prepares a statement whose result rows are read one at a time with
+     * {@link StreamingQuery#step}, without copying them to a {@link CursorWindow}.
+     * The statement stays in use until {@link StreamingQuery#close} is called.
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @param cancellationSignal A signal to cancel the steps in progress, or null if none.
+     * @return The query, positioned before the first row.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public StreamingQuery executeForStreaming(String sql, Object[] bindArgs,
+            CancellationSignal cancellationSignal) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+
+        final int cookie = mRecentOperations.beginOperation("executeForStreaming",
+                sql, bindArgs);
+        try {
+            final PreparedStatement statement = acquirePreparedStatement(sql);
+            try {
+                throwIfStatementForbidden(statement);
+                bindArguments(statement, bindArgs);
+                applyBlockGuardPolicy(statement);
+                if (cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                return new StreamingQuery(statement, cancellationSignal);
+            } catch (RuntimeException ex) {
+                releasePreparedStatement(statement);
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
     private PreparedStatement acquirePreparedStatement(String sql) {
         PreparedStatement statement = mPreparedStatementCache.get(sql);
         boolean skipCache = false;
         if (statement != null) {
             if (!statement.mInUse) {
+                mPool.getStatementStats().onPreparedStatementCacheLookup(true);
                 return statement;
             }
             // The statement is already in the cache but is in use (this statement appears
@@ -1042,6 +1123,13 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             final boolean readOnly = nativeIsReadOnly(statementPtr);
             statement = obtainPreparedStatement(sql, statementPtr, numParameters, type, readOnly);
             if (!skipCache && isCacheable(type)) {
+                mPool.getStatementStats().onPreparedStatementCacheLookup(false);
+                if (mEvictedSql.remove(sql) != null) {
+                    final int cacheSize = mPreparedStatementCache.maxSize();
+                    if (cacheSize < SQLiteDatabase.MAX_SQL_CACHE_SIZE) {
+                        mPreparedStatementCache.resize(cacheSize + 1);
+                    }
+                }
                 mPreparedStatementCache.put(sql, statement);
                 statement.mInCache = true;
             }
@@ -1361,6 +1449,99 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return sql.replaceAll("[\\s]*\\n+[\\s]*", " ");
     }
 
+    /**
+     * A statement being stepped through its result rows.  Returned by
+     * {@link #executeForStreaming}.  Like the connection, it must only be used by the
+     * thread that holds the connection.
+     */
+    public final class StreamingQuery {
+        private PreparedStatement mStatement;
+        private final CancellationSignal mCancellationSignal;
+        private String[] mColumnNames;
+
+        private StreamingQuery(PreparedStatement statement,
+                CancellationSignal cancellationSignal) {
+            mStatement = statement;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        /**
+         * Returns the names of the result columns.
+         */
+        public String[] getColumnNames() {
+            if (mColumnNames == null) {
+                final long statementPtr = statementPtr();
+                final String[] names = new String[nativeGetColumnCount(statementPtr)];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = nativeGetColumnName(statementPtr, i);
+                }
+                mColumnNames = names;
+            }
+            return mColumnNames;
+        }
+
+        /**
+         * Moves to the next result row.
+         *
+         * @return True if there is a row, false if all rows were read.
+         *
+         * @throws SQLiteException if an error occurs.
+         * @throws OperationCanceledException if the operation was canceled.
+         */
+        public boolean step() {
+            final long statementPtr = statementPtr();
+            attachCancellationSignal(mCancellationSignal);
+            try {
+                return nativeStep(statementPtr);
+            } finally {
+                detachCancellationSignal(mCancellationSignal);
+            }
+        }
+
+        /**
+         * Returns the type of a column of the current row, one of the
+         * {@code Cursor.FIELD_TYPE_*} constants.
+         */
+        public int getType(int index) {
+            return nativeGetColumnType(statementPtr(), index);
+        }
+
+        public long getLong(int index) {
+            return nativeGetColumnLong(statementPtr(), index);
+        }
+
+        public double getDouble(int index) {
+            return nativeGetColumnDouble(statementPtr(), index);
+        }
+
+        public String getString(int index) {
+            return nativeGetColumnString(statementPtr(), index);
+        }
+
+        public byte[] getBlob(int index) {
+            return nativeGetColumnBlob(statementPtr(), index);
+        }
+
+        /**
+         * Resets the statement and returns it to the connection.  Does nothing if
+         * already closed.
+         */
+        public void close() {
+            if (mStatement != null) {
+                final PreparedStatement statement = mStatement;
+                mStatement = null;
+                releasePreparedStatement(statement);
+            }
+        }
+
+        private long statementPtr() {
+            if (mStatement == null) {
+                throw new IllegalStateException("The streaming query has been closed.");
+            }
+            return mStatement.mStatementPtr;
+        }
+    }
+
     /**
      * Holder type for a prepared statement.
      *
@@ -1411,6 +1592,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         protected void entryRemoved(boolean evicted, String key,
                 PreparedStatement oldValue, PreparedStatement newValue) {
             oldValue.mInCache = false;
+            if (evicted) {
+                mEvictedSql.put(key, Boolean.TRUE);
+            }
             if (!oldValue.mInUse) {
                 finalizePreparedStatement(oldValue);
             }
@@ -1451,6 +1635,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         private final SQLiteConnectionPool mPool;
         private long mResultLong = Long.MIN_VALUE;
         private String mResultString;
+        private long mRowCount;
 
         OperationLog(SQLiteConnectionPool pool) {
             mPool = pool;
@@ -1459,6 +1644,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         public int beginOperation(String kind, String sql, Object[] bindArgs) {
             mResultLong = Long.MIN_VALUE;
             mResultString = null;
+            mRowCount = 0;
 
             synchronized (mOperations) {
                 final int index = (mIndex + 1) % MAX_RECENT_OPERATIONS;
@@ -1543,6 +1729,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             mResultString = stringResult;
         }
 
+        public void setRowCount(long rowCount) {
+            mRowCount = rowCount;
+        }
+
         private boolean endOperationDeferLogLocked(int cookie) {
             final Operation operation = getOperationLocked(cookie);
             if (operation != null) {
@@ -1554,6 +1744,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
                 operation.mFinished = true;
                 final long execTime = operation.mEndTime - operation.mStartTime;
                 mPool.onStatementExecuted(execTime);
+                if (operation.mSql != null && operation.mKind.startsWith("execute")) {
+                    mPool.getStatementStats().onStatementExecuted(operation.mSql, execTime,
+                            mRowCount);
+                }
                 return NoPreloadHolder.DEBUG_LOG_SLOW_QUERIES && SQLiteDebug.shouldLogSlowQuery(
                         execTime);
             }
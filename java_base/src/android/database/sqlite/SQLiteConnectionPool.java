@@ -29,6 +29,8 @@ import android.util.Log;
 import android.util.PrefixPrinter;
 import android.util.Printer;
 
+import com.android.internal.util.LogLinearHistogram;
+
 import dalvik.system.CloseGuard;
 
 import java.io.Closeable;
@@ -83,12 +85,21 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Wait time histograms: 4 buckets per power of two, up to ~18 minutes in microseconds.
+    private static final int WAIT_SUB_BUCKET_BITS = 2;
+    private static final int WAIT_MAX_VALUE_BITS = 30;
+
+    // The number of statements reported in DbStats and in dumps.
+    private static final int MAX_REPORTED_STATEMENTS = 20;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
     private final AtomicBoolean mConnectionLeaked = new AtomicBoolean();
     private final SQLiteDatabaseConfiguration mConfiguration;
     private int mMaxConnectionPoolSize;
+    // True if requests that accept a non-primary connection never get the primary one.
+    private boolean mPrimaryConnectionReserved;
     private boolean mIsOpen;
     private int mNextConnectionId;
 
@@ -104,6 +115,22 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private final AtomicLong mTotalExecutionTimeCounter = new AtomicLong(0);
 
+    private final SQLiteStatementStats mStatementStats = new SQLiteStatementStats();
+
+    // Wait times of successful acquireConnection calls, in microseconds.
+    private final LogLinearHistogram mPrimaryWaitMicros =
+            new LogLinearHistogram(WAIT_SUB_BUCKET_BITS, WAIT_MAX_VALUE_BITS);
+    private final LogLinearHistogram mNonPrimaryWaitMicros =
+            new LogLinearHistogram(WAIT_SUB_BUCKET_BITS, WAIT_MAX_VALUE_BITS);
+
+    // Utilization statistics, guarded by mLock.  mAcquiredConnectionNanos is the integral
+    // of the number of acquired connections over time, up to mLastAcquiredCountChangeNanos.
+    private final long mStatsStartNanos = System.nanoTime();
+    private long mLastAcquiredCountChangeNanos = mStatsStartNanos;
+    private long mAcquiredConnectionNanos;
+    private int mPeakAcquiredConnections;
+    private long mWaitCount;
+
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
         // The connection should be returned to the pool as usual.
@@ -373,7 +400,14 @@ public final class SQLiteConnectionPool implements Closeable {
      */
     public SQLiteConnection acquireConnection(String sql, int connectionFlags,
             CancellationSignal cancellationSignal) {
+        final long startNanos = System.nanoTime();
         SQLiteConnection con = waitForConnection(sql, connectionFlags, cancellationSignal);
+        final long waitMicros = (System.nanoTime() - startNanos) / 1000;
+        if ((connectionFlags & CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY) != 0) {
+            mPrimaryWaitMicros.add(waitMicros);
+        } else {
+            mNonPrimaryWaitMicros.add(waitMicros);
+        }
         synchronized (mLock) {
             if (mIdleConnectionHandler != null) {
                 mIdleConnectionHandler.connectionAcquired(con);
@@ -399,6 +433,7 @@ public final class SQLiteConnectionPool implements Closeable {
             if (mIdleConnectionHandler != null) {
                 mIdleConnectionHandler.connectionReleased(connection);
             }
+            noteAcquiredCountChangingLocked();
             AcquiredConnectionStatus status = mAcquiredConnections.remove(connection);
             if (status == null) {
                 throw new IllegalStateException("Cannot perform this operation "
@@ -479,6 +514,7 @@ public final class SQLiteConnectionPool implements Closeable {
      */
     public void collectDbStats(ArrayList<DbStats> dbStatsList) {
         synchronized (mLock) {
+            final int start = dbStatsList.size();
             if (mAvailablePrimaryConnection != null) {
                 mAvailablePrimaryConnection.collectDbStats(dbStatsList);
             }
@@ -490,7 +526,52 @@ public final class SQLiteConnectionPool implements Closeable {
             for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
                 connection.collectDbStatsUnsafe(dbStatsList);
             }
+
+            final SQLiteDebug.ConnectionPoolStats poolStats = getConnectionPoolStatsLocked();
+            for (int i = start; i < dbStatsList.size(); i++) {
+                dbStatsList.get(i).connectionPool = poolStats;
+            }
+        }
+    }
+
+    private SQLiteDebug.ConnectionPoolStats getConnectionPoolStatsLocked() {
+        final SQLiteDebug.ConnectionPoolStats stats = new SQLiteDebug.ConnectionPoolStats();
+        final long now = System.nanoTime();
+        final int acquiredCount = mAcquiredConnections.size();
+        stats.maxConnections = mMaxConnectionPoolSize;
+        stats.acquiredConnections = acquiredCount;
+        stats.peakAcquiredConnections = mPeakAcquiredConnections;
+        for (ConnectionWaiter waiter = mConnectionWaiterQueue; waiter != null;
+                waiter = waiter.mNext) {
+            stats.waitingThreads += 1;
+        }
+        stats.acquireCount = mPrimaryWaitMicros.getCount() + mNonPrimaryWaitMicros.getCount();
+        stats.waitCount = mWaitCount;
+        final long elapsedNanos = now - mStatsStartNanos;
+        if (elapsedNanos > 0) {
+            final long acquiredNanos = mAcquiredConnectionNanos
+                    + acquiredCount * (now - mLastAcquiredCountChangeNanos);
+            stats.utilization = (float) ((double) acquiredNanos
+                    / ((double) elapsedNanos * mMaxConnectionPoolSize));
         }
+        stats.primaryWaitP50Micros = mPrimaryWaitMicros.getPercentile(50);
+        stats.primaryWaitP99Micros = mPrimaryWaitMicros.getPercentile(99);
+        stats.primaryWaitMaxMicros = mPrimaryWaitMicros.getMax();
+        stats.nonPrimaryWaitP50Micros = mNonPrimaryWaitMicros.getPercentile(50);
+        stats.nonPrimaryWaitP99Micros = mNonPrimaryWaitMicros.getPercentile(99);
+        stats.nonPrimaryWaitMaxMicros = mNonPrimaryWaitMicros.getMax();
+        stats.statementCacheHits = mStatementStats.getCacheHitCount();
+        stats.statementCacheMisses = mStatementStats.getCacheMissCount();
+        stats.statements = mStatementStats.getTopStatements(MAX_REPORTED_STATEMENTS);
+        return stats;
+    }
+
+    // Must be called before adding or removing an acquired connection.
+    private void noteAcquiredCountChangingLocked() {
+        final long now = System.nanoTime();
+        mAcquiredConnectionNanos += mAcquiredConnections.size()
+                * (now - mLastAcquiredCountChangeNanos);
+        mLastAcquiredCountChangeNanos = now;
     }
 
     // Might throw.
@@ -534,6 +615,10 @@ public final class SQLiteConnectionPool implements Closeable {
         mTotalExecutionTimeCounter.addAndGet(executionTimeMs);
     }
 
+    SQLiteStatementStats getStatementStats() {
+        return mStatementStats;
+    }
+
     // Can't throw.
     private void closeAvailableConnectionsAndLogExceptionsLocked() {
         closeAvailableNonPrimaryConnectionsAndLogExceptionsLocked();
@@ -688,7 +773,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 connection = tryAcquireNonPrimaryConnectionLocked(
                         sql, connectionFlags); // might throw
             }
-            if (connection == null) {
+            if (connection == null && canUsePrimaryConnectionLocked(wantPrimaryConnection)) {
                 connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
             }
             if (connection != null) {
@@ -696,6 +781,7 @@ public final class SQLiteConnectionPool implements Closeable {
             }
 
             // No connections available.  Enqueue a waiter in priority order.
+            mWaitCount += 1;
             final int priority = getPriority(connectionFlags);
             final long startTime = SystemClock.uptimeMillis();
             waiter = obtainConnectionWaiterLocked(Thread.currentThread(), startTime,
@@ -880,7 +966,8 @@ public final class SQLiteConnectionPool implements Closeable {
                             nonPrimaryConnectionNotAvailable = true;
                         }
                     }
-                    if (connection == null && !primaryConnectionNotAvailable) {
+                    if (connection == null && !primaryConnectionNotAvailable
+                            && canUsePrimaryConnectionLocked(waiter.mWantPrimaryConnection)) {
                         connection = tryAcquirePrimaryConnectionLocked(
                                 waiter.mConnectionFlags); // might throw
                         if (connection == null) {
@@ -992,7 +1079,10 @@ public final class SQLiteConnectionPool implements Closeable {
             final boolean readOnly = (connectionFlags & CONNECTION_FLAG_READ_ONLY) != 0;
             connection.setOnlyAllowReadOnlyOperations(readOnly);
 
+            noteAcquiredCountChangingLocked();
             mAcquiredConnections.put(connection, AcquiredConnectionStatus.NORMAL);
+            mPeakAcquiredConnections = Math.max(mPeakAcquiredConnections,
+                    mAcquiredConnections.size());
         } catch (RuntimeException ex) {
             Log.e(TAG, "Failed to prepare acquired connection for session, closing it: "
                     + connection +", connectionFlags=" + connectionFlags);
@@ -1012,10 +1102,13 @@ public final class SQLiteConnectionPool implements Closeable {
                     break;
                 }
 
-                // If we are holding the primary connection then we are blocking the waiter.
-                // Likewise, if we are holding a non-primary connection and the waiter
-                // would accept a non-primary connection, then we are blocking the waier.
-                if (holdingPrimaryConnection || !waiter.mWantPrimaryConnection) {
+                // If we are holding the primary connection then we are blocking the waiter,
+                // unless the waiter cannot use it.  Likewise, if we are holding a
+                // non-primary connection and the waiter would accept a non-primary
+                // connection, then we are blocking the waier.
+                if (holdingPrimaryConnection
+                        ? canUsePrimaryConnectionLocked(waiter.mWantPrimaryConnection)
+                        : !waiter.mWantPrimaryConnection) {
                     return true;
                 }
 
@@ -1029,10 +1122,23 @@ public final class SQLiteConnectionPool implements Closeable {
         return (connectionFlags & CONNECTION_FLAG_INTERACTIVE) != 0 ? 1 : 0;
     }
 
+    private boolean canUsePrimaryConnectionLocked(boolean wantPrimaryConnection) {
+        return wantPrimaryConnection || !mPrimaryConnectionReserved;
+    }
+
     private void setMaxConnectionPoolSizeLocked() {
+        mPrimaryConnectionReserved = false;
         if (!mConfiguration.isInMemoryDb()
                 && (mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
             mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            if ((mConfiguration.openFlags
+                    & SQLiteDatabase.ENABLE_ADAPTIVE_CONNECTION_POOL) != 0) {
+                // One reader connection per core, in addition to the primary connection,
+                // which is left to the requests that need it.
+                mMaxConnectionPoolSize = Math.max(mMaxConnectionPoolSize,
+                        1 + Runtime.getRuntime().availableProcessors());
+                mPrimaryConnectionReserved = mMaxConnectionPoolSize > 1;
+            }
         } else {
             // We don't actually need to always restrict the connection pool size to 1
             // for non-WAL databases.  There might be reasons to use connection pooling
@@ -1108,7 +1214,10 @@ public final class SQLiteConnectionPool implements Closeable {
             boolean isCompatibilityWalEnabled = mConfiguration.isLegacyCompatibilityWalEnabled();
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
-            printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            printer.println("  Max connections: " + mMaxConnectionPoolSize
+                    + (mPrimaryConnectionReserved ? " (primary reserved)" : ""));
+            printer.println("  Statistics: " + getConnectionPoolStatsLocked());
+            mStatementStats.dump(printer, MAX_REPORTED_STATEMENTS);
             printer.println("  Total execution time: " + mTotalExecutionTimeCounter);
             printer.println("  Configuration: openFlags=" + mConfiguration.openFlags
                     + ", isLegacyCompatibilityWalEnabled=" + isCompatibilityWalEnabled
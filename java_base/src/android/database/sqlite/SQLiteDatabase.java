@@ -272,6 +272,22 @@ public final class SQLiteDatabase extends SQLiteClosable {
      */
     public static final int ENABLE_LEGACY_COMPATIBILITY_WAL = 0x80000000;
 
+    /**
+     * Open flag: Flag for {@link #openDatabase} to size and schedule the connection pool
+     * for concurrent readers when write-ahead logging is enabled.
+     * <p>
+     * The pool then opens up to one non-primary connection per processor core for
+     * readers, and keeps the primary connection for the operations that need it, so
+     * that a long read does not hold up writers and a long write transaction only
+     * holds up the readers that outnumber the cores.
+     * </p><p>
+     * This flag has no effect unless write-ahead logging is enabled.
+     * </p>
+     *
+     * @see #enableWriteAheadLogging
+     */
+    public static final int ENABLE_ADAPTIVE_CONNECTION_POOL = 0x08000000;
+
     /**
      * Absolute max value that can be set by {@link #setMaxSqlCacheSize(int)}.
      *
@@ -280,6 +296,25 @@ public final class SQLiteDatabase extends SQLiteClosable {
      */
     public static final int MAX_SQL_CACHE_SIZE = 100;
 
+    /**
+     * Function flag: the function always returns the same result for the same
+     * arguments, so SQLite may evaluate it once per statement and use it in indexes.
+     *
+     * @see #setCustomScalarFunction(String, int, int, ScalarFunction)
+     */
+    public static final int FUNCTION_FLAG_DETERMINISTIC = 0x00000800; // update native code if changing
+
+    /**
+     * Function flag: the function can only be called from top-level SQL, not from
+     * triggers, views or schema structures such as CHECK constraints.
+     *
+     * @see #setCustomScalarFunction(String, int, int, ScalarFunction)
+     */
+    public static final int FUNCTION_FLAG_DIRECT_ONLY = 0x00080000;   // update native code if changing
+
+    private static final int FUNCTION_FLAGS_MASK =
+            FUNCTION_FLAG_DETERMINISTIC | FUNCTION_FLAG_DIRECT_ONLY;
+
     private SQLiteDatabase(final String path, final int openFlags,
             CursorFactory cursorFactory, DatabaseErrorHandler errorHandler,
             int lookasideSlotSize, int lookasideSlotCount, long idleConnectionTimeoutMs,
@@ -1033,6 +1068,108 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Register a typed custom scalar function that can be called from SQL
+     * expressions.
+     * <p>
+     * Unlike {@link #setCustomScalarFunction(String, UnaryOperator)}, the arguments
+     * and the result keep their SQLite types: integers and floats cross from SQLite
+     * to Java and back as primitives, without being formatted to and parsed from
+     * strings, and the function may take any number of arguments.
+     * <p>
+     * For example, a function registered as {@code DISTANCE} with 4 arguments could
+     * be used in a query like
+     * {@code SELECT name FROM places ORDER BY DISTANCE(lat, lng, ?, ?)}.
+     * <p>
+     * When attempting to register multiple functions with the same function
+     * name and number of arguments, SQLite will replace any previously defined
+     * functions with the latest definition, regardless of what function type they
+     * are. Functions with the same name and different numbers of arguments are
+     * overloads, and are all kept. SQLite does not support unregistering functions.
+     *
+     * @param functionName Case-insensitive name to register this function
+     *            under, limited to 255 UTF-8 bytes in length.
+     * @param numArgs The number of arguments of the function, between 0 and 127,
+     *            or -1 for any number.
+     * @param flags A combination of {@link #FUNCTION_FLAG_DETERMINISTIC} and
+     *            {@link #FUNCTION_FLAG_DIRECT_ONLY}, or 0.
+     * @param scalarFunction The function invoked for each call.
+     * @throws SQLiteException if the custom function could not be registered.
+     * @see #setCustomAggregateFunction(String, int, int, AggregateFunction)
+     */
+    public void setCustomScalarFunction(@NonNull String functionName,
+            @IntRange(from = -1, to = 127) int numArgs, int flags,
+            @NonNull ScalarFunction scalarFunction) throws SQLiteException {
+        Objects.requireNonNull(functionName);
+        Objects.requireNonNull(scalarFunction);
+        setTypedFunction(new SQLiteTypedFunction(functionName, numArgs,
+                checkFunctionFlags(flags), scalarFunction));
+    }
+
+    /**
+     * Register a typed custom aggregate function that can be called from SQL
+     * expressions.
+     * <p>
+     * Unlike {@link #setCustomAggregateFunction(String, BinaryOperator)}, the
+     * arguments and the result keep their SQLite types, the function may take any
+     * number of arguments, and it accumulates into a state of its own instead of
+     * reducing strings.  If {@code aggregateFunction} is a {@link WindowFunction}, it
+     * can also be used as an aggregate window function, as in
+     * {@code SELECT WEIGHTED_AVG(score, weight) OVER (ORDER BY time ROWS 9 PRECEDING)}.
+     * <p>
+     * When attempting to register multiple functions with the same function
+     * name and number of arguments, SQLite will replace any previously defined
+     * functions with the latest definition, regardless of what function type they
+     * are. Functions with the same name and different numbers of arguments are
+     * overloads, and are all kept. SQLite does not support unregistering functions.
+     *
+     * @param functionName Case-insensitive name to register this function
+     *            under, limited to 255 UTF-8 bytes in length.
+     * @param numArgs The number of arguments of the function, between 0 and 127,
+     *            or -1 for any number.
+     * @param flags A combination of {@link #FUNCTION_FLAG_DETERMINISTIC} and
+     *            {@link #FUNCTION_FLAG_DIRECT_ONLY}, or 0.
+     * @param aggregateFunction The function invoked for each row and result.
+     * @throws SQLiteException if the custom function could not be registered.
+     * @see #setCustomScalarFunction(String, int, int, ScalarFunction)
+     */
+    public void setCustomAggregateFunction(@NonNull String functionName,
+            @IntRange(from = -1, to = 127) int numArgs, int flags,
+            @NonNull AggregateFunction<?> aggregateFunction) throws SQLiteException {
+        Objects.requireNonNull(functionName);
+        Objects.requireNonNull(aggregateFunction);
+        setTypedFunction(new SQLiteTypedFunction(functionName, numArgs,
+                checkFunctionFlags(flags), aggregateFunction));
+    }
+
+    private static int checkFunctionFlags(int flags) {
+        if ((flags & ~FUNCTION_FLAGS_MASK) != 0) {
+            throw new IllegalArgumentException("Invalid function flags: 0x"
+                    + Integer.toHexString(flags));
+        }
+        return flags;
+    }
+
+    private void setTypedFunction(SQLiteTypedFunction function) {
+        synchronized (mLock) {
+            throwIfNotOpenLocked();
+
+            final Pair<String, Integer> key = function.getKey();
+            final SQLiteTypedFunction previous =
+                    mConfigurationLocked.customTypedFunctions.put(key, function);
+            try {
+                mConnectionPoolLocked.reconfigure(mConfigurationLocked);
+            } catch (RuntimeException ex) {
+                if (previous != null) {
+                    mConfigurationLocked.customTypedFunctions.put(key, previous);
+                } else {
+                    mConfigurationLocked.customTypedFunctions.remove(key);
+                }
+                throw ex;
+            }
+        }
+    }
+
     /**
      * Execute the given SQL statement on all connections to this database.
      * <p>
@@ -1536,6 +1673,66 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Runs the provided SQL and returns a forward-only {@link Cursor} that reads the
+     * result rows one at a time, as they are stepped, instead of filling a
+     * {@link android.database.CursorWindow}.  The memory used does not depend on the
+     * number of rows, which makes this suited to reading large result sets once.
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param bindArgs the values bound to the ?s in the query, or null if none.
+     * @return A {@link SQLiteStreamingCursor}, which is positioned before the first entry.
+     * @see #queryStreaming(String, Object[], CancellationSignal)
+     */
+    public Cursor queryStreaming(String sql, Object[] bindArgs) {
+        return queryStreaming(sql, bindArgs, null);
+    }
+
+    /**
+     * Runs the provided SQL and returns a forward-only {@link Cursor} that reads the
+     * result rows one at a time, as they are stepped, instead of filling a
+     * {@link android.database.CursorWindow}.  The memory used does not depend on the
+     * number of rows, which makes this suited to reading large result sets once.
+     * <p>
+     * The cursor can only move forward, and its count is only known once every row
+     * has been read; see {@link SQLiteStreamingCursor}.
+     * </p><p>
+     * The cursor keeps a connection acquired by the calling thread until its last row
+     * has been read or it is closed, so it must be used and closed on that thread, and
+     * closed promptly.  In the meantime, other database operations on the same thread
+     * run on that connection, which is read-only unless a transaction was begun before
+     * the query: writes on the same thread must be made in such a transaction.
+     * </p>
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param bindArgs the values bound to the ?s in the query, or null if none.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * If the operation is canceled, then {@link OperationCanceledException} will be thrown
+     * when the query is executed or a row is read.
+     * @return A {@link SQLiteStreamingCursor}, which is positioned before the first entry.
+     */
+    public Cursor queryStreaming(String sql, Object[] bindArgs,
+            CancellationSignal cancellationSignal) {
+        acquireReference();
+        try {
+            final SQLiteSession session = getThreadSession();
+            final SQLiteConnection.StreamingQuery query = session.executeForStreaming(sql,
+                    bindArgs, getThreadDefaultConnectionFlags(true /*readOnly*/),
+                    cancellationSignal);
+            try {
+                // The cursor releases the reference when it releases the query.
+                final Cursor cursor = new SQLiteStreamingCursor(this, session, query, sql);
+                acquireReference();
+                return cursor;
+            } catch (RuntimeException ex) {
+                session.closeStreaming(query);
+                throw ex;
+            }
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Convenience method for inserting a row into the database.
      *
@@ -2028,6 +2225,11 @@ public final class SQLiteDatabase extends SQLiteClosable {
      * If this method is called with smaller size than the current maximum value,
      * then IllegalStateException is thrown.
      *<p>
+     * A connection that keeps preparing statements it recently evicted from its cache
+     * grows its cache by one statement each time, up to {@link #MAX_SQL_CACHE_SIZE}, so
+     * that the cache fits the statements in use.  This method resets the caches to the
+     * given size.
+     *<p>
      * This method is thread-safe.
      *
      * @param cacheSize the size of the cache. can be (0 to {@link #MAX_SQL_CACHE_SIZE})
@@ -2493,6 +2695,60 @@ public final class SQLiteDatabase extends SQLiteClosable {
         public void callback(String[] args);
     }
 
+    /**
+     * A typed custom scalar function.
+     *
+     * @see #setCustomScalarFunction(String, int, int, ScalarFunction)
+     */
+    public interface ScalarFunction {
+        /**
+         * Computes the result of one call.
+         *
+         * @param args The arguments of the call.
+         * @param result Where to set the result.  It is null unless set.
+         */
+        void apply(@NonNull SQLiteFunctionArgs args, @NonNull SQLiteFunctionResult result);
+    }
+
+    /**
+     * A typed custom aggregate function, which accumulates the rows of each group
+     * into a mutable state.
+     *
+     * @param <S> The type of the state.
+     * @see #setCustomAggregateFunction(String, int, int, AggregateFunction)
+     */
+    public interface AggregateFunction<S> {
+        /**
+         * Returns a new state, for a group that has no rows yet.
+         */
+        @NonNull S createState();
+
+        /**
+         * Adds a row to a state.
+         */
+        void step(@NonNull S state, @NonNull SQLiteFunctionArgs args);
+
+        /**
+         * Sets the result for a state.  For window functions, this may be called
+         * several times, and the state may be stepped again afterwards.
+         */
+        void result(@NonNull S state, @NonNull SQLiteFunctionResult result);
+    }
+
+    /**
+     * A typed custom aggregate function that can also be used as a window function,
+     * because rows can be removed from its state.
+     *
+     * @param <S> The type of the state.
+     * @see #setCustomAggregateFunction(String, int, int, AggregateFunction)
+     */
+    public interface WindowFunction<S> extends AggregateFunction<S> {
+        /**
+         * Removes a row, previously added with {@link #step}, from a state.
+         */
+        void inverse(@NonNull S state, @NonNull SQLiteFunctionArgs args);
+    }
+
     /**
      * Wrapper for configuration parameters that are used for opening {@link SQLiteDatabase}
      */
@@ -2822,7 +3078,8 @@ public final class SQLiteDatabase extends SQLiteClosable {
             OPEN_READONLY,
             CREATE_IF_NECESSARY,
             NO_LOCALIZED_COLLATORS,
-            ENABLE_WRITE_AHEAD_LOGGING
+            ENABLE_WRITE_AHEAD_LOGGING,
+            ENABLE_ADAPTIVE_CONNECTION_POOL
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface DatabaseOpenFlags {}
@@ -100,6 +100,13 @@ public final class SQLiteDatabaseConfiguration {
     public final ArrayMap<String, BinaryOperator<String>> customAggregateFunctions
             = new ArrayMap<>();
 
+    /**
+     * The typed custom scalar, aggregate and window functions to register, keyed by
+     * {@link SQLiteTypedFunction#getKey}.
+     */
+    public final ArrayMap<Pair<String, Integer>, SQLiteTypedFunction> customTypedFunctions
+            = new ArrayMap<>();
+
     /**
      * The statements to execute to initialize each connection.
      */
@@ -198,6 +205,8 @@ public final class SQLiteDatabaseConfiguration {
         customScalarFunctions.putAll(other.customScalarFunctions);
         customAggregateFunctions.clear();
         customAggregateFunctions.putAll(other.customAggregateFunctions);
+        customTypedFunctions.clear();
+        customTypedFunctions.putAll(other.customTypedFunctions);
         perConnectionSql.clear();
         perConnectionSql.addAll(other.perConnectionSql);
         lookasideSlotSize = other.lookasideSlotSize;
@@ -164,6 +164,9 @@ public final class SQLiteDebug {
         /** statement cache stats: hits/misses/cachesize */
         public String cache;
 
+        /** statistics of the connection pool the connection belongs to, or null */
+        public ConnectionPoolStats connectionPool;
+
         public DbStats(String dbName, long pageCount, long pageSize, int lookaside,
             int hits, int misses, int cachesize) {
             this.dbName = dbName;
@@ -174,6 +177,97 @@ public final class SQLiteDebug {
         }
     }
 
+    /**
+     * contains statistics about the connection pool of a database.  The wait times are
+     * estimates, within 25% of the real values.
+     */
+    public static class ConnectionPoolStats {
+        /** the maximum number of open connections, including the primary connection */
+        public int maxConnections;
+
+        /** the number of connections currently acquired by sessions */
+        public int acquiredConnections;
+
+        /** the largest number of connections acquired at the same time */
+        public int peakAcquiredConnections;
+
+        /** the number of threads currently waiting for a connection */
+        public int waitingThreads;
+
+        /** the number of connections acquired, and how many of them had to wait */
+        public long acquireCount;
+        public long waitCount;
+
+        /**
+         * the average fraction of the maximum number of connections that was acquired,
+         * since the pool was opened
+         */
+        public float utilization;
+
+        /** wait times of requests for the primary connection, in microseconds */
+        public long primaryWaitP50Micros;
+        public long primaryWaitP99Micros;
+        public long primaryWaitMaxMicros;
+
+        /** wait times of requests that accept a non-primary connection, in microseconds */
+        public long nonPrimaryWaitP50Micros;
+        public long nonPrimaryWaitP99Micros;
+        public long nonPrimaryWaitMaxMicros;
+
+        /** lookups of cacheable statements in the prepared statement caches of all the
+         * connections: hits and misses */
+        public long statementCacheHits;
+        public long statementCacheMisses;
+
+        /** the statements that took the most time, most first */
+        public ArrayList<StatementStats> statements;
+
+        @Override
+        public String toString() {
+            return "connections " + acquiredConnections + "/" + maxConnections
+                    + " (peak " + peakAcquiredConnections + ", utilization "
+                    + Math.round(utilization * 100) + "%), waiting " + waitingThreads
+                    + ", acquired " + acquireCount + " (waited " + waitCount + ")"
+                    + ", primary wait us p50/p99/max " + primaryWaitP50Micros + "/"
+                    + primaryWaitP99Micros + "/" + primaryWaitMaxMicros
+                    + ", non-primary wait us p50/p99/max " + nonPrimaryWaitP50Micros + "/"
+                    + nonPrimaryWaitP99Micros + "/" + nonPrimaryWaitMaxMicros
+                    + ", statement cache hits/misses " + statementCacheHits + "/"
+                    + statementCacheMisses;
+        }
+    }
+
+    /**
+     * contains statistics about the executions of the statements that have the same SQL
+     * once normalized by {@link SQLiteTokenizer#normalize}
+     */
+    public static class StatementStats {
+        /** the normalized SQL */
+        public String sql;
+
+        /** the number of executions */
+        public long count;
+
+        /** the total execution time, in milliseconds */
+        public long totalTimeMillis;
+
+        /** the total number of rows returned or changed */
+        public long rows;
+
+        public StatementStats(String sql, long count, long totalTimeMillis, long rows) {
+            this.sql = sql;
+            this.count = count;
+            this.totalTimeMillis = totalTimeMillis;
+            this.rows = rows;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", totalTime=" + totalTimeMillis + "ms, rows=" + rows
+                    + ", sql=\"" + sql + "\"";
+        }
+    }
+
     /**
      * return all pager and database stats for the current process.
      * @return {@link PagerStats}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.annotation.Nullable;
+import android.database.Cursor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The arguments of a call to a typed custom function registered with
+ * {@link SQLiteDatabase#setCustomScalarFunction(String, int, int, SQLiteDatabase.ScalarFunction)}
+ * or {@link SQLiteDatabase#setCustomAggregateFunction(String, int, int,
+ * SQLiteDatabase.AggregateFunction)}.
+ * <p>
+ * Integer and floating point arguments are passed as primitives, so reading them
+ * allocates nothing.  The object is reused for the following calls on the same
+ * connection and must not be kept once the function returns.
+ * </p>
+ */
+public final class SQLiteFunctionArgs {
+    // Filled by native code before each call.  Each argument is in the array matching
+    // its type: mLongs for integers, mDoubles for floats, mObjects for strings and blobs.
+    private int mCount;
+    private int[] mTypes = new int[0];
+    private long[] mLongs = new long[0];
+    private double[] mDoubles = new double[0];
+    private Object[] mObjects = new Object[0];
+
+    // Called from native.
+    @SuppressWarnings("unused")
+    private void reset(int count) {
+        if (mTypes.length < count) {
+            mTypes = new int[count];
+            mLongs = new long[count];
+            mDoubles = new double[count];
+            mObjects = new Object[count];
+        } else {
+            for (int i = 0; i < mCount; i++) {
+                mObjects[i] = null;
+            }
+        }
+        mCount = count;
+    }
+
+    /**
+     * Returns the number of arguments.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the type of an argument, one of the {@code Cursor.FIELD_TYPE_*} constants.
+     */
+    public @Cursor.FieldType int getType(int index) {
+        checkIndex(index);
+        return mTypes[index];
+    }
+
+    /**
+     * Returns true if an argument is null.
+     */
+    public boolean isNull(int index) {
+        return getType(index) == Cursor.FIELD_TYPE_NULL;
+    }
+
+    /**
+     * Returns an argument as a long.  Floats are truncated, strings are parsed if they
+     * hold an integer and are 0 otherwise, and nulls and blobs are 0.
+     */
+    public long getLong(int index) {
+        switch (getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return mLongs[index];
+            case Cursor.FIELD_TYPE_FLOAT:
+                return (long) mDoubles[index];
+            case Cursor.FIELD_TYPE_STRING:
+                try {
+                    return Long.parseLong(((String) mObjects[index]).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns an argument as an int, truncating the value returned by {@link #getLong}.
+     */
+    public int getInt(int index) {
+        return (int) getLong(index);
+    }
+
+    /**
+     * Returns an argument as a double.  Strings are parsed if they hold a number and
+     * are 0 otherwise, and nulls and blobs are 0.
+     */
+    public double getDouble(int index) {
+        switch (getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return mLongs[index];
+            case Cursor.FIELD_TYPE_FLOAT:
+                return mDoubles[index];
+            case Cursor.FIELD_TYPE_STRING:
+                try {
+                    return Double.parseDouble(((String) mObjects[index]).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns an argument as a string, or null if it is null.  Blobs are decoded as UTF-8.
+     */
+    public @Nullable String getString(int index) {
+        switch (getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return Long.toString(mLongs[index]);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return Double.toString(mDoubles[index]);
+            case Cursor.FIELD_TYPE_STRING:
+                return (String) mObjects[index];
+            case Cursor.FIELD_TYPE_BLOB:
+                return new String((byte[]) mObjects[index], StandardCharsets.UTF_8);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns an argument as a blob, or null if it is null.  Other types are converted
+     * to their UTF-8 text.
+     */
+    public @Nullable byte[] getBlob(int index) {
+        switch (getType(index)) {
+            case Cursor.FIELD_TYPE_BLOB:
+                return (byte[]) mObjects[index];
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                return getString(index).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IllegalArgumentException("Invalid argument index " + index
+                    + ", the function was called with " + mCount + " arguments.");
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.util.Random;
+
+/**
+ * Compares typed custom functions with the String-based ones, on a numeric scalar
+ * function and a numeric sum aggregate over an in-memory table:
+ * <pre>
+ * SQLiteFunctionBenchmark [rows] [runs]
+ * </pre>
+ * <p>
+ * Each query is run once to warm up, then timed over the given number of runs.  The
+ * results of both paths are compared, so that a faster but wrong path is reported.
+ * </p>
+ */
+public final class SQLiteFunctionBenchmark {
+    private static final int DEFAULT_ROWS = 100000;
+    private static final int DEFAULT_RUNS = 10;
+
+    // The typed and String functions compute the same values.
+    private static double scale(double x) {
+        return x * 1.5 + 1;
+    }
+
+    private SQLiteFunctionBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        final int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            fill(db, rows);
+
+            db.setCustomScalarFunction("scale_string",
+                    s -> Double.toString(scale(Double.parseDouble(s))));
+            db.setCustomScalarFunction("scale_typed", 1, SQLiteDatabase.FUNCTION_FLAG_DETERMINISTIC,
+                    (a, r) -> r.setDouble(scale(a.getDouble(0))));
+
+            db.setCustomAggregateFunction("sum_string",
+                    (a, b) -> Double.toString(Double.parseDouble(a) + Double.parseDouble(b)));
+            db.setCustomAggregateFunction("sum_typed", 1, SQLiteDatabase.FUNCTION_FLAG_DETERMINISTIC,
+                    new SQLiteDatabase.AggregateFunction<double[]>() {
+                        @Override
+                        public double[] createState() {
+                            return new double[1];
+                        }
+
+                        @Override
+                        public void step(double[] state, SQLiteFunctionArgs args) {
+                            state[0] += args.getDouble(0);
+                        }
+
+                        @Override
+                        public void result(double[] state, SQLiteFunctionResult result) {
+                            result.setDouble(state[0]);
+                        }
+                    });
+
+            compare(db, "scalar", "SELECT total(scale_string(x)) FROM t",
+                    "SELECT total(scale_typed(x)) FROM t", rows, runs);
+            compare(db, "aggregate", "SELECT sum_string(x) FROM t",
+                    "SELECT sum_typed(x) FROM t", rows, runs);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void fill(SQLiteDatabase db, int rows) {
+        db.execSQL("CREATE TABLE t (x REAL)");
+        final Random random = new Random(0);
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO t VALUES (?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                insert.bindDouble(1, random.nextInt(1000000) / 100.0);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    private static void compare(SQLiteDatabase db, String name, String stringSql,
+            String typedSql, int rows, int runs) {
+        final SQLiteStatement string = db.compileStatement(stringSql);
+        final SQLiteStatement typed = db.compileStatement(typedSql);
+        try {
+            final double stringValue = Double.parseDouble(string.simpleQueryForString());
+            final double typedValue = Double.parseDouble(typed.simpleQueryForString());
+            // Formatting every intermediate value to a String may round it differently.
+            final boolean same = Math.abs(stringValue - typedValue)
+                    <= 1e-9 * Math.max(1, Math.abs(typedValue));
+
+            final long stringNanos = time(string, runs);
+            final long typedNanos = time(typed, runs);
+            System.out.println(name + ": String " + format(stringNanos, rows)
+                    + ", typed " + format(typedNanos, rows)
+                    + ", speedup " + String.format("%.2f", (double) stringNanos / typedNanos)
+                    + (same ? "" : ", RESULTS DIFFER: " + stringValue + " != " + typedValue));
+        } finally {
+            string.close();
+            typed.close();
+        }
+    }
+
+    // Returns the average time of a run, in nanoseconds.
+    private static long time(SQLiteStatement statement, int runs) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            statement.simpleQueryForString();
+        }
+        return (System.nanoTime() - start) / Math.max(1, runs);
+    }
+
+    private static String format(long nanos, int rows) {
+        return (nanos / 1000000) + " ms (" + (nanos > 0 ? rows * 1000000000L / nanos : 0)
+                + " rows/s)";
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.annotation.Nullable;
+import android.database.Cursor;
+
+/**
+ * The result of a call to a typed custom function.  The function sets it with one of
+ * the setters; if it sets none, the result is null.
+ * <p>
+ * Integer and floating point results are passed back as primitives.  The object is
+ * reused for the following calls on the same connection and must not be kept once
+ * the function returns.
+ * </p>
+ */
+public final class SQLiteFunctionResult {
+    // Read by native code after each call.
+    private int mType;
+    private long mLong;
+    private double mDouble;
+    private Object mObject;
+
+    // Called from native.
+    @SuppressWarnings("unused")
+    private void reset() {
+        mType = Cursor.FIELD_TYPE_NULL;
+        mObject = null;
+    }
+
+    /**
+     * Sets the result to null.
+     */
+    public void setNull() {
+        reset();
+    }
+
+    /**
+     * Sets the result to an integer.
+     */
+    public void setLong(long value) {
+        mType = Cursor.FIELD_TYPE_INTEGER;
+        mLong = value;
+        mObject = null;
+    }
+
+    /**
+     * Sets the result to a floating point value.
+     */
+    public void setDouble(double value) {
+        mType = Cursor.FIELD_TYPE_FLOAT;
+        mDouble = value;
+        mObject = null;
+    }
+
+    /**
+     * Sets the result to a string, or to null if {@code value} is null.
+     */
+    public void setString(@Nullable String value) {
+        if (value == null) {
+            reset();
+            return;
+        }
+        mType = Cursor.FIELD_TYPE_STRING;
+        mObject = value;
+    }
+
+    /**
+     * Sets the result to a blob, or to null if {@code value} is null.
+     */
+    public void setBlob(@Nullable byte[] value) {
+        if (value == null) {
+            reset();
+            return;
+        }
+        mType = Cursor.FIELD_TYPE_BLOB;
+        mObject = value;
+    }
+}
@@ -841,6 +841,61 @@ public final class SQLiteSession {
         }
     }
 
+    /**
+     * Prepares a statement whose result rows are read one at a time, without a
+     * {@link CursorWindow}.  The connection stays acquired by this session until the
+     * query is passed to {@link #closeStreaming}, so both must happen on the thread
+     * that owns this session.
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @param connectionFlags The connection flags to use if a connection must be
+     * acquired by this operation.  Refer to {@link SQLiteConnectionPool}.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The query, positioned before the first row.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public SQLiteConnection.StreamingQuery executeForStreaming(String sql, Object[] bindArgs,
+            int connectionFlags, CancellationSignal cancellationSignal) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+
+        switch (DatabaseUtils.getSqlStatementType(sql)) {
+            case DatabaseUtils.STATEMENT_BEGIN:
+            case DatabaseUtils.STATEMENT_COMMIT:
+            case DatabaseUtils.STATEMENT_ABORT:
+                throw new IllegalArgumentException(
+                        "Transactions cannot be started or ended by a streaming query.");
+        }
+
+        acquireConnection(sql, connectionFlags, cancellationSignal); // might throw
+        try {
+            return mConnection.executeForStreaming(sql, bindArgs,
+                    cancellationSignal); // might throw
+        } catch (RuntimeException ex) {
+            releaseConnection(); // might throw
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes a query returned by {@link #executeForStreaming} and releases the
+     * connection it kept acquired.
+     *
+     * @param query The query to close.
+     */
+    public void closeStreaming(SQLiteConnection.StreamingQuery query) {
+        try {
+            query.close();
+        } finally {
+            releaseConnection(); // might throw
+        }
+    }
+
     /**
      * Performs special reinterpretation of certain SQL statements such as "BEGIN",
      * "COMMIT" and "ROLLBACK" to ensure that transaction state invariants are
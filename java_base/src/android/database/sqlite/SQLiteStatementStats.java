@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.util.LruCache;
+import android.util.Printer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics about the statements executed on the connections of a database, grouped
+ * by their {@link SQLiteTokenizer#normalize normalized} SQL, and about the prepared
+ * statement caches of the connections.
+ * <p>
+ * Only the most recently executed {@link #MAX_STATEMENTS} statements are tracked, so
+ * that databases running generated SQL do not grow the statistics without bounds.
+ * </p><p>
+ * This class is thread-safe.
+ * </p>
+ */
+final class SQLiteStatementStats {
+    // The number of distinct normalized statements tracked.
+    private static final int MAX_STATEMENTS = 200;
+
+    // The number of SQL strings whose normalized form is remembered, so that
+    // executing a statement does not normally need to normalize its SQL.
+    private static final int MAX_NORMALIZED_SQL = SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+
+    private final LruCache<String, String> mNormalizedSql =
+            new LruCache<String, String>(MAX_NORMALIZED_SQL) {
+                @Override
+                protected String create(String sql) {
+                    return SQLiteTokenizer.normalize(sql);
+                }
+            };
+
+    // Guarded by itself.  Ordered from the least to the most recently executed.
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_STATEMENTS;
+                }
+            };
+
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mCacheMisses = new AtomicLong();
+
+    /**
+     * Records the execution of a statement.
+     *
+     * @param sql The SQL of the statement, as executed.
+     * @param timeMillis The time it took.
+     * @param rows The number of rows it returned or changed.
+     */
+    void onStatementExecuted(String sql, long timeMillis, long rows) {
+        final String normalizedSql = mNormalizedSql.get(sql);
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(normalizedSql);
+            if (entry == null) {
+                entry = new Entry(normalizedSql);
+                mEntries.put(normalizedSql, entry);
+            }
+            entry.count += 1;
+            entry.totalTimeMillis += timeMillis;
+            entry.rows += rows;
+        }
+    }
+
+    /**
+     * Records a lookup of a cacheable statement in the prepared statement cache of a
+     * connection.
+     */
+    void onPreparedStatementCacheLookup(boolean hit) {
+        (hit ? mCacheHits : mCacheMisses).incrementAndGet();
+    }
+
+    long getCacheHitCount() {
+        return mCacheHits.get();
+    }
+
+    long getCacheMissCount() {
+        return mCacheMisses.get();
+    }
+
+    /**
+     * Returns the statistics of the statements that took the most time, most first.
+     *
+     * @param max The maximum number of statements to return.
+     */
+    ArrayList<SQLiteDebug.StatementStats> getTopStatements(int max) {
+        final ArrayList<Entry> entries;
+        synchronized (mEntries) {
+            entries = new ArrayList<Entry>(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                entries.add(entry.copy());
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.totalTimeMillis, a.totalTimeMillis);
+            }
+        });
+
+        final int count = Math.min(max, entries.size());
+        final ArrayList<SQLiteDebug.StatementStats> result =
+                new ArrayList<SQLiteDebug.StatementStats>(count);
+        for (int i = 0; i < count; i++) {
+            final Entry entry = entries.get(i);
+            result.add(new SQLiteDebug.StatementStats(entry.sql, entry.count,
+                    entry.totalTimeMillis, entry.rows));
+        }
+        return result;
+    }
+
+    void dump(Printer printer, int maxStatements) {
+        final long hits = mCacheHits.get();
+        final long misses = mCacheMisses.get();
+        printer.println("  Prepared statement cache: hits=" + hits + ", misses=" + misses
+                + (hits + misses > 0 ? ", hitRate=" + (hits * 100 / (hits + misses)) + "%" : ""));
+        printer.println("  Statements taking the most time:");
+        final ArrayList<SQLiteDebug.StatementStats> statements = getTopStatements(maxStatements);
+        if (statements.isEmpty()) {
+            printer.println("    <none>");
+        }
+        for (int i = 0; i < statements.size(); i++) {
+            printer.println("    " + i + ": " + statements.get(i));
+        }
+    }
+
+    private static final class Entry {
+        final String sql;
+        long count;
+        long totalTimeMillis;
+        long rows;
+
+        Entry(String sql) {
+            this.sql = sql;
+        }
+
+        Entry copy() {
+            final Entry copy = new Entry(sql);
+            copy.count = count;
+            copy.totalTimeMillis = totalTimeMillis;
+            copy.rows = rows;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObservable;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * A forward-only {@link Cursor} returned by {@link SQLiteDatabase#queryStreaming}.
+ * <p>
+ * Each call to {@link #moveToNext} steps the underlying prepared statement and the
+ * column getters read the current row straight from it, so the rows are never copied
+ * to a {@link android.database.CursorWindow} and the memory used does not grow with
+ * the size of the result set.
+ * </p><p>
+ * Because of that, the cursor can only move forward by one row at a time, and
+ * {@link #getCount} is only known once every row has been read.  The methods that
+ * would need to go back or to know the count in advance throw
+ * {@link UnsupportedOperationException}.
+ * </p><p>
+ * The cursor holds a database connection from the moment the query starts until the
+ * last row has been read or the cursor is closed.  It must be used and closed on the
+ * thread that created it.
+ * </p>
+ */
+public final class SQLiteStreamingCursor implements Cursor {
+    private static final String TAG = "SQLiteStreamingCursor";
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteSession mSession;
+    private final String mSql;
+    private final String[] mColumnNames;
+    private final Thread mThread;
+
+    private final DataSetObservable mDataSetObservable = new DataSetObservable();
+    private final ContentObservable mContentObservable = new ContentObservable();
+    private Uri mNotifyUri;
+    private Bundle mExtras = Bundle.EMPTY;
+
+    // Null once all rows were read or the cursor was closed.
+    private SQLiteConnection.StreamingQuery mQuery;
+    private int mPos = -1;
+    private boolean mAfterLast;
+    private boolean mClosed;
+
+    SQLiteStreamingCursor(SQLiteDatabase database, SQLiteSession session,
+            SQLiteConnection.StreamingQuery query, String sql) {
+        mDatabase = database;
+        mSession = session;
+        mQuery = query;
+        mSql = sql;
+        mColumnNames = query.getColumnNames();
+        mThread = Thread.currentThread();
+    }
+
+    /**
+     * Returns the number of rows, which is only known once {@link #isAfterLast} is true.
+     *
+     * @throws UnsupportedOperationException if not all rows were read yet.
+     */
+    @Override
+    public int getCount() {
+        if (!mAfterLast) {
+            throw new UnsupportedOperationException(
+                    "The row count of a streaming cursor is not known before all rows are read.");
+        }
+        return mPos;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPos;
+    }
+
+    /**
+     * Moves forward by {@code offset} rows, which must not be negative.
+     */
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPos + offset);
+    }
+
+    /**
+     * Moves forward to the given row, which must not be before the current one.
+     */
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position < mPos) {
+            throw new UnsupportedOperationException("A streaming cursor can only move forward.");
+        }
+        while (mPos < position) {
+            if (!moveToNext()) {
+                return false;
+            }
+        }
+        return !mAfterLast && mPos >= 0;
+    }
+
+    /**
+     * Moves to the first row.  Only possible before any row was read.
+     */
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    /**
+     * Not supported: throws {@link UnsupportedOperationException}.
+     */
+    @Override
+    public boolean moveToLast() {
+        throw new UnsupportedOperationException("A streaming cursor can only move forward.");
+    }
+
+    @Override
+    public boolean moveToNext() {
+        throwIfClosedOrWrongThread();
+        if (mAfterLast) {
+            return false;
+        }
+        final boolean hasRow;
+        try {
+            hasRow = mQuery.step();
+        } catch (RuntimeException ex) {
+            releaseQuery();
+            throw ex;
+        }
+        mPos += 1;
+        if (!hasRow) {
+            // Give the connection back as soon as possible.
+            mAfterLast = true;
+            releaseQuery();
+        }
+        return hasRow;
+    }
+
+    /**
+     * Not supported: throws {@link UnsupportedOperationException}.
+     */
+    @Override
+    public boolean moveToPrevious() {
+        throw new UnsupportedOperationException("A streaming cursor can only move forward.");
+    }
+
+    @Override
+    public boolean isFirst() {
+        return mPos == 0 && !mAfterLast;
+    }
+
+    /**
+     * Not supported: throws {@link UnsupportedOperationException}, since it would
+     * require reading the next row.
+     */
+    @Override
+    public boolean isLast() {
+        throw new UnsupportedOperationException(
+                "A streaming cursor does not know whether a row is the last one.");
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return mPos == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return mAfterLast;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        // Hack according to bug 903852
+        final int periodIndex = columnName.lastIndexOf('.');
+        if (periodIndex != -1) {
+            columnName = columnName.substring(periodIndex + 1);
+        }
+
+        final String[] columnNames = mColumnNames;
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equalsIgnoreCase(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        final int index = getColumnIndex(columnName);
+        if (index < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return mColumnNames[columnIndex];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mColumnNames.length;
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        return currentRow(columnIndex).getBlob(columnIndex);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        return currentRow(columnIndex).getString(columnIndex);
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        final String result = getString(columnIndex);
+        if (result != null) {
+            final char[] data = buffer.data;
+            if (data == null || data.length < result.length()) {
+                buffer.data = result.toCharArray();
+            } else {
+                result.getChars(0, result.length(), data, 0);
+            }
+            buffer.sizeCopied = result.length();
+        } else {
+            buffer.sizeCopied = 0;
+        }
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        return currentRow(columnIndex).getLong(columnIndex);
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return (float) getDouble(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        return currentRow(columnIndex).getDouble(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        return currentRow(columnIndex).getType(columnIndex);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return getType(columnIndex) == FIELD_TYPE_NULL;
+    }
+
+    @Override
+    @Deprecated
+    public void deactivate() {
+        mDataSetObservable.notifyInvalidated();
+    }
+
+    /**
+     * Not supported: a streaming cursor cannot run its query again.
+     *
+     * @return false
+     */
+    @Override
+    @Deprecated
+    public boolean requery() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            releaseQuery();
+        } finally {
+            mContentObservable.unregisterAll();
+            mDataSetObservable.notifyInvalidated();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Registers an observer, which is never called since the rows of a streaming cursor
+     * are read only once.
+     */
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        mContentObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        // cursor will unregister all observers when it close
+        if (!mClosed) {
+            mContentObservable.unregisterObserver(observer);
+        }
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        mDataSetObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        mDataSetObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public void setNotificationUri(ContentResolver cr, Uri notifyUri) {
+        mNotifyUri = notifyUri;
+    }
+
+    @Override
+    public Uri getNotificationUri() {
+        return mNotifyUri;
+    }
+
+    @Override
+    public boolean getWantsAllOnMoveCalls() {
+        return false;
+    }
+
+    @Override
+    public void setExtras(Bundle extras) {
+        mExtras = (extras == null) ? Bundle.EMPTY : extras;
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return mExtras;
+    }
+
+    @Override
+    public Bundle respond(Bundle extras) {
+        return Bundle.EMPTY;
+    }
+
+    private SQLiteConnection.StreamingQuery currentRow(int columnIndex) {
+        throwIfClosedOrWrongThread();
+        if (mPos == -1 || mAfterLast) {
+            throw new CursorIndexOutOfBoundsException(mPos, mAfterLast ? mPos : -1);
+        }
+        if (columnIndex < 0 || columnIndex >= mColumnNames.length) {
+            throw new IllegalArgumentException("Invalid column index " + columnIndex
+                    + ", the cursor has " + mColumnNames.length + " columns.");
+        }
+        return mQuery;
+    }
+
+    private void throwIfClosedOrWrongThread() {
+        if (mClosed) {
+            throw new IllegalStateException("Attempted to access a cursor after it has been "
+                    + "closed.");
+        }
+        if (Thread.currentThread() != mThread) {
+            throw new IllegalStateException("A streaming cursor must be used on the thread "
+                    + "that created it.");
+        }
+    }
+
+    private void releaseQuery() {
+        final SQLiteConnection.StreamingQuery query = mQuery;
+        if (query != null) {
+            mQuery = null;
+            try {
+                mSession.closeStreaming(query);
+            } finally {
+                mDatabase.releaseReference();
+            }
+        }
+    }
+
+    /**
+     * Release the native resources, if they haven't been released yet.
+     */
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            // The connection belongs to the session of another thread, so it cannot be
+            // released from here.
+            if (mQuery != null) {
+                Log.e(TAG, "Finalizing a streaming cursor that has not been closed. "
+                        + "database = " + mDatabase.getLabel() + ", sql = " + mSql);
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+}
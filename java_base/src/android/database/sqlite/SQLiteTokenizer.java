@@ -206,6 +206,147 @@ public class SQLiteTokenizer {
         }
     }
 
+    /**
+     * Normalize the given SQL so that statements that only differ by their literals,
+     * whitespace or comments become equal: comments are removed, runs of whitespace
+     * become a single space, and string, blob and numeric literals become {@code ?}.
+     * Quoted identifiers and parameters are kept as they are.
+     * <p>
+     * Unlike {@link #tokenize}, this never throws: invalid SQL is normalized as far as
+     * possible.
+     *
+     * @return the normalized SQL, or null if {@code sql} is null.
+     */
+    public static String normalize(@Nullable String sql) {
+        if (sql == null) {
+            return null;
+        }
+        final int len = sql.length();
+        final StringBuilder sb = new StringBuilder(len);
+        boolean pendingSpace = false;
+        int pos = 0;
+        while (pos < len) {
+            final char ch = sql.charAt(pos);
+
+            // Whitespace and comments separate tokens.
+            if (Character.isWhitespace(ch)) {
+                pendingSpace = sb.length() > 0;
+                pos++;
+                continue;
+            }
+            if (ch == '-' && peek(sql, pos + 1) == '-') {
+                final int end = sql.indexOf('\n', pos + 2);
+                pos = end < 0 ? len : end + 1;
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (ch == '/' && peek(sql, pos + 1) == '*') {
+                final int end = sql.indexOf("*/", pos + 2);
+                pos = end < 0 ? len : end + 2;
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+
+            // Blob and string literals.
+            if ((ch == 'x' || ch == 'X') && peek(sql, pos + 1) == '\'') {
+                pos = skipQuoted(sql, pos + 1);
+                sb.append('?');
+                continue;
+            }
+            if (ch == '\'') {
+                pos = skipQuoted(sql, pos);
+                sb.append('?');
+                continue;
+            }
+
+            // Identifiers, keywords and quoted identifiers.
+            if (isAlpha(ch)) {
+                final int start = pos;
+                pos++;
+                while (isAlNum(peek(sql, pos)) || peek(sql, pos) == '$') {
+                    pos++;
+                }
+                sb.append(sql, start, pos);
+                continue;
+            }
+            if (ch == '"' || ch == '`') {
+                final int start = pos;
+                pos = skipQuoted(sql, pos);
+                sb.append(sql, start, pos);
+                continue;
+            }
+            if (ch == '[') {
+                final int end = sql.indexOf(']', pos + 1);
+                final int start = pos;
+                pos = end < 0 ? len : end + 1;
+                sb.append(sql, start, pos);
+                continue;
+            }
+
+            // Parameters: ?NNN, :AAA, @AAA and $AAA.
+            if (isAnyOf(ch, "?:@$")) {
+                final int start = pos;
+                pos++;
+                while (isAlNum(peek(sql, pos))) {
+                    pos++;
+                }
+                sb.append(sql, start, pos);
+                continue;
+            }
+
+            // Numeric literals.
+            if (isNum(ch) || (ch == '.' && isNum(peek(sql, pos + 1)))) {
+                if (ch == '0' && (peek(sql, pos + 1) == 'x' || peek(sql, pos + 1) == 'X')) {
+                    pos += 2;
+                    while (isAlNum(peek(sql, pos))) {
+                        pos++;
+                    }
+                } else {
+                    while (isNum(peek(sql, pos)) || peek(sql, pos) == '.') {
+                        pos++;
+                    }
+                    if (peek(sql, pos) == 'e' || peek(sql, pos) == 'E') {
+                        pos++;
+                        if (peek(sql, pos) == '+' || peek(sql, pos) == '-') {
+                            pos++;
+                        }
+                        while (isNum(peek(sql, pos))) {
+                            pos++;
+                        }
+                    }
+                }
+                sb.append('?');
+                continue;
+            }
+
+            sb.append(ch);
+            pos++;
+        }
+        return sb.toString();
+    }
+
+    // Returns the position after the quoted string starting at pos, or the end of sql if
+    // it is unterminated.
+    private static int skipQuoted(String sql, int pos) {
+        final char quote = sql.charAt(pos);
+        pos++;
+        for (;;) {
+            pos = sql.indexOf(quote, pos);
+            if (pos < 0) {
+                return sql.length();
+            }
+            if (peek(sql, pos + 1) != quote) {
+                return pos + 1;
+            }
+            // Quoted quote char -- e.g. 'abc''def' is a single string.
+            pos += 2;
+        }
+    }
+
     /**
      * Test if given token is a
      * <a href="https://www.sqlite.org/lang_keywords.html">SQLite reserved
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.util.Pair;
+
+import java.util.Locale;
+
+/**
+ * Describes a typed custom SQL function: a {@link SQLiteDatabase.ScalarFunction},
+ * {@link SQLiteDatabase.AggregateFunction} or {@link SQLiteDatabase.WindowFunction}.
+ * <p>
+ * The native code registers it on each connection with its own
+ * {@link SQLiteFunctionArgs} and {@link SQLiteFunctionResult}, and calls the dispatch
+ * methods below.  For aggregates, it keeps the state returned by
+ * {@link #dispatchStep} in the SQLite aggregate context and passes it back to the
+ * following calls for the same group or window.
+ * </p>
+ *
+ * @hide
+ */
+public final class SQLiteTypedFunction {
+
+    public final String name;
+
+    public final int numArgs;
+
+    /** A combination of the {@code SQLiteDatabase.FUNCTION_FLAG_*} flags. */
+    public final int flags;
+
+    // Exactly one is non-null.  Read by native to choose how to register the function.
+    private final SQLiteDatabase.ScalarFunction mScalar;
+    @SuppressWarnings("rawtypes")
+    private final SQLiteDatabase.AggregateFunction mAggregate;
+    private final boolean mIsWindow;
+
+    /**
+     * Create a scalar function.
+     *
+     * @param name The name of the sqlite3 function.
+     * @param numArgs The number of arguments for the function, or -1 to
+     * support any number of arguments.
+     * @param flags The {@code SQLiteDatabase.FUNCTION_FLAG_*} flags.
+     * @param function The function to invoke for each call.
+     */
+    public SQLiteTypedFunction(String name, int numArgs, int flags,
+            SQLiteDatabase.ScalarFunction function) {
+        this(name, numArgs, flags, function, null);
+    }
+
+    /**
+     * Create an aggregate function, which is also a window function if it implements
+     * {@link SQLiteDatabase.WindowFunction}.
+     *
+     * @param name The name of the sqlite3 function.
+     * @param numArgs The number of arguments for the function, or -1 to
+     * support any number of arguments.
+     * @param flags The {@code SQLiteDatabase.FUNCTION_FLAG_*} flags.
+     * @param function The function to invoke for each row and each result.
+     */
+    public SQLiteTypedFunction(String name, int numArgs, int flags,
+            SQLiteDatabase.AggregateFunction<?> function) {
+        this(name, numArgs, flags, null, function);
+    }
+
+    private SQLiteTypedFunction(String name, int numArgs, int flags,
+            SQLiteDatabase.ScalarFunction scalar, SQLiteDatabase.AggregateFunction<?> aggregate) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null.");
+        }
+        if (numArgs < -1 || numArgs > 127) {
+            throw new IllegalArgumentException("numArgs must be between -1 and 127.");
+        }
+
+        this.name = name;
+        this.numArgs = numArgs;
+        this.flags = flags;
+        mScalar = scalar;
+        mAggregate = aggregate;
+        mIsWindow = aggregate instanceof SQLiteDatabase.WindowFunction;
+    }
+
+    /**
+     * Returns the key SQLite identifies the function by: its name, ignoring case, and
+     * its number of arguments.  A function registered with the same key replaces it,
+     * while one with the same name and another number of arguments is an overload.
+     */
+    Pair<String, Integer> getKey() {
+        return Pair.create(name.toLowerCase(Locale.ROOT), numArgs);
+    }
+
+    // Called from native.
+    @SuppressWarnings("unused")
+    private void dispatchScalar(SQLiteFunctionArgs args, SQLiteFunctionResult result) {
+        mScalar.apply(args, result);
+    }
+
+    // Called from native.  Returns the state to pass to the next calls.
+    @SuppressWarnings({"unused", "unchecked"})
+    private Object dispatchStep(Object state, SQLiteFunctionArgs args) {
+        if (state == null) {
+            state = mAggregate.createState();
+        }
+        mAggregate.step(state, args);
+        return state;
+    }
+
+    // Called from native, for window functions only.
+    @SuppressWarnings({"unused", "unchecked"})
+    private void dispatchInverse(Object state, SQLiteFunctionArgs args) {
+        ((SQLiteDatabase.WindowFunction) mAggregate).inverse(state, args);
+    }
+
+    // Called from native, for the current value of a window and for the final value of
+    // a group.  The state is null if no row was stepped.
+    @SuppressWarnings({"unused", "unchecked"})
+    private void dispatchResult(Object state, SQLiteFunctionResult result) {
+        if (state == null) {
+            state = mAggregate.createState();
+        }
+        mAggregate.result(state, result);
+    }
+}
@@ -245,6 +245,10 @@ public abstract class AsyncTask<Params, Progress, Result> {
     /**
      * An {@link Executor} that can be used to execute tasks in parallel.
      *
+     * <p>If the {@code android.os.virtual_threads} system property is {@code true} and the VM
+     * supports virtual threads, each task runs on a new virtual thread instead, so that many
+     * tasks blocked on I/O do not each hold a platform thread.
+     *
      * @deprecated Using a single thread pool for a general purpose results in suboptimal behavior
      *   for different tasks. Small, CPU-bound tasks benefit from a bounded pool and queueing, and
      *   long-running blocking tasks, such as network operations, benefit from many threads. Use or
@@ -254,11 +258,15 @@ public abstract class AsyncTask<Params, Progress, Result> {
     public static final Executor THREAD_POOL_EXECUTOR;
 
     static {
-        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
-                CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
-                new SynchronousQueue<Runnable>(), sThreadFactory);
-        threadPoolExecutor.setRejectedExecutionHandler(sRunOnSerialPolicy);
-        THREAD_POOL_EXECUTOR = threadPoolExecutor;
+        if (VirtualThreads.isEnabled()) {
+            THREAD_POOL_EXECUTOR = new VirtualThreadExecutor();
+        } else {
+            ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+                    CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), sThreadFactory);
+            threadPoolExecutor.setRejectedExecutionHandler(sRunOnSerialPolicy);
+            THREAD_POOL_EXECUTOR = threadPoolExecutor;
+        }
     }
 
     /**
@@ -291,6 +299,19 @@ public abstract class AsyncTask<Params, Progress, Result> {
 
     private final Handler mHandler;
 
+    // Starts a virtual thread per task.  Results are still delivered through the
+    // main thread handler, so onPostExecute runs on the main Looper as usual.
+    private static class VirtualThreadExecutor implements Executor {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public void execute(Runnable r) {
+            if (r == null) {
+                throw new NullPointerException();
+            }
+            VirtualThreads.newThread("AsyncTask #" + mCount.getAndIncrement(), r).start();
+        }
+    }
+
     private static class SerialExecutor implements Executor {
         final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
         Runnable mActive;
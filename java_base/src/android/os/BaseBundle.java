@@ -30,6 +30,7 @@ import android.util.internal.IndentingPrintWriter;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.BiFunction;
 
@@ -110,6 +111,12 @@ public class BaseBundle {
      */
     private boolean mParcelledByNative;
 
+    /**
+     * Where each value sits in {@link #mParcelledData}, built on the first keyed read so that
+     * getters decode only the value asked for. Null until then and once the data is unparcelled.
+     */
+    private ParcelledIndex mParcelledIndex;
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -195,6 +202,7 @@ public class BaseBundle {
      */
     BaseBundle(BaseBundle from, boolean deep) {
         synchronized (from) {
+            from.unparcelIfPeekedMutableLocked();
             mClassLoader = from.mClassLoader;
 
             if (from.mMap != null) {
@@ -218,6 +226,7 @@ public class BaseBundle {
                     parcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
                     mParcelledByNative = false;
                 } else {
+                    // Shares the bytes with the source until either side writes to them
                     parcelledData = Parcel.obtain();
                     parcelledData.appendFrom(from.mParcelledData, 0,
                             from.mParcelledData.dataSize());
@@ -386,6 +395,168 @@ public class BaseBundle {
         return (clazz != null) ? clazz.cast(object) : (T) object;
     }
 
+    /** Same as {@link #peekValue(String, Class, Class[])} with no type check. */
+    @Nullable
+    final Object peekValue(String key) {
+        return peekValue(key, /* clazz */ null, (Class<?>[]) null);
+    }
+
+    /**
+     * Returns the value for key {@code key} like {@link #getValue(String, Class, Class[])}, but
+     * without unparcelling the whole bundle: while the data is still parcelled, only the
+     * requested value is decoded. The bundle is unparcelled as before if its data contains a
+     * value that cannot be skipped over.
+     *
+     * @hide
+     */
+    @Nullable
+    final <T> T peekValue(String key, @Nullable Class<T> clazz, @Nullable Class<?>... itemTypes) {
+        synchronized (this) {
+            if (hasParcelledIndexLocked()) {
+                return readIndexedValueLocked(key, clazz, itemTypes);
+            }
+        }
+        unparcel();
+        return getValue(key, clazz, itemTypes);
+    }
+
+    /**
+     * Builds {@link #mParcelledIndex} if needed.
+     *
+     * @return whether the data is parcelled and indexed
+     */
+    private boolean hasParcelledIndexLocked() {
+        final Parcel parcelledData = mParcelledData;
+        if (parcelledData == null || isEmptyParcel(parcelledData)) {
+            return false;
+        }
+        if (mParcelledIndex == null) {
+            mParcelledIndex = ParcelledIndex.build(parcelledData);
+        }
+        return mParcelledIndex != ParcelledIndex.UNAVAILABLE;
+    }
+
+    /**
+     * Unparcels if {@link #peekValue} handed out objects that may have been changed since, such as
+     * a nested {@link Bundle}, so those changes are not lost by copying the parcelled bytes.
+     */
+    private void unparcelIfPeekedMutableLocked() {
+        if (mParcelledIndex != null && mParcelledIndex.hasMutableValues()) {
+            unparcel();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private <T> T readIndexedValueLocked(String key, @Nullable Class<T> clazz,
+            @Nullable Class<?>... itemTypes) {
+        final ParcelledIndex index = mParcelledIndex;
+        final int i = index.indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Object object = index.values[i];
+        if (object == ParcelledIndex.NOT_READ) {
+            try {
+                object = mParcelledData.readValueAt(index.offsets[i], mClassLoader, clazz,
+                        itemTypes);
+            } catch (BadParcelableException e) {
+                if (sShouldDefuse) {
+                    Log.w(TAG, "Failed to parse item " + key + ", returning null.", e);
+                    return null;
+                } else {
+                    throw e;
+                }
+            }
+            index.values[i] = object;
+        }
+        return (clazz != null) ? clazz.cast(object) : (T) object;
+    }
+
+    /**
+     * The keys of parcelled bundle data and the offsets of their values, found in one pass that
+     * skips over the values, along with the values decoded so far.
+     */
+    private static final class ParcelledIndex {
+        static final ParcelledIndex UNAVAILABLE = new ParcelledIndex(0);
+        static final Object NOT_READ = new Object();
+
+        final String[] keys;
+        final int[] hashes;
+        final int[] offsets;
+        final Object[] values;
+
+        private ParcelledIndex(int size) {
+            keys = new String[size];
+            hashes = new int[size];
+            offsets = new int[size];
+            values = new Object[size];
+        }
+
+        /**
+         * Indexes the map at the data position of {@code parcel}, which is left unchanged.
+         *
+         * @return the index, or {@link #UNAVAILABLE} if a value cannot be skipped
+         */
+        static ParcelledIndex build(Parcel parcel) {
+            if (parcel.hasReadWriteHelper()) {
+                return UNAVAILABLE;
+            }
+            final int start = parcel.dataPosition();
+            try {
+                final int count = parcel.readInt();
+                // every entry takes at least a key length and a value type
+                if (count < 0 || count > parcel.dataAvail() / 8) {
+                    return UNAVAILABLE;
+                }
+                final ParcelledIndex index = new ParcelledIndex(count);
+                for (int i = 0; i < count; i++) {
+                    final String key = parcel.readString();
+                    index.keys[i] = key;
+                    index.hashes[i] = (key != null) ? key.hashCode() : 0;
+                    index.offsets[i] = parcel.dataPosition();
+                    index.values[i] = NOT_READ;
+                    if (!parcel.skipValue()) {
+                        return UNAVAILABLE;
+                    }
+                }
+                return index;
+            } finally {
+                parcel.setDataPosition(start);
+            }
+        }
+
+        int indexOf(String key) {
+            final int hash = (key != null) ? key.hashCode() : 0;
+            // search backwards, so the last of duplicate keys wins as in ArrayMap.put()
+            for (int i = keys.length - 1; i >= 0; i--) {
+                if (hashes[i] == hash && Objects.equals(keys[i], key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean hasMutableValues() {
+            for (Object value : values) {
+                if (value != NOT_READ && value != null && !(value instanceof String)
+                        && !(value instanceof Number) && !(value instanceof Boolean)
+                        && !(value instanceof Character) && !(value instanceof IBinder)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void putReadValues(ArrayMap<String, Object> map) {
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != NOT_READ) {
+                    map.put(keys[i], values[i]);
+                }
+            }
+        }
+    }
+
     private void initializeFromParcelLocked(@NonNull Parcel parcelledData, boolean recycleParcel,
             boolean parcelledByNative) {
         if (isEmptyParcel(parcelledData)) {
@@ -400,6 +571,7 @@ public class BaseBundle {
             }
             mParcelledByNative = false;
             mParcelledData = null;
+            mParcelledIndex = null;
             return;
         }
 
@@ -421,6 +593,10 @@ public class BaseBundle {
         try {
             recycleParcel &= parcelledData.readArrayMap(map, count, !parcelledByNative,
                     /* lazy */ true, mClassLoader);
+            if (mParcelledIndex != null) {
+                // Keep handing out the objects getters already returned
+                mParcelledIndex.putReadValues(map);
+            }
         } catch (BadParcelableException e) {
             if (sShouldDefuse) {
                 Log.w(TAG, "Failed to parse Bundle, but defusing quietly", e);
@@ -435,6 +611,7 @@ public class BaseBundle {
             }
             mParcelledByNative = false;
             mParcelledData = null;
+            mParcelledIndex = null;
         }
         if (DEBUG) {
             Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
@@ -624,6 +801,11 @@ public class BaseBundle {
      * @return true if the key is part of the mapping, false otherwise
      */
     public boolean containsKey(String key) {
+        synchronized (this) {
+            if (hasParcelledIndexLocked()) {
+                return mParcelledIndex.indexOf(key) >= 0;
+            }
+        }
         unparcel();
         return mMap.containsKey(key);
     }
@@ -640,8 +822,7 @@ public class BaseBundle {
     @Deprecated
     @Nullable
     public Object get(String key) {
-        unparcel();
-        return getValue(key);
+        return peekValue(key);
     }
 
     /**
@@ -661,9 +842,8 @@ public class BaseBundle {
      */
     @Nullable
     <T> T get(@Nullable String key, @NonNull Class<T> clazz) {
-        unparcel();
         try {
-            return getValue(key, requireNonNull(clazz));
+            return peekValue(key, requireNonNull(clazz));
         } catch (ClassCastException | BadTypeParcelableException e) {
             typeWarning(key, clazz.getCanonicalName(), e);
             return null;
@@ -1080,8 +1260,7 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key, boolean defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1114,8 +1293,7 @@ public class BaseBundle {
      * @return a byte value
      */
     Byte getByte(String key, byte defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1148,8 +1326,7 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key, char defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1182,8 +1359,7 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key, short defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1216,8 +1392,7 @@ public class BaseBundle {
      * @return an int value
      */
    public int getInt(String key, int defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1250,8 +1425,7 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key, long defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1284,8 +1458,7 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key, float defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1318,8 +1491,7 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key, double defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1341,8 +1513,7 @@ public class BaseBundle {
      */
     @Nullable
     public String getString(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = peekValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1377,8 +1548,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = peekValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1417,8 +1587,7 @@ public class BaseBundle {
     @Deprecated
     @Nullable
     Serializable getSerializable(@Nullable String key) {
-        unparcel();
-        Object o = getValue(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1451,9 +1620,8 @@ public class BaseBundle {
     @SuppressWarnings("unchecked")
     @Nullable
     <T> ArrayList<T> getArrayList(@Nullable String key, @NonNull Class<? extends T> clazz) {
-        unparcel();
         try {
-            return getValue(key, ArrayList.class, requireNonNull(clazz));
+            return peekValue(key, ArrayList.class, requireNonNull(clazz));
         } catch (ClassCastException | BadTypeParcelableException e) {
             typeWarning(key, "ArrayList<" + clazz.getCanonicalName() + ">", e);
             return null;
@@ -1509,8 +1677,7 @@ public class BaseBundle {
      */
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1532,8 +1699,7 @@ public class BaseBundle {
      */
     @Nullable
     byte[] getByteArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1555,8 +1721,7 @@ public class BaseBundle {
      */
     @Nullable
     short[] getShortArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1578,8 +1743,7 @@ public class BaseBundle {
      */
     @Nullable
     char[] getCharArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1601,8 +1765,7 @@ public class BaseBundle {
      */
     @Nullable
     public int[] getIntArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1624,8 +1787,7 @@ public class BaseBundle {
      */
     @Nullable
     public long[] getLongArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1647,8 +1809,7 @@ public class BaseBundle {
      */
     @Nullable
     float[] getFloatArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1670,8 +1831,7 @@ public class BaseBundle {
      */
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1693,8 +1853,7 @@ public class BaseBundle {
      */
     @Nullable
     public String[] getStringArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1716,8 +1875,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1743,6 +1901,7 @@ public class BaseBundle {
         // frameworks/native/libs/binder/PersistableBundle.cpp.
         final ArrayMap<String, Object> map;
         synchronized (this) {
+            unparcelIfPeekedMutableLocked();
             // unparcel() can race with this method and cause the parcel to recycle
             // at the wrong time. So synchronize access the mParcelledData's content.
             if (mParcelledData != null) {
@@ -1796,6 +1955,7 @@ public class BaseBundle {
             throw new RuntimeException("Bad length in parcel: " + length);
         } else if (length == 0) {
             mParcelledByNative = false;
+            mParcelledIndex = null;
             // Empty Bundle or end of data.
             mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
             return;
@@ -1836,6 +1996,7 @@ public class BaseBundle {
         p.setDataPosition(0);
 
         mParcelledByNative = isNativeBundle;
+        mParcelledIndex = null;
         mParcelledData = p;
     }
 
@@ -826,8 +826,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Size getSize(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = peekValue(key);
         try {
             return (Size) o;
         } catch (ClassCastException e) {
@@ -846,8 +845,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public SizeF getSizeF(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = peekValue(key);
         try {
             return (SizeF) o;
         } catch (ClassCastException e) {
@@ -866,8 +864,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Bundle getBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -897,8 +894,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     @Nullable
     public <T extends Parcelable> T getParcelable(@Nullable String key) {
-        unparcel();
-        Object o = getValue(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -953,8 +949,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     @Nullable
     public Parcelable[] getParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = getValue(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -989,10 +984,9 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         // The reason for not using <T extends Parcelable> is because the caller could provide a
         // super class to restrict the children that doesn't implement Parcelable itself while the
         // children do, more details at b/210800751 (same reasoning applies here).
-        unparcel();
         try {
             // In Java 12, we can pass clazz.arrayType() instead of Parcelable[] and later casting.
-            return (T[]) getValue(key, Parcelable[].class, requireNonNull(clazz));
+            return (T[]) peekValue(key, Parcelable[].class, requireNonNull(clazz));
         } catch (ClassCastException | BadTypeParcelableException e) {
             typeWarning(key, clazz.getCanonicalName() + "[]", e);
             return null;
@@ -1017,8 +1011,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     @Nullable
     public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
-        unparcel();
-        Object o = getValue(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1072,8 +1065,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     @Nullable
     public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = getValue(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1105,9 +1097,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         // The reason for not using <T extends Parcelable> is because the caller could provide a
         // super class to restrict the children that doesn't implement Parcelable itself while the
         // children do, more details at b/210800751 (same reasoning applies here).
-        unparcel();
         try {
-            return (SparseArray<T>) getValue(key, SparseArray.class, requireNonNull(clazz));
+            return (SparseArray<T>) peekValue(key, SparseArray.class, requireNonNull(clazz));
         } catch (ClassCastException | BadTypeParcelableException e) {
             typeWarning(key, "SparseArray<" + clazz.getCanonicalName() + ">", e);
             return null;
@@ -1272,8 +1263,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public IBinder getBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
@@ -1299,8 +1289,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         @Deprecated
     @Nullable
     public IBinder getIBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
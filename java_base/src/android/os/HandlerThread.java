@@ -24,12 +24,21 @@ import android.annotation.Nullable;
  * The {@link Looper} can then be used to create {@link Handler}s.
  * <p>
  * Note that just like with a regular {@link Thread}, {@link #start()} must still be called.
+ * <p>
+ * If the {@code android.os.virtual_threads} system property is {@code true} and the VM
+ * supports virtual threads, {@link #start()} runs the looper on a new virtual thread
+ * instead of this one, the priority is not applied and {@link #getThreadId} returns -1.
+ * This object then never becomes alive itself, so use {@link #getLooper}, {@link #quit}
+ * and {@link #quitSafely} rather than {@link #isAlive} or {@link #join} to follow the
+ * looper.
  */
 public class HandlerThread extends Thread {
     int mPriority;
     int mTid = -1;
     Looper mLooper;
     private @Nullable Handler mHandler;
+    // The virtual thread running the looper, if any.
+    private volatile Thread mVirtualThread;
 
     public HandlerThread(String name) {
         super(name);
@@ -54,15 +63,51 @@ public class HandlerThread extends Thread {
     protected void onLooperPrepared() {
     }
 
+    @Override
+    public synchronized void start() {
+        if (!VirtualThreads.isEnabled()) {
+            super.start();
+            return;
+        }
+        if (mVirtualThread != null) {
+            throw new IllegalThreadStateException();
+        }
+        mVirtualThread = VirtualThreads.newThread(getName(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HandlerThread.this.run();
+                } finally {
+                    // Wake up getLooper() callers, as the end of a platform thread would.
+                    synchronized (HandlerThread.this) {
+                        HandlerThread.this.notifyAll();
+                    }
+                }
+            }
+        });
+        mVirtualThread.start();
+    }
+
+    private boolean isLooperThreadAlive() {
+        final Thread virtualThread = mVirtualThread;
+        return virtualThread != null ? virtualThread.isAlive() : isAlive();
+    }
+
     @Override
     public void run() {
-        mTid = Process.myTid();
+        // A virtual thread moves between carrier threads, so it has no tid of its own.
+        final boolean virtual = mVirtualThread != null;
+        if (!virtual) {
+            mTid = Process.myTid();
+        }
         Looper.prepare();
         synchronized (this) {
             mLooper = Looper.myLooper();
             notifyAll();
         }
-        Process.setThreadPriority(mPriority);
+        if (!virtual) {
+            Process.setThreadPriority(mPriority);
+        }
         onLooperPrepared();
         Looper.loop();
         mTid = -1;
@@ -75,7 +120,7 @@ public class HandlerThread extends Thread {
      * @return The looper.
      */
     public Looper getLooper() {
-        if (!isAlive()) {
+        if (!isLooperThreadAlive()) {
             return null;
         }
 
@@ -83,7 +128,7 @@ public class HandlerThread extends Thread {
 
         // If the thread has been started, wait until the looper has been created.
         synchronized (this) {
-            while (isAlive() && mLooper == null) {
+            while (isLooperThreadAlive() && mLooper == null) {
                 try {
                     wait();
                 } catch (InterruptedException e) {
@@ -172,6 +217,8 @@ public class HandlerThread extends Thread {
 
     /**
      * Returns the identifier of this thread. See Process.myTid().
+     * Returns -1 while the looper is not running, and always when it runs on a
+     * virtual thread, which has no identifier of its own.
      */
     public int getThreadId() {
         return mTid;
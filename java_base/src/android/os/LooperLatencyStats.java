@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.annotation.NonNull;
+import android.util.Printer;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.util.LogLinearHistogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Looper.Observer} that records, for each Looper and for each Handler class and
+ * message, how long messages waited past their delivery time and how long the Handler took to
+ * handle them. Install it with {@link Looper#setObserver}.
+ *
+ * <p>The delivery delay is measured in milliseconds, in the {@link SystemClock#uptimeMillis}
+ * time base of {@link Message#when}, and is not recorded for messages posted at the front of
+ * the queue. The dispatch time is measured in microseconds. Both are kept in
+ * {@link LogLinearHistogram}s, so recording never takes a lock and the looper threads do not
+ * contend with each other or with a dump.
+ *
+ * <p>Loopers stay in the statistics until {@link #reset} is called, even after they quit.
+ *
+ * @hide
+ */
+public final class LooperLatencyStats implements Looper.Observer {
+    // 4 buckets per power of two: estimates are within 25% of the real value.
+    private static final int SUB_BUCKET_BITS = 2;
+    // Delays up to ~4.6 hours, dispatch times up to ~16 seconds.
+    private static final int MAX_VALUE_BITS = 24;
+
+    /** Field ids of the {@code LooperLatencyStatsProto} written by {@link #dumpDebug}. */
+    public static final long LOOPERS = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    /** Field ids of the {@code LooperProto} messages in {@link #LOOPERS}. */
+    public static final long LOOPER_THREAD_NAME = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+    public static final long LOOPER_ENTRIES = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    /** Field ids of the {@code EntryProto} messages in {@link #LOOPER_ENTRIES}. */
+    public static final long ENTRY_HANDLER_CLASS = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+    public static final long ENTRY_MESSAGE_NAME = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+    public static final long ENTRY_EXCEPTION_COUNT = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    public static final long ENTRY_DELAY_MILLIS = ProtoOutputStream.makeFieldId(4,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    public static final long ENTRY_DISPATCH_MICROS = ProtoOutputStream.makeFieldId(5,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+
+    private final ConcurrentHashMap<Looper, LooperEntry> mLoopers =
+            new ConcurrentHashMap<Looper, LooperEntry>();
+
+    @Override
+    public Object messageDispatchStarting() {
+        final Looper looper = Looper.myLooper();
+        LooperEntry looperEntry = mLoopers.get(looper);
+        if (looperEntry == null) {
+            looperEntry = new LooperEntry(looper);
+            final LooperEntry previous = mLoopers.putIfAbsent(looper, looperEntry);
+            if (previous != null) {
+                looperEntry = previous;
+            }
+        }
+        final DispatchSession session = looperEntry.obtainSession();
+        session.startUptimeMillis = SystemClock.uptimeMillis();
+        session.startNanos = System.nanoTime();
+        return session;
+    }
+
+    @Override
+    public void messageDispatched(Object token, Message msg) {
+        record((DispatchSession) token, msg, false);
+    }
+
+    @Override
+    public void dispatchingThrewException(Object token, Message msg, Exception exception) {
+        record((DispatchSession) token, msg, true);
+    }
+
+    private void record(DispatchSession session, Message msg, boolean threw) {
+        final long dispatchNanos = System.nanoTime() - session.startNanos;
+        final LooperEntry looperEntry = session.looperEntry;
+        final Entry entry = looperEntry.getEntry(msg);
+        if (msg.when > 0) {
+            entry.delayMillis.add(session.startUptimeMillis - msg.when);
+        }
+        entry.dispatchMicros.add(dispatchNanos / 1000);
+        if (threw) {
+            entry.exceptionCount.incrementAndGet();
+        }
+        looperEntry.recycleSession(session);
+    }
+
+    /** Clears all statistics. */
+    public void reset() {
+        mLoopers.clear();
+    }
+
+    /**
+     * Prints the statistics of each Looper, the entries that took the most time first.
+     */
+    public void dump(@NonNull Printer pw, @NonNull String prefix) {
+        for (LooperEntry looperEntry : mLoopers.values()) {
+            pw.println(prefix + looperEntry.looper);
+            for (Entry entry : looperEntry.sortedEntries()) {
+                pw.println(prefix + "  " + entry.handlerClass.getName() + " " + entry.messageName()
+                        + ": count=" + entry.dispatchMicros.getCount()
+                        + " exceptions=" + entry.exceptionCount.get());
+                pw.println(prefix + "    delay ms:     " + summary(entry.delayMillis));
+                pw.println(prefix + "    dispatch us:  " + summary(entry.dispatchMicros));
+            }
+        }
+    }
+
+    /**
+     * Writes the statistics to a {@code LooperLatencyStatsProto}.
+     */
+    public void dumpDebug(@NonNull ProtoOutputStream proto, long fieldId) {
+        final long token = proto.start(fieldId);
+        for (LooperEntry looperEntry : mLoopers.values()) {
+            final long looperToken = proto.start(LOOPERS);
+            proto.write(LOOPER_THREAD_NAME, looperEntry.looper.getThread().getName());
+            for (Entry entry : looperEntry.sortedEntries()) {
+                final long entryToken = proto.start(LOOPER_ENTRIES);
+                proto.write(ENTRY_HANDLER_CLASS, entry.handlerClass.getName());
+                proto.write(ENTRY_MESSAGE_NAME, entry.messageName());
+                proto.write(ENTRY_EXCEPTION_COUNT, entry.exceptionCount.get());
+                entry.delayMillis.dumpDebug(proto, ENTRY_DELAY_MILLIS);
+                entry.dispatchMicros.dumpDebug(proto, ENTRY_DISPATCH_MICROS);
+                proto.end(entryToken);
+            }
+            proto.end(looperToken);
+        }
+        proto.end(token);
+    }
+
+    private static String summary(LogLinearHistogram histogram) {
+        return "p50=" + histogram.getPercentile(50)
+                + " p90=" + histogram.getPercentile(90)
+                + " p99=" + histogram.getPercentile(99)
+                + " max=" + histogram.getMax()
+                + " total=" + histogram.getSum();
+    }
+
+    private static final class DispatchSession {
+        final LooperEntry looperEntry;
+        long startUptimeMillis;
+        long startNanos;
+        DispatchSession nextFree;
+
+        DispatchSession(LooperEntry looperEntry) {
+            this.looperEntry = looperEntry;
+        }
+    }
+
+    private static final class LooperEntry {
+        final Looper looper;
+        final ConcurrentHashMap<Entry, Entry> entries = new ConcurrentHashMap<Entry, Entry>();
+
+        // Only used on the looper thread.  Sessions are pooled rather than reused directly
+        // because a message may run a nested loop.
+        private final Entry mProbe = new Entry(null, null, 0);
+        private DispatchSession mFreeSessions;
+
+        LooperEntry(Looper looper) {
+            this.looper = looper;
+        }
+
+        DispatchSession obtainSession() {
+            final DispatchSession session = mFreeSessions;
+            if (session == null) {
+                return new DispatchSession(this);
+            }
+            mFreeSessions = session.nextFree;
+            session.nextFree = null;
+            return session;
+        }
+
+        void recycleSession(DispatchSession session) {
+            session.nextFree = mFreeSessions;
+            mFreeSessions = session;
+        }
+
+        Entry getEntry(Message msg) {
+            mProbe.set(msg);
+            Entry entry = entries.get(mProbe);
+            if (entry == null) {
+                entry = new Entry(mProbe.handlerClass, mProbe.callbackClass, mProbe.what);
+                entries.put(entry, entry);
+            }
+            return entry;
+        }
+
+        List<Entry> sortedEntries() {
+            final List<Entry> list = new ArrayList<Entry>(entries.values());
+            Collections.sort(list, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return Long.compare(b.dispatchMicros.getSum(), a.dispatchMicros.getSum());
+                }
+            });
+            return list;
+        }
+    }
+
+    // Identified by the Handler class and by the callback class, or the what field of
+    // messages without a callback, like Handler#getMessageName.
+    private static final class Entry {
+        Class<?> handlerClass;
+        Class<?> callbackClass;
+        int what;
+
+        final LogLinearHistogram delayMillis;
+        final LogLinearHistogram dispatchMicros;
+        final AtomicLong exceptionCount;
+
+        Entry(Class<?> handlerClass, Class<?> callbackClass, int what) {
+            this.handlerClass = handlerClass;
+            this.callbackClass = callbackClass;
+            this.what = what;
+            if (handlerClass != null) {
+                delayMillis = new LogLinearHistogram(SUB_BUCKET_BITS, MAX_VALUE_BITS);
+                dispatchMicros = new LogLinearHistogram(SUB_BUCKET_BITS, MAX_VALUE_BITS);
+                exceptionCount = new AtomicLong();
+            } else {
+                delayMillis = null;
+                dispatchMicros = null;
+                exceptionCount = null;
+            }
+        }
+
+        void set(Message msg) {
+            handlerClass = msg.target.getClass();
+            callbackClass = msg.callback != null ? msg.callback.getClass() : null;
+            what = msg.callback != null ? 0 : msg.what;
+        }
+
+        String messageName() {
+            if (callbackClass != null) {
+                return callbackClass.getName();
+            }
+            return "0x" + Integer.toHexString(what);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry other = (Entry) o;
+            return handlerClass == other.handlerClass && callbackClass == other.callbackClass
+                    && what == other.what;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(handlerClass);
+            result = 31 * result + System.identityHashCode(callbackClass);
+            return 31 * result + what;
+        }
+    }
+}
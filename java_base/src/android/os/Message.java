@@ -19,6 +19,8 @@ package android.os;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import java.util.concurrent.atomic.LongAdder;
+
 
 /**
  *
@@ -128,6 +130,16 @@ public final class Message implements Parcelable {
     // sometimes we store linked lists of these things
         /*package*/ Message next;
 
+    // Position of this message in its MessageQueue heap, or -1 if not queued.
+    /*package*/ int heapIndex = -1;
+
+    // Enqueue order, used by MessageQueue to break ties between equal delivery times.
+    /*package*/ long queueSeq;
+
+    // Links in the MessageQueue list of messages queued for the same target.
+    /*package*/ Message handlerPrev;
+    /*package*/ Message handlerNext;
+
 
     /** @hide */
     public static final Object sPoolSync = new Object();
@@ -135,27 +147,149 @@ public final class Message implements Parcelable {
     private static int sPoolSize = 0;
 
     private static final int MAX_POOL_SIZE = 50;
+    private static final int MAX_LOCAL_POOL_SIZE = 16;
+
+    private static volatile int sMaxPoolSize = MAX_POOL_SIZE;
+    private static volatile int sMaxLocalPoolSize = MAX_LOCAL_POOL_SIZE;
+
+    // Each thread keeps recycled messages in its own pool first and only takes the
+    // global lock to move half a pool's worth of messages to or from the global pool.
+    private static final ThreadLocal<LocalPool> sLocalPool = new ThreadLocal<LocalPool>() {
+        @Override
+        protected LocalPool initialValue() {
+            return new LocalPool();
+        }
+    };
+
+    private static final LongAdder sPoolHits = new LongAdder();
+    private static final LongAdder sPoolMisses = new LongAdder();
 
     private static boolean gCheckRecycle = true;
 
+    private static final class LocalPool {
+        Message head;
+        int size;
+    }
+
     /**
      * Return a new Message instance from the global pool. Allows us to
      * avoid allocating new objects in many cases.
      */
     public static Message obtain() {
-        synchronized (sPoolSync) {
-            if (sPool != null) {
-                Message m = sPool;
-                sPool = m.next;
+        final int maxLocalSize = sMaxLocalPoolSize;
+        if (maxLocalSize > 0) {
+            final LocalPool local = sLocalPool.get();
+            if (local.head == null) {
+                takeFromGlobalPool(local, (maxLocalSize + 1) / 2);
+            }
+            final Message m = local.head;
+            if (m != null) {
+                local.head = m.next;
+                local.size--;
                 m.next = null;
                 m.flags = 0; // clear in-use flag
-                sPoolSize--;
+                sPoolHits.increment();
                 return m;
             }
+        } else {
+            synchronized (sPoolSync) {
+                if (sPool != null) {
+                    Message m = sPool;
+                    sPool = m.next;
+                    m.next = null;
+                    m.flags = 0; // clear in-use flag
+                    sPoolSize--;
+                    sPoolHits.increment();
+                    return m;
+                }
+            }
         }
+        sPoolMisses.increment();
         return new Message();
     }
 
+    // Moves up to count messages from the global pool to an empty thread pool.
+    private static void takeFromGlobalPool(LocalPool local, int count) {
+        synchronized (sPoolSync) {
+            Message head = sPool;
+            if (head == null) {
+                return;
+            }
+            Message tail = head;
+            int taken = 1;
+            while (taken < count && tail.next != null) {
+                tail = tail.next;
+                taken++;
+            }
+            sPool = tail.next;
+            sPoolSize -= taken;
+            tail.next = null;
+            local.head = head;
+            local.size = taken;
+        }
+    }
+
+    // Moves messages from a full thread pool to the global pool until the thread pool is
+    // half full.  Messages that do not fit in the global pool are left to the GC.
+    private static void giveToGlobalPool(LocalPool local, int maxLocalSize) {
+        int count = local.size - maxLocalSize / 2;
+        Message head = local.head;
+        Message tail = head;
+        for (int i = 1; i < count; i++) {
+            tail = tail.next;
+        }
+        local.head = tail.next;
+        local.size -= count;
+        tail.next = null;
+
+        synchronized (sPoolSync) {
+            final int maxSize = sMaxPoolSize;
+            while (head != null && sPoolSize < maxSize) {
+                final Message m = head;
+                head = m.next;
+                m.next = sPool;
+                sPool = m;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * Sets the number of recycled messages kept for reuse.  Up to {@code localSize}
+     * messages are kept by each thread, without locking, and up to {@code globalSize}
+     * more are shared by all threads.  A {@code localSize} of 0 disables the thread
+     * pools.  Changes apply to messages recycled afterwards.
+     *
+     * @hide
+     */
+    public static void setPoolSizes(int localSize, int globalSize) {
+        if (localSize < 0 || globalSize < 0) {
+            throw new IllegalArgumentException("Pool sizes must not be negative");
+        }
+        sMaxLocalPoolSize = localSize;
+        sMaxPoolSize = globalSize;
+    }
+
+    /**
+     * Returns the number of messages returned by {@link #obtain()} that were
+     * reused from a pool.
+     *
+     * @hide
+     */
+    public static long getPoolHitCount() {
+        return sPoolHits.sum();
+    }
+
+    /**
+     * Returns the number of messages {@link #obtain()} had to allocate because
+     * the pools were empty.
+     *
+     * @hide
+     */
+    public static long getPoolMissCount() {
+        return sPoolMisses.sum();
+    }
+
     /**
      * Same as {@link #obtain()}, but copies the values of an existing
      * message (including its target) into the new one.
@@ -328,8 +462,20 @@ public final class Message implements Parcelable {
         callback = null;
         data = null;
 
+        final int maxLocalSize = sMaxLocalPoolSize;
+        if (maxLocalSize > 0) {
+            final LocalPool local = sLocalPool.get();
+            if (local.size >= maxLocalSize) {
+                giveToGlobalPool(local, maxLocalSize);
+            }
+            next = local.head;
+            local.head = this;
+            local.size++;
+            return;
+        }
+
         synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
+            if (sPoolSize < sMaxPoolSize) {
                 next = sPool;
                 sPool = this;
                 sPoolSize++;
@@ -29,6 +29,10 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a
@@ -46,9 +50,42 @@ public final class MessageQueue {
         private final boolean mQuitAllowed;
 
         @SuppressWarnings("unused")
-    private long mPtr; // used by native code
+    private long mPtr; // used by native code, 0 until a file descriptor is watched
+
+    // Set once the queue has quit and been disposed.
+    private boolean mDisposed;
+
+    // The thread the queue was created on, which is the thread of its Looper.  The
+    // native queue binds to the native looper of the thread that creates it, so it
+    // is only created on this thread; other threads set mNativeInitPending and wake it.
+    private final Thread mLooperThread;
+    private volatile boolean mNativeInitPending;
+
+    // State of the Java poll used while no file descriptor is watched.  The looper
+    // thread parks in pollOnce() and wake() unparks it.  A wake that arrives before
+    // the looper parks is remembered in mWakePending, like the native wake event.
+    private volatile Thread mPollingThread;
+    private volatile boolean mPolling;
+    private volatile boolean mWakePending;
+
+    // Pending messages are kept in two binary min-heaps ordered by delivery time and then
+    // by enqueue order, except that messages enqueued with a time of 0 go in front of the
+    // ones enqueued before them.  This is the order the messages would have in a single
+    // list sorted by time.  Asynchronous messages are kept apart so that the earliest one
+    // can be found at once when the queue is stalled by a barrier.  Barriers go with the
+    // synchronous messages.
+        private final MessageHeap mMessages = new MessageHeap();
+    private final MessageHeap mAsyncMessages = new MessageHeap();
+    private long mNextSeq;
+
+    // For each target, the list of its pending messages, linked through
+    // Message.handlerNext, so that the has and remove methods only visit those.
+    private final IdentityHashMap<Handler, Message> mHandlerMessages =
+            new IdentityHashMap<Handler, Message>();
+
+    // The pending barriers by token.
+    private final SparseArray<Message> mBarriers = new SparseArray<Message>();
 
-        Message mMessages;
         private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
@@ -70,7 +107,7 @@ public final class MessageQueue {
 
     MessageQueue(boolean quitAllowed) {
         mQuitAllowed = quitAllowed;
-        mPtr = nativeInit();
+        mLooperThread = Thread.currentThread();
     }
 
     @Override
@@ -85,6 +122,7 @@ public final class MessageQueue {
     // Disposes of the underlying message queue.
     // Must only be called on the looper thread or the finalizer.
     private void dispose() {
+        mDisposed = true;
         if (mPtr != 0) {
             nativeDestroy(mPtr);
             mPtr = 0;
@@ -101,7 +139,8 @@ public final class MessageQueue {
     public boolean isIdle() {
         synchronized (this) {
             final long now = SystemClock.uptimeMillis();
-            return mMessages == null || now < mMessages.when;
+            final Message head = peekLocked();
+            return head == null || now < head.when;
         }
     }
 
@@ -158,8 +197,85 @@ public final class MessageQueue {
 
     private boolean isPollingLocked() {
         // If the loop is quitting then it must not be idling.
-        // We can assume mPtr != 0 when mQuitting is false.
-        return !mQuitting && nativeIsPolling(mPtr);
+        if (mQuitting) {
+            return false;
+        }
+        return mPtr != 0 ? nativeIsPolling(mPtr) : mPolling;
+    }
+
+    // Waits until woken or until the timeout expires: -1 waits indefinitely and
+    // 0 does not wait.  The native looper takes over once a file descriptor is
+    // watched, since file descriptor events can only be received there.
+    private void pollOnce(int timeoutMillis) {
+        if (mNativeInitPending) {
+            synchronized (this) {
+                initNativeLocked();
+            }
+        }
+
+        final long ptr = mPtr;
+        if (ptr != 0) {
+            // A wake recorded before the switch to the native looper did not
+            // reach it, so do not wait on this first native poll.
+            if (mWakePending) {
+                mWakePending = false;
+                timeoutMillis = 0;
+            }
+            nativePollOnce(ptr, timeoutMillis);
+            return;
+        }
+
+        if (timeoutMillis == 0 || mWakePending) {
+            mWakePending = false;
+            return;
+        }
+
+        // Parking returns at once while the interrupt status is set, so clear it
+        // for the wait and restore it afterwards.
+        boolean interrupted = Thread.interrupted();
+        final long deadline = timeoutMillis > 0
+                ? System.nanoTime() + timeoutMillis * 1000000L : 0;
+        mPollingThread = Thread.currentThread();
+        mPolling = true;
+        try {
+            // The queue switches to the native looper by waking this thread.
+            while (!mWakePending && !mNativeInitPending) {
+                if (timeoutMillis < 0) {
+                    LockSupport.park(this);
+                } else {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if (Thread.interrupted()) {
+                    // Interrupted while parked, keep it for the caller.
+                    interrupted = true;
+                }
+            }
+            mWakePending = false;
+        } finally {
+            mPolling = false;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Wakes the looper thread if it is waiting in pollOnce(), or makes the next
+    // pollOnce() return at once.
+    private void wake() {
+        final long ptr = mPtr;
+        if (ptr != 0) {
+            nativeWake(ptr);
+            return;
+        }
+        mWakePending = true;
+        final Thread thread = mPollingThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
     }
 
     /**
@@ -260,11 +376,47 @@ public final class MessageQueue {
                 record.mEvents = events;
                 record.mSeq += 1;
             }
+            if (mDisposed) {
+                return;
+            }
+            if (mPtr == 0) {
+                // First watched file descriptor, move the looper over to the native
+                // poll.  That has to happen on the looper thread, so from any other
+                // thread wake it up and let pollOnce() do it.
+                mNativeInitPending = true;
+                if (Thread.currentThread() == mLooperThread) {
+                    initNativeLocked();
+                } else {
+                    final Thread thread = mPollingThread;
+                    if (thread != null) {
+                        LockSupport.unpark(thread);
+                    }
+                }
+                return;
+            }
             nativeSetFileDescriptorEvents(mPtr, fdNum, events);
         } else if (record != null) {
             record.mEvents = 0;
             mFileDescriptorRecords.removeAt(index);
-            nativeSetFileDescriptorEvents(mPtr, fdNum, 0);
+            if (mPtr != 0) {
+                nativeSetFileDescriptorEvents(mPtr, fdNum, 0);
+            }
+        }
+    }
+
+    // Creates the native looper on the looper thread and watches the file descriptors
+    // registered so far.
+    private void initNativeLocked() {
+        if (!mNativeInitPending || mDisposed) {
+            return;
+        }
+        mNativeInitPending = false;
+        mPtr = nativeInit();
+        if (mFileDescriptorRecords != null) {
+            for (int i = 0; i < mFileDescriptorRecords.size(); i++) {
+                nativeSetFileDescriptorEvents(mPtr, mFileDescriptorRecords.keyAt(i),
+                        mFileDescriptorRecords.valueAt(i).mEvents);
+            }
         }
     }
 
@@ -321,8 +473,7 @@ public final class MessageQueue {
         // Return here if the message loop has already quit and been disposed.
         // This can happen if the application tries to restart a looper after quit
         // which is not supported.
-        final long ptr = mPtr;
-        if (ptr == 0) {
+        if (mDisposed) {
             return null;
         }
 
@@ -333,19 +484,16 @@ public final class MessageQueue {
                 Binder.flushPendingCommands();
             }
 
-            nativePollOnce(ptr, nextPollTimeoutMillis);
+            pollOnce(nextPollTimeoutMillis);
 
             synchronized (this) {
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
-                Message prevMsg = null;
-                Message msg = mMessages;
+                final Message head = peekLocked();
+                Message msg = head;
                 if (msg != null && msg.target == null) {
-                    // Stalled by a barrier.  Find the next asynchronous message in the queue.
-                    do {
-                        prevMsg = msg;
-                        msg = msg.next;
-                    } while (msg != null && !msg.isAsynchronous());
+                    // Stalled by a barrier.  Take the next asynchronous message in the queue.
+                    msg = mAsyncMessages.peek();
                 }
                 if (msg != null) {
                     if (now < msg.when) {
@@ -354,11 +502,7 @@ public final class MessageQueue {
                     } else {
                         // Got a message.
                         mBlocked = false;
-                        if (prevMsg != null) {
-                            prevMsg.next = msg.next;
-                        } else {
-                            mMessages = msg.next;
-                        }
+                        unlinkLocked(msg);
                         msg.next = null;
                         if (DEBUG) Log.v(TAG, "Returning message: " + msg);
                         msg.markInUse();
@@ -379,7 +523,7 @@ public final class MessageQueue {
                 // Idle handles only run if the queue is empty or if the first message
                 // in the queue (possibly a barrier) is due to be handled in the future.
                 if (pendingIdleHandlerCount < 0
-                        && (mMessages == null || now < mMessages.when)) {
+                        && (head == null || now < head.when)) {
                     pendingIdleHandlerCount = mIdleHandlers.size();
                 }
                 if (pendingIdleHandlerCount <= 0) {
@@ -440,8 +584,7 @@ public final class MessageQueue {
                 removeAllMessagesLocked();
             }
 
-            // We can assume mPtr != 0 because mQuitting was previously false.
-            nativeWake(mPtr);
+            wake();
         }
     }
 
@@ -483,21 +626,9 @@ public final class MessageQueue {
             msg.when = when;
             msg.arg1 = token;
 
-            Message prev = null;
-            Message p = mMessages;
-            if (when != 0) {
-                while (p != null && p.when <= when) {
-                    prev = p;
-                    p = p.next;
-                }
-            }
-            if (prev != null) { // invariant: p == prev.next
-                msg.next = p;
-                prev.next = msg;
-            } else {
-                msg.next = p;
-                mMessages = msg;
-            }
+            msg.queueSeq = mNextSeq++;
+            mMessages.add(msg);
+            mBarriers.put(token, msg);
             return token;
         }
     }
@@ -517,30 +648,22 @@ public final class MessageQueue {
         // Remove a sync barrier token from the queue.
         // If the queue is no longer stalled by a barrier then wake it.
         synchronized (this) {
-            Message prev = null;
-            Message p = mMessages;
-            while (p != null && (p.target != null || p.arg1 != token)) {
-                prev = p;
-                p = p.next;
-            }
+            final Message p = mBarriers.get(token);
             if (p == null) {
                 throw new IllegalStateException("The specified message queue synchronization "
                         + " barrier token has not been posted or has already been removed.");
             }
-            final boolean needWake;
-            if (prev != null) {
-                prev.next = p.next;
-                needWake = false;
-            } else {
-                mMessages = p.next;
-                needWake = mMessages == null || mMessages.target != null;
+            boolean needWake = peekLocked() == p;
+            unlinkLocked(p);
+            if (needWake) {
+                final Message head = peekLocked();
+                needWake = head == null || head.target != null;
             }
             p.recycleUnchecked();
 
             // If the loop is quitting then it is already awake.
-            // We can assume mPtr != 0 when mQuitting is false.
             if (needWake && !mQuitting) {
-                nativeWake(mPtr);
+                wake();
             }
         }
     }
@@ -565,36 +688,32 @@ public final class MessageQueue {
 
             msg.markInUse();
             msg.when = when;
-            Message p = mMessages;
+            msg.queueSeq = mNextSeq++;
+            final Message head = peekLocked();
+            if (msg.isAsynchronous()) {
+                mAsyncMessages.add(msg);
+            } else {
+                mMessages.add(msg);
+            }
+            final Message next = mHandlerMessages.put(msg.target, msg);
+            msg.handlerNext = next;
+            if (next != null) {
+                next.handlerPrev = msg;
+            }
+
             boolean needWake;
-            if (p == null || when == 0 || when < p.when) {
+            if (peekLocked() == msg) {
                 // New head, wake up the event queue if blocked.
-                msg.next = p;
-                mMessages = msg;
                 needWake = mBlocked;
             } else {
                 // Inserted within the middle of the queue.  Usually we don't have to wake
                 // up the event queue unless there is a barrier at the head of the queue
                 // and the message is the earliest asynchronous message in the queue.
-                needWake = mBlocked && p.target == null && msg.isAsynchronous();
-                Message prev;
-                for (;;) {
-                    prev = p;
-                    p = p.next;
-                    if (p == null || when < p.when) {
-                        break;
-                    }
-                    if (needWake && p.isAsynchronous()) {
-                        needWake = false;
-                    }
-                }
-                msg.next = p; // invariant: p == prev.next
-                prev.next = msg;
+                needWake = mBlocked && head.target == null && mAsyncMessages.peek() == msg;
             }
 
-            // We can assume mPtr != 0 because mQuitting is false.
             if (needWake) {
-                nativeWake(mPtr);
+                wake();
             }
         }
         return true;
@@ -606,12 +725,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                if (p.target == h && p.what == what && (object == null || p.obj == object)) {
+                if (p.what == what && (object == null || p.obj == object)) {
                     return true;
                 }
-                p = p.next;
+                p = p.handlerNext;
             }
             return false;
         }
@@ -623,12 +742,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                if (p.target == h && p.what == what && (object == null || object.equals(p.obj))) {
+                if (p.what == what && (object == null || object.equals(p.obj))) {
                     return true;
                 }
-                p = p.next;
+                p = p.handlerNext;
             }
             return false;
         }
@@ -640,12 +759,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
+                if (p.callback == r && (object == null || p.obj == object)) {
                     return true;
                 }
-                p = p.next;
+                p = p.handlerNext;
             }
             return false;
         }
@@ -657,14 +776,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-            while (p != null) {
-                if (p.target == h) {
-                    return true;
-                }
-                p = p.next;
-            }
-            return false;
+            return mHandlerMessages.containsKey(h);
         }
     }
 
@@ -674,28 +786,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h && p.what == what
-                   && (object == null || p.obj == object)) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
-            }
-
-            // Remove all messages after front.
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.what == what
-                        && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
-                    }
+                Message n = p.handlerNext;
+                if (p.what == what && (object == null || p.obj == object)) {
+                    unlinkLocked(p);
+                    p.recycleUnchecked();
                 }
                 p = n;
             }
@@ -708,28 +804,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h && p.what == what
-                   && (object == null || object.equals(p.obj))) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
-            }
-
-            // Remove all messages after front.
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.what == what
-                        && (object == null || object.equals(n.obj))) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
-                    }
+                Message n = p.handlerNext;
+                if (p.what == what && (object == null || object.equals(p.obj))) {
+                    unlinkLocked(p);
+                    p.recycleUnchecked();
                 }
                 p = n;
             }
@@ -742,28 +822,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h && p.callback == r
-                   && (object == null || p.obj == object)) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
-            }
-
-            // Remove all messages after front.
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.callback == r
-                        && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
-                    }
+                Message n = p.handlerNext;
+                if (p.callback == r && (object == null || p.obj == object)) {
+                    unlinkLocked(p);
+                    p.recycleUnchecked();
                 }
                 p = n;
             }
@@ -776,28 +840,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h && p.callback == r
-                   && (object == null || object.equals(p.obj))) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
-            }
-
-            // Remove all messages after front.
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.callback == r
-                        && (object == null || object.equals(n.obj))) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
-                    }
+                Message n = p.handlerNext;
+                if (p.callback == r && (object == null || object.equals(p.obj))) {
+                    unlinkLocked(p);
+                    p.recycleUnchecked();
                 }
                 p = n;
             }
@@ -811,27 +859,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h
-                    && (object == null || p.obj == object)) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
-            }
-
-            // Remove all messages after front.
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
-                    }
+                Message n = p.handlerNext;
+                if (object == null || p.obj == object) {
+                    unlinkLocked(p);
+                    p.recycleUnchecked();
                 }
                 p = n;
             }
@@ -844,27 +877,12 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h
-                    && (object == null || object.equals(p.obj))) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
-            }
-
-            // Remove all messages after front.
+            Message p = mHandlerMessages.get(h);
             while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && (object == null || object.equals(n.obj))) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
-                    }
+                Message n = p.handlerNext;
+                if (object == null || object.equals(p.obj)) {
+                    unlinkLocked(p);
+                    p.recycleUnchecked();
                 }
                 p = n;
             }
@@ -872,48 +890,79 @@ public final class MessageQueue {
     }
 
     private void removeAllMessagesLocked() {
-        Message p = mMessages;
-        while (p != null) {
-            Message n = p.next;
+        for (Message p : sortedMessagesLocked()) {
+            unlinkLocked(p);
             p.recycleUnchecked();
-            p = n;
         }
-        mMessages = null;
     }
 
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
-        Message p = mMessages;
-        if (p != null) {
+        for (Message p : sortedMessagesLocked()) {
             if (p.when > now) {
-                removeAllMessagesLocked();
-            } else {
-                Message n;
-                for (;;) {
-                    n = p.next;
-                    if (n == null) {
-                        return;
-                    }
-                    if (n.when > now) {
-                        break;
-                    }
-                    p = n;
-                }
-                p.next = null;
-                do {
-                    p = n;
-                    n = p.next;
-                    p.recycleUnchecked();
-                } while (n != null);
+                unlinkLocked(p);
+                p.recycleUnchecked();
             }
         }
     }
 
+    // Returns the first message in the queue, which may be a barrier, or null.
+    private Message peekLocked() {
+        final Message sync = mMessages.peek();
+        final Message async = mAsyncMessages.peek();
+        if (sync == null) {
+            return async;
+        }
+        if (async == null) {
+            return sync;
+        }
+        return MessageHeap.before(async, sync) ? async : sync;
+    }
+
+    // Removes a pending message or barrier from the queue without recycling it.
+    private void unlinkLocked(Message msg) {
+        if (mAsyncMessages.contains(msg)) {
+            mAsyncMessages.remove(msg);
+        } else {
+            mMessages.remove(msg);
+        }
+
+        if (msg.target == null) {
+            mBarriers.remove(msg.arg1);
+            return;
+        }
+        final Message prev = msg.handlerPrev;
+        final Message next = msg.handlerNext;
+        if (prev != null) {
+            prev.handlerNext = next;
+        } else if (next != null) {
+            mHandlerMessages.put(msg.target, next);
+        } else {
+            mHandlerMessages.remove(msg.target);
+        }
+        if (next != null) {
+            next.handlerPrev = prev;
+        }
+        msg.handlerPrev = null;
+        msg.handlerNext = null;
+    }
+
+    // Returns all pending messages in the order they will be delivered when no
+    // barrier is posted.
+    private Message[] sortedMessagesLocked() {
+        final Message[] messages = new Message[mMessages.mSize + mAsyncMessages.mSize];
+        System.arraycopy(mMessages.mItems, 0, messages, 0, mMessages.mSize);
+        System.arraycopy(mAsyncMessages.mItems, 0, messages, mMessages.mSize,
+                mAsyncMessages.mSize);
+        Arrays.sort(messages, MessageHeap.ORDER);
+        return messages;
+    }
+
     void dump(Printer pw, String prefix, Handler h) {
         synchronized (this) {
             long now = SystemClock.uptimeMillis();
             int n = 0;
-            for (Message msg = mMessages; msg != null; msg = msg.next) {
+            for (Message msg : sortedMessagesLocked()) {
                 if (h == null || h == msg.target) {
                     pw.println(prefix + "Message " + n + ": " + msg.toString(now));
                 }
@@ -928,7 +977,7 @@ public final class MessageQueue {
     void dumpDebug(ProtoOutputStream proto, long fieldId) {
         final long messageQueueToken = proto.start(fieldId);
         synchronized (this) {
-            for (Message msg = mMessages; msg != null; msg = msg.next) {
+            for (Message msg : sortedMessagesLocked()) {
                 msg.dumpDebug(proto, MessageQueueProto.MESSAGES);
             }
             proto.write(MessageQueueProto.IS_POLLING_LOCKED, isPollingLocked());
@@ -1041,4 +1090,95 @@ public final class MessageQueue {
             mListener = listener;
         }
     }
+
+    /**
+     * A binary min-heap of messages in delivery order.  Each message records its
+     * position in {@link Message#heapIndex} so that it can be removed in O(log n).
+     */
+    private static final class MessageHeap {
+        static final Comparator<Message> ORDER = new Comparator<Message>() {
+            @Override
+            public int compare(Message a, Message b) {
+                return before(a, b) ? -1 : (before(b, a) ? 1 : 0);
+            }
+        };
+
+        Message[] mItems = new Message[16];
+        int mSize;
+
+        // Messages are delivered by time.  Between equal times, the earlier enqueued
+        // message goes first, except for a time of 0, which puts a message in front.
+        static boolean before(Message a, Message b) {
+            if (a.when != b.when) {
+                return a.when < b.when;
+            }
+            return a.when == 0 ? a.queueSeq > b.queueSeq : a.queueSeq < b.queueSeq;
+        }
+
+        Message peek() {
+            return mSize == 0 ? null : mItems[0];
+        }
+
+        boolean contains(Message msg) {
+            final int i = msg.heapIndex;
+            return i >= 0 && i < mSize && mItems[i] == msg;
+        }
+
+        void add(Message msg) {
+            if (mSize == mItems.length) {
+                mItems = Arrays.copyOf(mItems, mSize * 2);
+            }
+            siftUp(mSize++, msg);
+        }
+
+        void remove(Message msg) {
+            final int i = msg.heapIndex;
+            final int last = --mSize;
+            final Message moved = mItems[last];
+            mItems[last] = null;
+            msg.heapIndex = -1;
+            if (i != last) {
+                siftDown(i, moved);
+                if (mItems[i] == moved) {
+                    siftUp(i, moved);
+                }
+            }
+        }
+
+        private void siftUp(int i, Message msg) {
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                final Message p = mItems[parent];
+                if (!before(msg, p)) {
+                    break;
+                }
+                mItems[i] = p;
+                p.heapIndex = i;
+                i = parent;
+            }
+            mItems[i] = msg;
+            msg.heapIndex = i;
+        }
+
+        private void siftDown(int i, Message msg) {
+            final int half = mSize >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                Message c = mItems[child];
+                final int right = child + 1;
+                if (right < mSize && before(mItems[right], c)) {
+                    child = right;
+                    c = mItems[child];
+                }
+                if (!before(c, msg)) {
+                    break;
+                }
+                mItems[i] = c;
+                c.heapIndex = i;
+                i = child;
+            }
+            mItems[i] = msg;
+            msg.heapIndex = i;
+        }
+    }
 }
@@ -54,6 +54,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -234,6 +235,13 @@ public final class Parcel {
      * indicating that we're responsible for its lifecycle.
      */
     private boolean mOwnsNativeParcelObject;
+
+    /**
+     * The parcel data. Reads and writes stay on the Java side; native
+     * code only touches the data in bulk, reading the direct buffer
+     * returned by {@link ParcelBuffer#buffer} when a transaction is sent.
+     */
+    private ParcelBuffer mData;
     private long mNativeSize;
 
     private ArrayMap<Class, Object> mClassCookies;
@@ -341,96 +349,9 @@ public final class Parcel {
     private static final int EX_TRANSACTION_FAILED = -129;
 
     
-    private static native void nativeMarkSensitive(long nativePtr);
-    
-    private static native void nativeMarkForBinder(long nativePtr, IBinder binder);
-    
-    private static native int nativeDataSize(long nativePtr);
-    
-    private static native int nativeDataAvail(long nativePtr);
-    
-    private static native int nativeDataPosition(long nativePtr);
-    
-    private static native int nativeDataCapacity(long nativePtr);
-    
-    private static native void nativeSetDataSize(long nativePtr, int size);
-    
-    private static native void nativeSetDataPosition(long nativePtr, int pos);
-    
-    private static native void nativeSetDataCapacity(long nativePtr, int size);
-
-    
-    private static native boolean nativePushAllowFds(long nativePtr, boolean allowFds);
-    
-    private static native void nativeRestoreAllowFds(long nativePtr, boolean lastValue);
-
-    private static native void nativeWriteByteArray(long nativePtr, byte[] b, int offset, int len);
-    private static native void nativeWriteBlob(long nativePtr, byte[] b, int offset, int len);
-    
-    private static native int nativeWriteInt(long nativePtr, int val);
-    
-    private static native int nativeWriteLong(long nativePtr, long val);
-    
-    private static native int nativeWriteFloat(long nativePtr, float val);
-    
-    private static native int nativeWriteDouble(long nativePtr, double val);
-    private static native void nativeSignalExceptionForError(int error);
-    
-    private static native void nativeWriteString8(long nativePtr, String val);
-    
-    private static native void nativeWriteString16(long nativePtr, String val);
-    
-    private static native void nativeWriteStrongBinder(long nativePtr, IBinder val);
-    
-    private static native void nativeWriteFileDescriptor(long nativePtr, FileDescriptor val);
-
-    private static native byte[] nativeCreateByteArray(long nativePtr);
-    private static native boolean nativeReadByteArray(long nativePtr, byte[] dest, int destLen);
-    private static native byte[] nativeReadBlob(long nativePtr);
-    
-    private static native int nativeReadInt(long nativePtr);
-    
-    private static native long nativeReadLong(long nativePtr);
-    
-    private static native float nativeReadFloat(long nativePtr);
-    
-    private static native double nativeReadDouble(long nativePtr);
-    
-    private static native String nativeReadString8(long nativePtr);
-    
-    private static native String nativeReadString16(long nativePtr);
-    
-    private static native IBinder nativeReadStrongBinder(long nativePtr);
-    
-    private static native FileDescriptor nativeReadFileDescriptor(long nativePtr);
-
-    private static native long nativeCreate();
-    private static native void nativeFreeBuffer(long nativePtr);
-    private static native void nativeDestroy(long nativePtr);
-
-    private static native byte[] nativeMarshall(long nativePtr);
-    private static native void nativeUnmarshall(
-            long nativePtr, byte[] data, int offset, int length);
-    private static native int nativeCompareData(long thisNativePtr, long otherNativePtr);
-    private static native boolean nativeCompareDataInRange(
-            long ptrA, int offsetA, long ptrB, int offsetB, int length);
-    private static native void nativeAppendFrom(
-            long thisNativePtr, long otherNativePtr, int offset, int length);
-    
-    private static native boolean nativeHasFileDescriptors(long nativePtr);
-    private static native boolean nativeHasFileDescriptorsInRange(
-            long nativePtr, int offset, int length);
-    private static native void nativeWriteInterfaceToken(long nativePtr, String interfaceName);
-    private static native void nativeEnforceInterface(long nativePtr, String interfaceName);
-
-    
-    private static native boolean nativeReplaceCallingWorkSourceUid(long nativePtr, int workSourceUid);
-    
-    private static native int nativeReadCallingWorkSourceUid(long nativePtr);
-    
-    private static native long nativeGetOpenAshmemSize(long nativePtr);
-
-    private static native void nativeFinalize(Parcel obj);
+    // The interface token's strict mode policy asks the callee to gather
+    // violations. Keep in sync with libbinder's Parcel.cpp.
+    private static final int STRICT_MODE_PENALTY_GATHER = 1 << 31;
 
 
     /** Last time exception with a stack trace was written */
@@ -580,10 +501,14 @@ public final class Parcel {
     }
 
     /** @hide */
-    public static native long getGlobalAllocSize();
+    public static long getGlobalAllocSize() {
+        return ParcelBuffer.getGlobalAllocSize();
+    }
 
     /** @hide */
-    public static native long getGlobalAllocCount();
+    public static long getGlobalAllocCount() {
+        return ParcelBuffer.getGlobalAllocCount();
+    }
 
     /**
      * Parcel data should be zero'd before realloc'd or deleted.
@@ -600,14 +525,14 @@ public final class Parcel {
      * @hide
      */
     public final void markSensitive() {
-        nativeMarkSensitive(mNativePtr);
+        mData.markSensitive();
     }
 
     /**
      * @hide
      */
     private void markForBinder(@NonNull IBinder binder) {
-        nativeMarkForBinder(mNativePtr, binder);
+        // Only the kernel binder wire format is written, whatever the binder.
     }
 
     /** @hide */
@@ -648,7 +573,7 @@ public final class Parcel {
      * Returns the total amount of data contained in the parcel.
      */
     public int dataSize() {
-        return nativeDataSize(mNativePtr);
+        return mData.dataSize();
     }
 
     /**
@@ -656,7 +581,7 @@ public final class Parcel {
      * parcel.  That is, {@link #dataSize}-{@link #dataPosition}.
      */
     public final int dataAvail() {
-        return nativeDataAvail(mNativePtr);
+        return mData.dataAvail();
     }
 
     /**
@@ -664,7 +589,7 @@ public final class Parcel {
      * more than {@link #dataSize}.
      */
     public final int dataPosition() {
-        return nativeDataPosition(mNativePtr);
+        return mData.dataPosition();
     }
 
     /**
@@ -674,7 +599,7 @@ public final class Parcel {
      * data buffer.
      */
     public final int dataCapacity() {
-        return nativeDataCapacity(mNativePtr);
+        return mData.dataCapacity();
     }
 
     /**
@@ -685,7 +610,7 @@ public final class Parcel {
      * @param size The new number of bytes in the Parcel.
      */
     public final void setDataSize(int size) {
-        nativeSetDataSize(mNativePtr, size);
+        mData.setDataSize(size);
     }
 
     /**
@@ -694,7 +619,7 @@ public final class Parcel {
      * {@link #dataSize}.
      */
     public final void setDataPosition(int pos) {
-        nativeSetDataPosition(mNativePtr, pos);
+        mData.setDataPosition(pos);
     }
 
     /**
@@ -705,17 +630,17 @@ public final class Parcel {
      * with this method.
      */
     public final void setDataCapacity(int size) {
-        nativeSetDataCapacity(mNativePtr, size);
+        mData.setDataCapacity(size);
     }
 
     /** @hide */
     public final boolean pushAllowFds(boolean allowFds) {
-        return nativePushAllowFds(mNativePtr, allowFds);
+        return mData.pushAllowFds(allowFds);
     }
 
     /** @hide */
     public final void restoreAllowFds(boolean lastValue) {
-        nativeRestoreAllowFds(mNativePtr, lastValue);
+        mData.restoreAllowFds(lastValue);
     }
 
     /**
@@ -730,28 +655,34 @@ public final class Parcel {
      * in different versions of the platform.
      */
     public final byte[] marshall() {
-        return nativeMarshall(mNativePtr);
+        return mData.marshall();
     }
 
     /**
      * Set the bytes in data to be the raw bytes of this Parcel.
      */
     public final void unmarshall(@NonNull byte[] data, int offset, int length) {
-        nativeUnmarshall(mNativePtr, data, offset, length);
+        mData.unmarshall(data, offset, length);
     }
 
+    /**
+     * Append raw bytes of another parcel at the current {@link #dataPosition}.
+     * When this parcel is empty and the range holds no binders or file
+     * descriptors, the bytes are shared with {@code parcel} and only copied
+     * once either parcel writes to them.
+     */
     public final void appendFrom(Parcel parcel, int offset, int length) {
-        nativeAppendFrom(mNativePtr, parcel.mNativePtr, offset, length);
+        mData.appendFrom(parcel.mData, offset, length);
     }
 
     /** @hide */
     public int compareData(Parcel other) {
-        return nativeCompareData(mNativePtr, other.mNativePtr);
+        return mData.compareData(other.mData);
     }
 
     /** @hide */
     public static boolean compareData(Parcel a, int offsetA, Parcel b, int offsetB, int length) {
-        return nativeCompareDataInRange(a.mNativePtr, offsetA, b.mNativePtr, offsetB, length);
+        return ParcelBuffer.compareData(a.mData, offsetA, b.mData, offsetB, length);
     }
 
     /** @hide */
@@ -793,7 +724,7 @@ public final class Parcel {
      * Report whether the parcel contains any marshalled file descriptors.
      */
     public boolean hasFileDescriptors() {
-        return nativeHasFileDescriptors(mNativePtr);
+        return mData.hasFileDescriptors();
     }
 
     /**
@@ -808,7 +739,7 @@ public final class Parcel {
      * @throws IllegalArgumentException if the parameters are out of the permitted ranges.
      */
     public boolean hasFileDescriptors(int offset, int length) {
-        return nativeHasFileDescriptorsInRange(mNativePtr, offset, length);
+        return mData.hasFileDescriptors(offset, length);
     }
 
     /**
@@ -891,7 +822,8 @@ public final class Parcel {
      * at the beginning of transactions as a header.
      */
     public final void writeInterfaceToken(@NonNull String interfaceName) {
-        nativeWriteInterfaceToken(mNativePtr, interfaceName);
+        mData.writeInterfaceToken(
+                Binder.getThreadStrictModePolicy() | STRICT_MODE_PENALTY_GATHER, interfaceName);
     }
 
     /**
@@ -901,7 +833,9 @@ public final class Parcel {
      * should propagate to the caller.
      */
     public final void enforceInterface(@NonNull String interfaceName) {
-        nativeEnforceInterface(mNativePtr, interfaceName);
+        if (!mData.enforceInterface(interfaceName)) {
+            throw new SecurityException("Binder invocation to an incorrect interface");
+        }
     }
 
     /**
@@ -927,7 +861,7 @@ public final class Parcel {
      * @hide
      */
     public boolean replaceCallingWorkSourceUid(int workSourceUid) {
-        return nativeReplaceCallingWorkSourceUid(mNativePtr, workSourceUid);
+        return mData.replaceCallingWorkSourceUid(workSourceUid);
     }
 
     /**
@@ -943,7 +877,7 @@ public final class Parcel {
      * @hide
      */
     public int readCallingWorkSourceUid() {
-        return nativeReadCallingWorkSourceUid(mNativePtr);
+        return mData.readCallingWorkSourceUid();
     }
 
     /**
@@ -968,7 +902,7 @@ public final class Parcel {
             return;
         }
         ArrayUtils.throwsIfOutOfBounds(b.length, offset, len);
-        nativeWriteByteArray(mNativePtr, b, offset, len);
+        mData.writeByteArray(b, offset, len);
     }
 
     /**
@@ -997,23 +931,15 @@ public final class Parcel {
             return;
         }
         ArrayUtils.throwsIfOutOfBounds(b.length, offset, len);
-        nativeWriteBlob(mNativePtr, b, offset, len);
+        mData.writeBlob(b, offset, len);
     }
 
-    // The OK status from system/core/libutils/include/utils/Errors.h .
-    // We shall pass all other error codes back to native for throwing exceptions. The error
-    // check is done in Java to allow using  calls for the success path.
-    private static final int OK = 0;
-
     /**
      * Write an integer value into the parcel at the current dataPosition(),
      * growing dataCapacity() if needed.
      */
     public final void writeInt(int val) {
-        int err = nativeWriteInt(mNativePtr, val);
-        if (err != OK) {
-            nativeSignalExceptionForError(err);
-        }
+        mData.writeInt(val);
     }
 
     /**
@@ -1021,10 +947,7 @@ public final class Parcel {
      * growing dataCapacity() if needed.
      */
     public final void writeLong(long val) {
-        int err = nativeWriteLong(mNativePtr, val);
-        if (err != OK) {
-            nativeSignalExceptionForError(err);
-        }
+        mData.writeLong(val);
     }
 
     /**
@@ -1032,10 +955,7 @@ public final class Parcel {
      * dataPosition(), growing dataCapacity() if needed.
      */
     public final void writeFloat(float val) {
-        int err = nativeWriteFloat(mNativePtr, val);
-        if (err != OK) {
-            nativeSignalExceptionForError(err);
-        }
+        mData.writeFloat(val);
     }
 
     /**
@@ -1043,10 +963,7 @@ public final class Parcel {
      * current dataPosition(), growing dataCapacity() if needed.
      */
     public final void writeDouble(double val) {
-        int err = nativeWriteDouble(mNativePtr, val);
-        if (err != OK) {
-            nativeSignalExceptionForError(err);
-        }
+        mData.writeDouble(val);
     }
 
     /**
@@ -1080,12 +997,12 @@ public final class Parcel {
 
     /** {@hide} */
     public void writeString8NoHelper(@Nullable String val) {
-        nativeWriteString8(mNativePtr, val);
+        mData.writeString8(val);
     }
 
     /** {@hide} */
     public void writeString16NoHelper(@Nullable String val) {
-        nativeWriteString16(mNativePtr, val);
+        mData.writeString16(val);
     }
 
     /**
@@ -1114,7 +1031,7 @@ public final class Parcel {
      * growing dataCapacity() if needed.
      */
     public final void writeStrongBinder(IBinder val) {
-        nativeWriteStrongBinder(mNativePtr, val);
+        mData.writeStrongBinder(val);
     }
 
     /**
@@ -1136,7 +1053,7 @@ public final class Parcel {
      * if {@link Parcelable#PARCELABLE_WRITE_RETURN_VALUE} is set.</p>
      */
     public final void writeFileDescriptor(@NonNull FileDescriptor val) {
-        nativeWriteFileDescriptor(mNativePtr, val);
+        mData.writeFileDescriptor(val);
     }
 
     /**
@@ -1144,7 +1061,7 @@ public final class Parcel {
      * This will be the new name for writeFileDescriptor, for consistency.
      **/
     public final void writeRawFileDescriptor(@NonNull FileDescriptor val) {
-        nativeWriteFileDescriptor(mNativePtr, val);
+        mData.writeFileDescriptor(val);
     }
 
     /**
@@ -3006,14 +2923,14 @@ public final class Parcel {
      * Read an integer value from the parcel at the current dataPosition().
      */
     public final int readInt() {
-        return nativeReadInt(mNativePtr);
+        return mData.readInt();
     }
 
     /**
      * Read a long integer value from the parcel at the current dataPosition().
      */
     public final long readLong() {
-        return nativeReadLong(mNativePtr);
+        return mData.readLong();
     }
 
     /**
@@ -3021,7 +2938,7 @@ public final class Parcel {
      * dataPosition().
      */
     public final float readFloat() {
-        return nativeReadFloat(mNativePtr);
+        return mData.readFloat();
     }
 
     /**
@@ -3029,7 +2946,7 @@ public final class Parcel {
      * current dataPosition().
      */
     public final double readDouble() {
-        return nativeReadDouble(mNativePtr);
+        return mData.readDouble();
     }
 
     /**
@@ -3063,12 +2980,12 @@ public final class Parcel {
 
     /** {@hide} */
     public @Nullable String readString8NoHelper() {
-        return nativeReadString8(mNativePtr);
+        return mData.readString8();
     }
 
     /** {@hide} */
     public @Nullable String readString16NoHelper() {
-        return nativeReadString16(mNativePtr);
+        return mData.readString16();
     }
 
     /**
@@ -3092,7 +3009,7 @@ public final class Parcel {
      * Read an object from the parcel at the current dataPosition().
      */
     public final IBinder readStrongBinder() {
-        final IBinder result = nativeReadStrongBinder(mNativePtr);
+        final IBinder result = mData.readStrongBinder();
 
         // If it's a reply from a method with @PropagateAllowBlocking, then inherit allow-blocking
         // from the object that returned it.
@@ -3107,14 +3024,22 @@ public final class Parcel {
      * Read a FileDescriptor from the parcel at the current dataPosition().
      */
     public final ParcelFileDescriptor readFileDescriptor() {
-        FileDescriptor fd = nativeReadFileDescriptor(mNativePtr);
-        return fd != null ? new ParcelFileDescriptor(fd) : null;
+        FileDescriptor fd = mData.readFileDescriptor();
+        if (fd == null) {
+            return null;
+        }
+        // the descriptor still belongs to the writer, the result closes its own copy
+        try {
+            return ParcelFileDescriptor.dup(fd);
+        } catch (IOException e) {
+            throw new BadParcelableException(e);
+        }
     }
 
     /** {@hide} */
     
     public final FileDescriptor readRawFileDescriptor() {
-        return nativeReadFileDescriptor(mNativePtr);
+        return mData.readFileDescriptor();
     }
 
     /**
@@ -3340,7 +3265,7 @@ public final class Parcel {
      */
     @Nullable
     public final byte[] createByteArray() {
-        return nativeCreateByteArray(mNativePtr);
+        return mData.createByteArray();
     }
 
     /**
@@ -3348,7 +3273,7 @@ public final class Parcel {
      * given byte array.
      */
     public final void readByteArray(@NonNull byte[] val) {
-        boolean valid = nativeReadByteArray(mNativePtr, val, (val != null) ? val.length : 0);
+        boolean valid = mData.readByteArray(val, (val != null) ? val.length : 0);
         if (!valid) {
             throw new RuntimeException("bad array lengths");
         }
@@ -3361,7 +3286,7 @@ public final class Parcel {
      */
     @Nullable
     public final byte[] readBlob() {
-        return nativeReadBlob(mNativePtr);
+        return mData.readBlob();
     }
 
     /**
@@ -4338,6 +4263,115 @@ public final class Parcel {
     }
 
 
+    /**
+     * Reads the value written by {@link #writeValue(Object)} at {@code position}, leaving the
+     * data position unchanged.
+     *
+     * @see #readValue(int, ClassLoader, Class, Class[])
+     * @hide
+     */
+    @Nullable
+    <T> T readValueAt(int position, @Nullable ClassLoader loader, @Nullable Class<T> clazz,
+            @Nullable Class<?>... itemTypes) {
+        int restore = dataPosition();
+        try {
+            setDataPosition(position);
+            return readValue(loader, clazz, itemTypes);
+        } finally {
+            setDataPosition(restore);
+        }
+    }
+
+    /**
+     * Moves the data position past a value written by {@link #writeValue(Object)} without
+     * decoding it. Length-prefixed values are skipped by their length, and the other types by
+     * their size on the wire, so nothing is instantiated.
+     *
+     * @return false if the value can only be skipped by reading it, as for {@link CharSequence}s
+     *         with spans, or the data is malformed. The data position is then unspecified.
+     * @hide
+     */
+    boolean skipValue() {
+        int type = readInt();
+        if (isLengthPrefixed(type)) {
+            return skipBytes(readInt());
+        }
+        switch (type) {
+            case VAL_NULL:
+                return true;
+
+            case VAL_INTEGER:
+            case VAL_SHORT:
+            case VAL_FLOAT:
+            case VAL_BOOLEAN:
+            case VAL_BYTE:
+            case VAL_CHAR:
+                return skipBytes(4);
+
+            case VAL_LONG:
+            case VAL_DOUBLE:
+            case VAL_SIZE:
+            case VAL_SIZEF:
+                return skipBytes(8);
+
+            case VAL_STRING:
+                return skipString16();
+
+            case VAL_BYTEARRAY: {
+                int n = readInt();
+                return n < 0 || skipBytes(((long) n + 3) & ~3L);
+            }
+            case VAL_BOOLEANARRAY:
+            case VAL_SHORTARRAY:
+            case VAL_CHARARRAY:
+            case VAL_INTARRAY:
+            case VAL_FLOATARRAY: {
+                int n = readInt();
+                return n < 0 || skipBytes(n * 4L);
+            }
+            case VAL_LONGARRAY:
+            case VAL_DOUBLEARRAY:
+            case VAL_SPARSEBOOLEANARRAY: {
+                int n = readInt();
+                return n < 0 || skipBytes(n * 8L);
+            }
+            case VAL_STRINGARRAY: {
+                int n = readInt();
+                for (int i = 0; i < n; i++) {
+                    if (!skipString16()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case VAL_BUNDLE:
+            case VAL_PERSISTABLEBUNDLE: {
+                // length, then magic and data unless empty or null
+                int length = readInt();
+                return length <= 0 || skipBytes(4L + length);
+            }
+            case VAL_IBINDER:
+                mData.readStrongBinder();
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private boolean skipString16() {
+        int n = readInt();
+        return n < 0 || skipBytes(((n + 1L) * 2 + 3) & ~3L);
+    }
+
+    private boolean skipBytes(long length) {
+        if (length < 0 || length > dataAvail()) {
+            return false;
+        }
+        setDataPosition(dataPosition() + (int) length);
+        return true;
+    }
+
     private static final class LazyValue implements BiFunction<Class<?>, Class<?>[], Object> {
         /**
          *                      |   4B   |   4B   |
@@ -5082,12 +5116,26 @@ public final class Parcel {
         init(nativePtr);
     }
 
+    /**
+     * Wraps a parcel owned by native code, whose data is read and written
+     * in place through {@code data}. Used by native code for the parcels of
+     * an incoming transaction.
+     */
+    private Parcel(long nativePtr, ByteBuffer data) {
+        mNativePtr = nativePtr;
+        mOwnsNativeParcelObject = false;
+        mData = new ParcelBuffer(data);
+    }
+
     private void init(long nativePtr) {
+        if (mData == null) {
+            mData = new ParcelBuffer();
+        }
         if (nativePtr != 0) {
             mNativePtr = nativePtr;
             mOwnsNativeParcelObject = false;
         } else {
-            mNativePtr = nativeCreate();
+            mNativePtr = 0;
             mOwnsNativeParcelObject = true;
         }
     }
@@ -5095,20 +5143,16 @@ public final class Parcel {
     private void freeBuffer() {
         mFlags = 0;
         resetSqaushingState();
-        if (mOwnsNativeParcelObject) {
-            nativeFreeBuffer(mNativePtr);
-        }
+        mData.free();
         mReadWriteHelper = ReadWriteHelper.DEFAULT;
     }
 
     private void destroy() {
         resetSqaushingState();
-        if (mNativePtr != 0) {
-            if (mOwnsNativeParcelObject) {
-                nativeDestroy(mNativePtr);
-            }
-            mNativePtr = 0;
+        if (mData != null) {
+            mData.release();
         }
+        mNativePtr = 0;
     }
 
     @Override
@@ -5357,7 +5401,8 @@ public final class Parcel {
      * @hide For testing
      */
     public long getOpenAshmemSize() {
-        return nativeGetOpenAshmemSize(mNativePtr);
+        // blobs are always written in place
+        return 0;
     }
 
     private static String valueTypeToString(int type) {
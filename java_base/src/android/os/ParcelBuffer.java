@@ -0,0 +1,824 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The data of a {@link Parcel}, kept on the Java side in a growable
+ * direct {@link ByteBuffer} so that reading and writing primitives does
+ * not cross JNI. The layout is the one libbinder uses: values are in
+ * native byte order and padded to 4 bytes, strings and arrays are
+ * prefixed by their length, and binders and file descriptors are
+ * flattened into {@code flat_binder_object} records.
+ *
+ * <p>The objects behind flattened binders and file descriptors are kept
+ * in a side table. The record stores the index of its entry, and the
+ * offset of the record is kept next to it, so native code handing the
+ * parcel to the driver can find every object the same way it finds them
+ * in a native parcel.
+ *
+ * <p>Appending a range without objects to an empty buffer shares the
+ * source's memory instead of copying it. Both buffers then only read
+ * it, and whichever writes first copies its data out, so copies of
+ * parcelled bundles cost nothing until one of them changes.
+ *
+ * <p>Like {@code Parcel}, this class is not thread safe.
+ */
+final class ParcelBuffer {
+
+    private static int packChars(char c1, char c2, char c3, int c4) {
+        return (c1 << 24) | (c2 << 16) | (c3 << 8) | c4;
+    }
+
+    // Keep in sync with the kernel's uapi/linux/android/binder.h.
+    private static final int BINDER_TYPE_BINDER = packChars('s', 'b', '*', 0x85);
+    private static final int BINDER_TYPE_HANDLE = packChars('s', 'h', '*', 0x85);
+    private static final int BINDER_TYPE_FD = packChars('f', 'd', '*', 0x85);
+    private static final int FLAT_BINDER_FLAG_PRIORITY_MASK = 0x7f;
+    private static final int FLAT_BINDER_FLAG_ACCEPTS_FDS = 0x100;
+    /** type, flags, binder or handle, cookie */
+    private static final int FLAT_BINDER_OBJECT_SIZE = 24;
+
+    // Keep in sync with libbinder's Parcel.cpp.
+    private static final int INTERFACE_HEADER = packChars('S', 'Y', 'S', 'T');
+    private static final int BLOB_INPLACE = 0;
+    private static final int STABILITY_UNDECLARED = 0;
+
+    private static final int MIN_CAPACITY = 128;
+
+    /**
+     * Largest buffer a parcel keeps when its data is freed, so pooled
+     * parcels do not hold on to the memory of one large transaction.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private static final AtomicLong sAllocSize = new AtomicLong();
+    private static final AtomicLong sAllocCount = new AtomicLong();
+
+    private ByteBuffer mData;
+    /** true if mData was handed in by native code and is not ours to count */
+    private boolean mBorrowed;
+    /**
+     * Non-null once mData was shared with another buffer; counts the
+     * buffers referring to the memory. mData may be a slice of it.
+     */
+    private SharedData mShared;
+    private int mDataSize;
+    private int mDataPos;
+
+    /*
+     * Flattened objects. Entries are never moved, as records refer to
+     * them by index; an entry whose record was overwritten or cut off
+     * has its offset set to -1.
+     */
+    private Object[] mObjects;
+    private int[] mObjectOffsets;
+    private int mObjectCount;
+
+    private boolean mAllowFds = true;
+    private boolean mSensitive;
+    private int mWorkSourcePos = -1;
+
+    ParcelBuffer() {
+    }
+
+    /**
+     * Creates a buffer over parcel data owned by native code. The data
+     * is read and written in place until the parcel needs to grow.
+     */
+    ParcelBuffer(ByteBuffer data) {
+        mData = data.order(ByteOrder.nativeOrder());
+        mBorrowed = true;
+        mDataSize = data.limit();
+    }
+
+    /** Total bytes of all live parcel buffers. */
+    static long getGlobalAllocSize() {
+        return sAllocSize.get();
+    }
+
+    /** Number of live parcel buffers. */
+    static long getGlobalAllocCount() {
+        return sAllocCount.get();
+    }
+
+    /**
+     * Returns the direct buffer holding the data, for native code
+     * passing the parcel to a transaction, or {@code null} if nothing
+     * was ever written. The data is the first {@link #dataSize} bytes.
+     */
+    ByteBuffer buffer() {
+        return mData;
+    }
+
+    int dataSize() {
+        return mDataSize;
+    }
+
+    int dataAvail() {
+        return mDataSize > mDataPos ? mDataSize - mDataPos : 0;
+    }
+
+    int dataPosition() {
+        return mDataPos;
+    }
+
+    int dataCapacity() {
+        return mData != null ? mData.capacity() : 0;
+    }
+
+    void setDataSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0: " + size);
+        }
+        ensureWritable(size);
+        if (size > mDataSize) {
+            zero(mDataSize, size);
+        } else {
+            dropObjects(size, Integer.MAX_VALUE);
+        }
+        mDataSize = size;
+        if (mDataPos > size) {
+            mDataPos = size;
+        }
+    }
+
+    void setDataPosition(int pos) {
+        if (pos < 0) {
+            throw new IllegalArgumentException("pos < 0: " + pos);
+        }
+        mDataPos = pos;
+    }
+
+    void setDataCapacity(int size) {
+        if (size > dataCapacity()) {
+            reallocate(size);
+        }
+    }
+
+    boolean pushAllowFds(boolean allowFds) {
+        boolean lastValue = mAllowFds;
+        if (!allowFds) {
+            mAllowFds = false;
+        }
+        return lastValue;
+    }
+
+    void restoreAllowFds(boolean lastValue) {
+        mAllowFds = lastValue;
+    }
+
+    void markSensitive() {
+        mSensitive = true;
+    }
+
+    void writeInt(int val) {
+        int pos = reserve(4);
+        mData.putInt(pos, val);
+    }
+
+    void writeLong(long val) {
+        int pos = reserve(8);
+        mData.putLong(pos, val);
+    }
+
+    void writeFloat(float val) {
+        int pos = reserve(4);
+        mData.putFloat(pos, val);
+    }
+
+    void writeDouble(double val) {
+        int pos = reserve(8);
+        mData.putDouble(pos, val);
+    }
+
+    int readInt() {
+        if (mDataSize - mDataPos < 4 || mDataPos < 0) {
+            return 0;
+        }
+        int val = mData.getInt(mDataPos);
+        mDataPos += 4;
+        return val;
+    }
+
+    long readLong() {
+        if (mDataSize - mDataPos < 8 || mDataPos < 0) {
+            return 0;
+        }
+        long val = mData.getLong(mDataPos);
+        mDataPos += 8;
+        return val;
+    }
+
+    float readFloat() {
+        if (mDataSize - mDataPos < 4 || mDataPos < 0) {
+            return 0;
+        }
+        float val = mData.getFloat(mDataPos);
+        mDataPos += 4;
+        return val;
+    }
+
+    double readDouble() {
+        if (mDataSize - mDataPos < 8 || mDataPos < 0) {
+            return 0;
+        }
+        double val = mData.getDouble(mDataPos);
+        mDataPos += 8;
+        return val;
+    }
+
+    void writeByteArray(byte[] b, int offset, int len) {
+        writeInt(len);
+        put(reserve(len), b, offset, len);
+    }
+
+    byte[] createByteArray() {
+        int len = readInt();
+        if (len < 0 || len > dataAvail()) {
+            return null;
+        }
+        byte[] val = new byte[len];
+        get(readInplace(len), val, 0, len);
+        return val;
+    }
+
+    boolean readByteArray(byte[] dest, int destLen) {
+        int len = readInt();
+        if (len != destLen) {
+            return false;
+        }
+        int start = readInplace(len);
+        if (start < 0) {
+            return false;
+        }
+        get(start, dest, 0, len);
+        return true;
+    }
+
+    /**
+     * Writes a blob. Blobs are always written in place; there is no
+     * ashmem region to move large ones out of the parcel.
+     */
+    void writeBlob(byte[] b, int offset, int len) {
+        writeInt(len);
+        writeInt(BLOB_INPLACE);
+        put(reserve(len), b, offset, len);
+    }
+
+    byte[] readBlob() {
+        int len = readInt();
+        if (len < 0) {
+            return null;
+        }
+        if (readInt() != BLOB_INPLACE) {
+            throw new BadParcelableException("Blob is not in place");
+        }
+        int start = readInplace(len);
+        if (start < 0) {
+            return null;
+        }
+        byte[] val = new byte[len];
+        get(start, val, 0, len);
+        return val;
+    }
+
+    void writeString8(String val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        int start = reserve(bytes.length + 1);
+        put(start, bytes, 0, bytes.length);
+        mData.put(start + bytes.length, (byte) 0);
+    }
+
+    String readString8() {
+        int len = readInt();
+        if (len < 0 || len >= dataAvail()) {
+            return null;
+        }
+        int start = readInplace(len + 1);
+        if (start < 0 || mData.get(start + len) != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        get(start, bytes, 0, len);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void writeString16(String val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        int len = val.length();
+        if (len > (Integer.MAX_VALUE - 4) / 2) {
+            throw new OutOfMemoryError("String too large for a Parcel: " + len);
+        }
+        writeInt(len);
+        int pos = reserve((len + 1) * 2);
+        for (int i = 0; i < len; i++, pos += 2) {
+            mData.putChar(pos, val.charAt(i));
+        }
+        mData.putChar(pos, (char) 0);
+    }
+
+    String readString16() {
+        int len = readInt();
+        if (len < 0 || len >= dataAvail() / 2) {
+            return null;
+        }
+        int pos = readInplace((len + 1) * 2);
+        if (pos < 0 || mData.getChar(pos + len * 2) != 0) {
+            return null;
+        }
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++, pos += 2) {
+            chars[i] = mData.getChar(pos);
+        }
+        return new String(chars);
+    }
+
+    void writeStrongBinder(IBinder val) {
+        int type = (val instanceof BinderProxy) ? BINDER_TYPE_HANDLE : BINDER_TYPE_BINDER;
+        writeObject(type, FLAT_BINDER_FLAG_PRIORITY_MASK | FLAT_BINDER_FLAG_ACCEPTS_FDS, val);
+        writeInt(STABILITY_UNDECLARED);
+    }
+
+    IBinder readStrongBinder() {
+        Object val = readObject(false);
+        readInt(); // stability
+        return (IBinder) val;
+    }
+
+    void writeFileDescriptor(FileDescriptor val) {
+        if (!mAllowFds) {
+            throw new RuntimeException("Not allowed to write file descriptors here");
+        }
+        writeObject(BINDER_TYPE_FD, FLAT_BINDER_FLAG_PRIORITY_MASK | FLAT_BINDER_FLAG_ACCEPTS_FDS,
+                val);
+    }
+
+    FileDescriptor readFileDescriptor() {
+        return (FileDescriptor) readObject(true);
+    }
+
+    void writeInterfaceToken(int strictModePolicy, String interfaceName) {
+        writeInt(strictModePolicy);
+        mWorkSourcePos = mDataPos;
+        writeInt(Binder.UNSET_WORKSOURCE);
+        writeInt(INTERFACE_HEADER);
+        writeString16(interfaceName);
+    }
+
+    /**
+     * Reads the header written by {@link #writeInterfaceToken}.
+     *
+     * @return true if the header names the given interface
+     */
+    boolean enforceInterface(String interfaceName) {
+        readInt(); // strict mode policy
+        mWorkSourcePos = mDataPos;
+        readInt();
+        if (readInt() != INTERFACE_HEADER) {
+            return false;
+        }
+        return interfaceName.equals(readString16());
+    }
+
+    boolean replaceCallingWorkSourceUid(int workSourceUid) {
+        if (mWorkSourcePos < 0 || mWorkSourcePos + 4 > mDataSize) {
+            return false;
+        }
+        ensureWritable(mDataSize);
+        mData.putInt(mWorkSourcePos, workSourceUid);
+        return true;
+    }
+
+    int readCallingWorkSourceUid() {
+        if (mWorkSourcePos < 0 || mWorkSourcePos + 4 > mDataSize) {
+            return Binder.UNSET_WORKSOURCE;
+        }
+        return mData.getInt(mWorkSourcePos);
+    }
+
+    boolean hasFileDescriptors() {
+        return hasFileDescriptors(0, mDataSize);
+    }
+
+    boolean hasFileDescriptors(int offset, int length) {
+        if (offset < 0 || offset > mDataSize) {
+            throw new IllegalArgumentException("Offset out of range: " + offset);
+        }
+        if (length < 0 || length > mDataSize - offset) {
+            throw new IllegalArgumentException("Length out of range: " + length);
+        }
+        for (int i = 0; i < mObjectCount; i++) {
+            int objectOffset = mObjectOffsets[i];
+            if (objectOffset >= offset && objectOffset < offset + length
+                    && mObjects[i] instanceof FileDescriptor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the data holds flattened binders or file
+     * descriptors, whose objects only exist in this VM. Also called by
+     * native code before it copies the data to another VM.
+     */
+    boolean hasObjects() {
+        for (int i = 0; i < mObjectCount; i++) {
+            if (mObjectOffsets[i] >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    byte[] marshall() {
+        if (hasObjects()) {
+            throw new RuntimeException(
+                    "Tried to marshall a Parcel that contained Binder objects.");
+        }
+        byte[] data = new byte[mDataSize];
+        get(0, data, 0, mDataSize);
+        return data;
+    }
+
+    void unmarshall(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "offset " + offset + ", length " + length + ", array " + data.length);
+        }
+        clearObjects();
+        if (isShared()) {
+            release();
+        }
+        ensureWritable(length);
+        put(0, data, offset, length);
+        mDataSize = length;
+        mDataPos = 0;
+        mWorkSourcePos = -1;
+    }
+
+    /**
+     * Copies {@code length} bytes of {@code other} starting at {@code
+     * offset} to the current position, along with the objects flattened
+     * in that range. If this buffer is empty and the range holds no
+     * objects, the memory is shared rather than copied.
+     */
+    void appendFrom(ParcelBuffer other, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > other.mDataSize - length) {
+            throw new IllegalArgumentException(
+                    "offset " + offset + ", length " + length + ", size " + other.mDataSize);
+        }
+        if (length == 0) {
+            return;
+        }
+        if (!mAllowFds && other.hasFileDescriptors(offset, length)) {
+            throw new RuntimeException("Not allowed to write file descriptors here");
+        }
+        if (mDataSize == 0 && mDataPos == 0 && other != this && other.canShare(offset, length)) {
+            share(other, offset, length);
+            return;
+        }
+
+        int start = mDataPos;
+        if (start > Integer.MAX_VALUE - length) {
+            throw new OutOfMemoryError("Parcel data too large");
+        }
+        if (other == this) {
+            byte[] copy = new byte[length];
+            get(offset, copy, 0, length);
+            ensureWritable(start + length);
+            put(start, copy, 0, length);
+        } else {
+            ensureWritable(start + length);
+            ByteBuffer src = other.mData.duplicate();
+            src.limit(offset + length).position(offset);
+            ByteBuffer dst = mData.duplicate();
+            dst.position(start);
+            dst.put(src);
+        }
+        if (start > mDataSize) {
+            zero(mDataSize, start);
+        }
+        dropObjects(start, start + length);
+        mDataPos = start + length;
+        if (mDataPos > mDataSize) {
+            mDataSize = mDataPos;
+        }
+
+        int count = other.mObjectCount;
+        for (int i = 0; i < count; i++) {
+            int objectOffset = other.mObjectOffsets[i];
+            if (objectOffset >= offset && objectOffset < offset + length) {
+                int newOffset = start + objectOffset - offset;
+                mData.putLong(newOffset + 8, addObject(newOffset, other.mObjects[i]));
+            }
+        }
+    }
+
+    int compareData(ParcelBuffer other) {
+        if (mDataSize != other.mDataSize) {
+            return mDataSize < other.mDataSize ? -1 : 1;
+        }
+        for (int i = 0; i < mDataSize; i++) {
+            int diff = (mData.get(i) & 0xff) - (other.mData.get(i) & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    static boolean compareData(ParcelBuffer a, int offsetA, ParcelBuffer b, int offsetB,
+                               int length) {
+        if (length < 0 || offsetA < 0 || offsetB < 0
+                || offsetA > a.mDataSize - length || offsetB > b.mDataSize - length) {
+            throw new IllegalArgumentException("Range out of bounds");
+        }
+        for (int i = 0; i < length; i++) {
+            if (a.mData.get(offsetA + i) != b.mData.get(offsetB + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Discards the data and flags. Small buffers are kept for the next
+     * user of a pooled parcel, unless they are shared.
+     */
+    void free() {
+        if (mShared != null || mBorrowed || dataCapacity() > MAX_RETAINED_CAPACITY) {
+            release();
+        } else if (mSensitive) {
+            zero(0, dataCapacity());
+        }
+        clearObjects();
+        mDataSize = 0;
+        mDataPos = 0;
+        mAllowFds = true;
+        mSensitive = false;
+        mWorkSourcePos = -1;
+    }
+
+    /**
+     * Drops the buffer. The parcel is empty afterwards.
+     */
+    void release() {
+        if (mShared != null) {
+            if (mShared.decrementAndGet() == 0) {
+                sAllocSize.addAndGet(-mShared.capacity);
+                sAllocCount.decrementAndGet();
+            }
+        } else if (mData != null && !mBorrowed) {
+            if (mSensitive) {
+                zero(0, dataCapacity());
+            }
+            sAllocSize.addAndGet(-mData.capacity());
+            sAllocCount.decrementAndGet();
+        }
+        mData = null;
+        mShared = null;
+        mBorrowed = false;
+        mDataSize = 0;
+        mDataPos = 0;
+    }
+
+    /**
+     * Makes room for {@code len} bytes, padded to 4, at the current
+     * position and moves the position past them.
+     *
+     * @return the offset the bytes go to
+     */
+    private int reserve(int len) {
+        int padded = (len + 3) & ~3;
+        if (len < 0 || padded < 0 || mDataPos > Integer.MAX_VALUE - padded) {
+            throw new OutOfMemoryError("Parcel data too large");
+        }
+        int start = mDataPos;
+        int end = start + padded;
+        ensureWritable(end);
+        if (start > mDataSize) {
+            zero(mDataSize, start);
+        }
+        if (start < mDataSize && mObjectCount > 0) {
+            dropObjects(start, end);
+        }
+        if (padded != len) {
+            mData.putInt(end - 4, 0);
+        }
+        mDataPos = end;
+        if (end > mDataSize) {
+            mDataSize = end;
+        }
+        return start;
+    }
+
+    /**
+     * Moves the position past {@code len} bytes, padded to 4, if that
+     * many are left.
+     *
+     * @return the offset of the bytes, or -1 if there is not enough data
+     */
+    private int readInplace(int len) {
+        int padded = (len + 3) & ~3;
+        if (len < 0 || padded < 0 || mDataPos < 0 || padded > mDataSize - mDataPos) {
+            return -1;
+        }
+        int start = mDataPos;
+        mDataPos += padded;
+        return start;
+    }
+
+    private void writeObject(int type, int flags, Object val) {
+        int start = reserve(FLAT_BINDER_OBJECT_SIZE);
+        mData.putInt(start, type);
+        mData.putInt(start + 4, flags);
+        mData.putLong(start + 8, (val != null) ? addObject(start, val) : 0);
+        mData.putLong(start + 16, 0);
+    }
+
+    private Object readObject(boolean fileDescriptor) {
+        int start = readInplace(FLAT_BINDER_OBJECT_SIZE);
+        if (start < 0) {
+            return null;
+        }
+        int type = mData.getInt(start);
+        if (fileDescriptor != (type == BINDER_TYPE_FD)) {
+            return null;
+        }
+        long ref = mData.getLong(start + 8);
+        // only trust references from records this parcel flattened
+        if (ref < 1 || ref > mObjectCount || mObjectOffsets[(int) ref - 1] != start) {
+            return null;
+        }
+        return mObjects[(int) ref - 1];
+    }
+
+    /**
+     * Adds an object table entry.
+     *
+     * @return the reference to store in the record, the index plus one
+     */
+    private long addObject(int offset, Object val) {
+        if (mObjects == null) {
+            mObjects = new Object[4];
+            mObjectOffsets = new int[4];
+        } else if (mObjectCount == mObjects.length) {
+            mObjects = Arrays.copyOf(mObjects, mObjectCount * 2);
+            mObjectOffsets = Arrays.copyOf(mObjectOffsets, mObjectCount * 2);
+        }
+        mObjects[mObjectCount] = val;
+        mObjectOffsets[mObjectCount] = offset;
+        return ++mObjectCount;
+    }
+
+    /**
+     * Forgets the objects whose records start in {@code [from, to)}.
+     */
+    private void dropObjects(int from, int to) {
+        for (int i = 0; i < mObjectCount; i++) {
+            // a record overlapping the range from below is broken as well
+            if (mObjectOffsets[i] > from - FLAT_BINDER_OBJECT_SIZE && mObjectOffsets[i] < to) {
+                mObjectOffsets[i] = -1;
+                mObjects[i] = null;
+            }
+        }
+    }
+
+    private void clearObjects() {
+        if (mObjectCount > 0) {
+            Arrays.fill(mObjects, 0, mObjectCount, null);
+            mObjectCount = 0;
+        }
+    }
+
+    /**
+     * Makes the buffer at least {@code size} bytes long and private to
+     * this parcel, copying the data out of shared memory if needed.
+     */
+    private void ensureWritable(int size) {
+        int capacity = dataCapacity();
+        if (size > capacity) {
+            long grown = Math.max((long) size * 3 / 2, MIN_CAPACITY);
+            reallocate((int) Math.min(grown, Integer.MAX_VALUE));
+        } else if (isShared()) {
+            reallocate(Math.max(capacity, MIN_CAPACITY));
+        }
+    }
+
+    private boolean isShared() {
+        return mShared != null && mShared.get() > 1;
+    }
+
+    private boolean canShare(int offset, int length) {
+        if (mBorrowed || mSensitive) {
+            return false;
+        }
+        for (int i = 0; i < mObjectCount; i++) {
+            if (mObjectOffsets[i] >= offset - FLAT_BINDER_OBJECT_SIZE
+                    && mObjectOffsets[i] < offset + length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes this empty buffer a read-only view of a range of another.
+     */
+    private void share(ParcelBuffer other, int offset, int length) {
+        if (other.mShared == null) {
+            other.mShared = new SharedData(other.mData.capacity());
+        }
+        other.mShared.incrementAndGet();
+        release();
+        clearObjects();
+
+        ByteBuffer view = other.mData.duplicate();
+        view.limit(offset + length).position(offset);
+        mData = view.slice().order(ByteOrder.nativeOrder());
+        mShared = other.mShared;
+        mDataSize = length;
+        mDataPos = length;
+    }
+
+    private void reallocate(int capacity) {
+        ByteBuffer data = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        if (mData != null) {
+            ByteBuffer old = mData.duplicate();
+            old.limit(Math.min(mDataSize, old.capacity())).position(0);
+            data.put(old);
+            data.clear();
+        }
+        // release() forgets the contents, which were just copied
+        int size = mDataSize;
+        int pos = mDataPos;
+        release();
+        mData = data;
+        sAllocSize.addAndGet(capacity);
+        sAllocCount.incrementAndGet();
+        mDataSize = size;
+        mDataPos = pos;
+    }
+
+    /**
+     * Reference count of memory shared between buffers, along with its
+     * size for the allocation statistics.
+     */
+    private static final class SharedData extends AtomicInteger {
+        final int capacity;
+
+        SharedData(int capacity) {
+            super(1);
+            this.capacity = capacity;
+        }
+    }
+
+    private void put(int offset, byte[] src, int srcOffset, int len) {
+        ByteBuffer dst = mData.duplicate();
+        dst.position(offset);
+        dst.put(src, srcOffset, len);
+    }
+
+    private void get(int offset, byte[] dst, int dstOffset, int len) {
+        ByteBuffer src = mData.duplicate();
+        src.position(offset);
+        src.get(dst, dstOffset, len);
+    }
+
+    private void zero(int from, int to) {
+        for (int i = from; i < to; i++) {
+            mData.put(i, (byte) 0);
+        }
+    }
+}
@@ -220,8 +220,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
      */
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = peekValue(key);
         if (o == null) {
             return null;
         }
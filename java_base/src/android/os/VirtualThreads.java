@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the virtual threads used by {@link AsyncTask} and {@link HandlerThread} when the
+ * {@code android.os.virtual_threads} system property is {@code true}.
+ *
+ * <p>Virtual threads are looked up by reflection so that this class also loads on JVMs that
+ * do not have them. There, or when the property is not set, {@link #newThread} creates
+ * platform threads.
+ */
+final class VirtualThreads {
+    private static final String TAG = "VirtualThreads";
+
+    /** The system property that turns virtual threads on. */
+    static final String PROPERTY = "android.os.virtual_threads";
+
+    private static final Method sOfVirtual;
+    private static final Method sName;
+    private static final Method sUnstarted;
+    private static final boolean sEnabled;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        if (Boolean.getBoolean(PROPERTY)) {
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                // Throws if virtual threads are a disabled preview feature.
+                ofVirtual.invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                Log.w(TAG, PROPERTY + " is set but this VM has no virtual threads", e);
+                ofVirtual = null;
+            }
+        }
+        sOfVirtual = ofVirtual;
+        sName = name;
+        sUnstarted = unstarted;
+        sEnabled = ofVirtual != null;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /** Returns true if virtual threads were requested and are available. */
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns a new unstarted thread that runs {@code r}: a virtual thread if they are
+     * enabled, a platform thread otherwise.
+     */
+    static Thread newThread(String name, Runnable r) {
+        if (sEnabled) {
+            try {
+                final Object builder = sName.invoke(sOfVirtual.invoke(null), name);
+                return (Thread) sUnstarted.invoke(builder, r);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create virtual thread", e);
+            }
+        }
+        return new Thread(r, name);
+    }
+}
@@ -669,6 +669,10 @@ public class StorageManager {
                 listener.onObbStateChange(rawPath, OnObbStateChangeListener.ERROR_NOT_MOUNTED);
                 return true;
             } else{
+                // OBBs mounted through FUSE are served until their session is unmounted
+                if (re.toPath().getParent().equals(Path.of(Fuse.Fuse.MountPoint))){
+                    Fuse.Fuse.get_instance().unmountDirectory(re.getName());
+                }
                 listener.onObbStateChange(rawPath, OnObbStateChangeListener.UNMOUNTED);
                 return false;
             }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.util;
+
+import android.annotation.IntRange;
+import android.annotation.NonNull;
+import android.util.internal.Preconditions;
+import android.util.proto.ProtoOutputStream;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram for positive longs that, like {@link ExponentiallyBucketedHistogram}, has a range
+ * for each power of two, but splits each range into 2<sup>subBucketBits</sup> buckets of equal
+ * size. A value is thus counted in a bucket whose width is at most 1 / 2<sup>subBucketBits</sup>
+ * of the value.
+ *
+ * <p>All methods can be called from any thread without locking. Counts are updated atomically,
+ * but a reader running at the same time as writers may see a sample in the buckets and not yet
+ * in the sum, or the other way around.
+ */
+public class LogLinearHistogram {
+    /** Field ids of the {@code LogLinearHistogramProto} written by {@link #dumpDebug}. */
+    public static final long COUNT = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    public static final long SUM = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    public static final long MAX = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    public static final long BUCKETS = ProtoOutputStream.makeFieldId(4,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    /** Field ids of the {@code BucketProto} messages in {@link #BUCKETS}. */
+    public static final long BUCKET_LOWER_BOUND = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    public static final long BUCKET_COUNT = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+
+    private final int mSubBucketBits;
+    @NonNull
+    private final AtomicLongArray mData;
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Create a new histogram.
+     *
+     * @param subBucketBits The number of bits used to split each power of two. Values below
+     *                      2<sup>subBucketBits</sup> get a bucket each.
+     * @param maxValueBits  The highest bucket is for all values >= 2<sup>maxValueBits</sup>
+     */
+    public LogLinearHistogram(@IntRange(from = 0, to = 8) int subBucketBits,
+            @IntRange(from = 1, to = 62) int maxValueBits) {
+        subBucketBits = Preconditions.checkArgumentInRange(subBucketBits, 0, 8, "subBucketBits");
+        maxValueBits = Preconditions.checkArgumentInRange(maxValueBits, subBucketBits, 62,
+                "maxValueBits");
+
+        mSubBucketBits = subBucketBits;
+        mData = new AtomicLongArray(((maxValueBits - subBucketBits + 1) << subBucketBits) + 1);
+    }
+
+    /**
+     * Add a new value to the histogram.
+     *
+     * All values <= 0 are in the first bucket.
+     *
+     * @param value The value to add
+     */
+    public void add(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mData.incrementAndGet(Math.min(mData.length() - 1, bucketOf(value)));
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Clear all data from the histogram
+     */
+    public void reset() {
+        for (int i = 0; i < mData.length(); i++) {
+            mData.set(i, 0);
+        }
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /** @return the number of values added */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < mData.length(); i++) {
+            count += mData.get(i);
+        }
+        return count;
+    }
+
+    /** @return the sum of the values added */
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /** @return the largest value added, or 0 */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /** @return the number of buckets */
+    public int getBucketCount() {
+        return mData.length();
+    }
+
+    /** @return the number of values in a bucket */
+    public long getCountAt(int bucket) {
+        return mData.get(bucket);
+    }
+
+    /** @return the smallest value counted in a bucket */
+    public long getLowerBound(int bucket) {
+        final int subBuckets = 1 << mSubBucketBits;
+        if (bucket < subBuckets) {
+            return bucket;
+        }
+        final int shift = (bucket >> mSubBucketBits) - 1;
+        return (long) (subBuckets + (bucket & (subBuckets - 1))) << shift;
+    }
+
+    /**
+     * Returns an estimate of a percentile: the largest value of the bucket holding it, or the
+     * largest value added if that is smaller.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return the estimate, or 0 if the histogram is empty
+     */
+    public long getPercentile(double percentile) {
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < mData.length() - 1; i++) {
+            seen += mData.get(i);
+            if (seen >= rank) {
+                return Math.min(getLowerBound(i + 1) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Write the non-empty buckets to a {@code LogLinearHistogramProto}.
+     *
+     * @param proto   The stream to write to
+     * @param fieldId The field id of the histogram message
+     */
+    public void dumpDebug(@NonNull ProtoOutputStream proto, long fieldId) {
+        final long token = proto.start(fieldId);
+        proto.write(COUNT, getCount());
+        proto.write(SUM, getSum());
+        proto.write(MAX, getMax());
+        for (int i = 0; i < mData.length(); i++) {
+            final long count = mData.get(i);
+            if (count != 0) {
+                final long bucketToken = proto.start(BUCKETS);
+                proto.write(BUCKET_LOWER_BOUND, getLowerBound(i));
+                proto.write(BUCKET_COUNT, count);
+                proto.end(bucketToken);
+            }
+        }
+        proto.end(token);
+    }
+
+    private int bucketOf(long value) {
+        final int subBuckets = 1 << mSubBucketBits;
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - mSubBucketBits;
+        return ((shift + 1) << mSubBucketBits) + (int) ((value >>> shift) & (subBuckets - 1));
+    }
+}
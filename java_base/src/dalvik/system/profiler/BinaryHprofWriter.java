@@ -53,6 +53,16 @@ public final class BinaryHprofWriter {
         this.out = new DataOutputStream(outputStream);
     }
 
+    /**
+     * Creates a writer for incremental output, such as by {@link
+     * StreamingHprofWriter}, which calls the record writing methods
+     * directly. Strings, classes and stack frames are still only
+     * written once per writer.
+     */
+    BinaryHprofWriter(OutputStream outputStream) {
+        this(null, outputStream);
+    }
+
     private void write() throws IOException {
         try {
             writeHeader(data.getStartMillis());
@@ -76,14 +86,14 @@ public final class BinaryHprofWriter {
         }
     }
 
-    private void writeHeader(long dumpTimeInMilliseconds) throws IOException {
+    void writeHeader(long dumpTimeInMilliseconds) throws IOException {
         out.writeBytes(BinaryHprof.MAGIC + "1.0.2");
         out.writeByte(0); // null terminated string
         out.writeInt(BinaryHprof.ID_SIZE);
         out.writeLong(dumpTimeInMilliseconds);
     }
 
-    private void writeControlSettings(int flags, int depth) throws IOException {
+    void writeControlSettings(int flags, int depth) throws IOException {
         if (depth > Short.MAX_VALUE) {
             throw new IllegalArgumentException("depth too large for binary hprof: "
                                                + depth + " > " + Short.MAX_VALUE);
@@ -95,7 +105,7 @@ public final class BinaryHprofWriter {
         out.writeShort((short) depth);
     }
 
-    private void writeThreadEvent(HprofData.ThreadEvent e) throws IOException {
+    void writeThreadEvent(HprofData.ThreadEvent e) throws IOException {
         switch (e.type) {
             case START:
                 writeStartThread(e);
@@ -174,6 +184,35 @@ public final class BinaryHprofWriter {
         return id;
     }
 
+    /**
+     * Writes a CPU_SAMPLES record for the first {@code samplesCount}
+     * entries of {@code counts} and {@code stackTraceIds}. A file may
+     * hold more than one such record; {@link BinaryHprofReader} adds
+     * them up unless it is strict.
+     */
+    void writeCpuSamples(int timeDeltaInMicroseconds, int[] counts, int[] stackTraceIds,
+                         int samplesCount) throws IOException {
+        if (samplesCount == 0) {
+            return;
+        }
+        int totalSamples = 0;
+        for (int i = 0; i < samplesCount; i++) {
+            totalSamples += counts[i];
+        }
+        writeRecordHeader(BinaryHprof.Tag.CPU_SAMPLES, timeDeltaInMicroseconds,
+                          4 + 4 + (samplesCount * (4 + 4)));
+        out.writeInt(totalSamples);
+        out.writeInt(samplesCount);
+        for (int i = 0; i < samplesCount; i++) {
+            out.writeInt(counts[i]);
+            out.writeInt(stackTraceIds[i]);
+        }
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
     private void writeCpuSamples(int totalSamples, Set<HprofData.Sample> samples)
             throws IOException {
         int samplesCount = samples.size();
@@ -189,7 +228,7 @@ public final class BinaryHprofWriter {
         }
     }
 
-    private void writeStackTrace(HprofData.StackTrace stackTrace) throws IOException {
+    void writeStackTrace(HprofData.StackTrace stackTrace) throws IOException {
         int frames = stackTrace.stackFrames.length;
         int[] stackFrameIds = new int[frames];
         for (int i = 0; i < frames; i++) {
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.system.profiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ContinuousProfiler.Listener} that appends samples in the
+ * collapsed stack format read by flame graph tools to a set of rotating
+ * files. Each line is the thread name followed by the frames from the
+ * outermost to the innermost, separated by semicolons, and the number
+ * of samples:
+ *
+ * <pre>
+ * main;android.os.Looper.loop;android.os.Handler.dispatchMessage 42
+ * </pre>
+ *
+ * <p>Every call writes only the samples taken since the previous call,
+ * so the same stack can appear on several lines. Flame graph tools add
+ * such lines up, so the files can simply be concatenated.
+ */
+public final class CollapsedStackWriter implements ContinuousProfiler.Listener, Closeable {
+
+    private final RotatingFileOutput files;
+
+    private Writer writer;
+
+    /** the trie clear count the state below refers to */
+    private int clearCount = -1;
+    /** the thread history generation the event index below refers to */
+    private int historyGeneration;
+    /** per node, the sample count already written */
+    private int[] writtenCounts = new int[0];
+    /** per frame id, the formatted frame, or null */
+    private String[] frameNames = new String[0];
+
+    private final Map<Integer, String> threadNames = new HashMap<Integer, String>();
+    private int seenEvents;
+
+    private final StringBuilder line = new StringBuilder();
+    private IOException exception;
+
+    /**
+     * Creates a writer for files named {@code <prefix>.<n>.collapsed}.
+     *
+     * @param prefix the path of the files without index and suffix
+     * @param maxFileBytes the size after which a new file is started
+     * @param maxFiles the number of files to keep
+     */
+    public CollapsedStackWriter(String prefix, long maxFileBytes, int maxFiles) {
+        this.files = new RotatingFileOutput(prefix, ".collapsed", maxFileBytes, maxFiles);
+    }
+
+    @Override public void samplesAvailable(StackTrie trie,
+                                           List<HprofData.ThreadEvent> threadHistory,
+                                           int historyGeneration) {
+        if (exception != null) {
+            return;
+        }
+        try {
+            write(trie, threadHistory, historyGeneration);
+        } catch (IOException e) {
+            exception = e;
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Returns the exception that stopped this writer, or {@code null}.
+     * Once writing fails, later samples are ignored.
+     */
+    public IOException getException() {
+        return exception;
+    }
+
+    /**
+     * Closes the current file. The next call from the profiler, if any,
+     * starts a new one.
+     */
+    @Override public void close() throws IOException {
+        try {
+            if (writer != null) {
+                writer.flush();
+            }
+        } finally {
+            writer = null;
+            files.close();
+        }
+    }
+
+    private void write(StackTrie trie, List<HprofData.ThreadEvent> threadHistory,
+                       int historyGeneration) throws IOException {
+        if (trie.getClearCount() != clearCount) {
+            clearCount = trie.getClearCount();
+            Arrays.fill(writtenCounts, 0);
+            Arrays.fill(frameNames, null);
+        }
+        if (historyGeneration != this.historyGeneration) {
+            // events were removed from the history, look at all of them again
+            this.historyGeneration = historyGeneration;
+            seenEvents = 0;
+        }
+        for (int i = seenEvents; i < threadHistory.size(); i++) {
+            HprofData.ThreadEvent event = threadHistory.get(i);
+            if (event.type == HprofData.ThreadEventType.START) {
+                threadNames.put(event.threadId, event.threadName);
+            }
+        }
+        seenEvents = threadHistory.size();
+
+        if (writer == null || files.isFull()) {
+            if (writer != null) {
+                writer.flush();
+            }
+            writer = new OutputStreamWriter(files.next(), "UTF-8");
+        }
+
+        int nodeCount = trie.getNodeCount();
+        if (writtenCounts.length < nodeCount) {
+            writtenCounts = Arrays.copyOf(writtenCounts, Math.max(nodeCount, writtenCounts.length * 2));
+        }
+        if (frameNames.length < trie.getFrameCount()) {
+            frameNames = Arrays.copyOf(frameNames,
+                                       Math.max(trie.getFrameCount(), frameNames.length * 2));
+        }
+
+        for (int node = 1; node < nodeCount; node++) {
+            int delta = trie.getCount(node) - writtenCounts[node];
+            if (delta <= 0) {
+                continue;
+            }
+            writtenCounts[node] = trie.getCount(node);
+
+            line.setLength(0);
+            String threadName = threadNames.get(trie.getThreadId(node));
+            appendName(threadName != null ? threadName : "thread-" + trie.getThreadId(node));
+            int[] frames = trie.getFrameIds(node);
+            for (int i = frames.length - 1; i >= 0; i--) {
+                line.append(';');
+                line.append(frameName(trie, frames[i]));
+            }
+            line.append(' ').append(delta).append('\n');
+            writer.write(line.toString());
+        }
+        writer.flush();
+    }
+
+    private String frameName(StackTrie trie, int frame) {
+        String name = frameNames[frame];
+        if (name == null) {
+            StackTraceElement element = trie.getFrameElement(frame);
+            int start = line.length();
+            appendName(element.getClassName());
+            line.append('.');
+            appendName(element.getMethodName());
+            name = line.substring(start);
+            line.setLength(start);
+            frameNames[frame] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Appends a name, replacing the characters that have a meaning in
+     * the collapsed format.
+     */
+    private void appendName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            line.append((c == ';' || c == ' ' || c == '\n') ? '_' : c);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+}
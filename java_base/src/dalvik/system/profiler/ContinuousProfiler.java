@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.system.profiler;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sampling profiler meant to be left running. Unlike {@link
+ * SamplingProfiler}, which samples from a {@code java.util.Timer} and
+ * keeps a {@code StackTraceElement[]} per distinct stack, it samples on
+ * a dedicated maximum priority thread and records every sample into a
+ * {@link StackTrie}, where frames are interned and stacks share their
+ * common callers. Memory use is bounded by the trie's node limit.
+ *
+ * <p>All profiling data is owned by the sampler thread, so recording a
+ * sample takes no locks. Data is handed out in two ways:
+ * <ul>
+ * <li>a {@link Listener} is called on the sampler thread at a fixed
+ * period while sampling, and once more when sampling stops, so results
+ * can be exported continuously, for instance by a {@link
+ * StreamingHprofWriter} or {@link CollapsedStackWriter}
+ * <li>{@link #getHprofData} may be called at any time. While sampling,
+ * it is answered by the sampler thread between two samples.
+ * </ul>
+ *
+ * <p>To bound the overhead, the sampler measures how long taking a
+ * sample of all threads takes and stretches the interval between
+ * samples so that the sampler thread is busy no more than a given
+ * fraction of the time, 1% by default.
+ *
+ * <pre> {@code
+ * ThreadSet threadSet = SamplingProfiler.newThreadGroupTheadSet(group);
+ * ContinuousProfiler profiler = new ContinuousProfiler(12, threadSet);
+ * profiler.setListener(listener, 10000);
+ * profiler.start(1);
+ * // ...
+ * profiler.stop();
+ * BinaryHprofWriter.write(profiler.getHprofData(), out);
+ * }</pre>
+ */
+public final class ContinuousProfiler {
+
+    private static final String TAG = "ContinuousProfiler";
+
+    /**
+     * Receives the profiling data while it is being collected.
+     */
+    public static interface Listener {
+        /**
+         * Called on the sampler thread. The trie and thread history
+         * may only be read during the call; sampling resumes once it
+         * returns, so implementations should not block for long.
+         *
+         * @param trie all samples collected since the profiler was
+         * created or reset
+         * @param threadHistory the thread start and end events
+         * referenced by the samples
+         * @param historyGeneration changes whenever events are removed
+         * from the thread history; new events are otherwise only
+         * appended, so an index into the history stays valid until then
+         */
+        public void samplesAvailable(StackTrie trie, List<HprofData.ThreadEvent> threadHistory,
+                                     int historyGeneration);
+    }
+
+    /**
+     * The default maximum number of trie nodes, about 1MB of node data.
+     */
+    public static final int DEFAULT_MAX_NODES = 1 << 16;
+
+    /**
+     * The default fraction of time the sampler thread may be busy.
+     */
+    public static final double DEFAULT_MAX_OVERHEAD = 0.01;
+
+    /*
+     * Thread and stack trace identifiers start at the same arbitrary
+     * constants as in SamplingProfiler.
+     */
+    private static final int FIRST_THREAD_ID = 200001;
+    private static final int FIRST_STACK_TRACE_ID = 300001;
+
+    /**
+     * The number of exited threads without samples whose events are
+     * kept. Exited threads with samples are kept as long as their
+     * samples, which the trie bounds.
+     */
+    private static final int MAX_UNSAMPLED_DEAD_THREADS = 256;
+
+    private final int depth;
+    private final SamplingProfiler.ThreadSet threadSet;
+    private final ThreadSampler threadSampler;
+    private final double maxOverhead;
+
+    /*
+     * State below is only accessed by the sampler thread while
+     * sampling, and by the thread calling stop() once it has joined
+     * the sampler thread.
+     */
+    private final StackTrie trie;
+    private final List<HprofData.ThreadEvent> threadHistory
+            = new ArrayList<HprofData.ThreadEvent>();
+    private final Map<Thread, Integer> threadIds = new HashMap<Thread, Integer>();
+    private Thread[] currentThreads = new Thread[0];
+    private int nextThreadId = FIRST_THREAD_ID;
+    private int nextObjectId = 1;
+    private int deadThreadCount;
+    private int deadThreadLimit = MAX_UNSAMPLED_DEAD_THREADS;
+    private int historyGeneration;
+    private long startMillis;
+    private Listener listener;
+    private long listenerPeriodNanos;
+
+    /**
+     * Requests from other threads, run by the sampler thread between
+     * samples.
+     */
+    private final ConcurrentLinkedQueue<FutureTask<?>> requests
+            = new ConcurrentLinkedQueue<FutureTask<?>>();
+
+    private Thread samplerThread;
+    private volatile boolean stop;
+
+    /*
+     * Published by the sampler thread for monitoring.
+     */
+    private volatile long sampleCount;
+    private volatile long droppedCount;
+    private volatile long busyNanos;
+    private volatile long effectiveIntervalNanos;
+
+    /**
+     * Creates a profiler with the default node limit and overhead.
+     *
+     * @param depth the maximum stack depth to retain for each sample,
+     * see {@link SamplingProfiler#SamplingProfiler}
+     * @param threadSet the threads to sample
+     */
+    public ContinuousProfiler(int depth, SamplingProfiler.ThreadSet threadSet) {
+        this(depth, threadSet, DEFAULT_MAX_NODES, DEFAULT_MAX_OVERHEAD);
+    }
+
+    /**
+     * Creates a profiler.
+     *
+     * @param depth the maximum stack depth to retain for each sample,
+     * see {@link SamplingProfiler#SamplingProfiler}
+     * @param threadSet the threads to sample
+     * @param maxNodes the maximum number of distinct stacks and frames
+     * to keep; further samples needing new ones are dropped
+     * @param maxOverhead the fraction of time, between 0 and 1, the
+     * sampler thread may spend taking samples
+     */
+    public ContinuousProfiler(int depth, SamplingProfiler.ThreadSet threadSet,
+                              int maxNodes, double maxOverhead) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth < 1");
+        }
+        if (threadSet == null) {
+            throw new NullPointerException("threadSet == null");
+        }
+        if (!(maxOverhead > 0 && maxOverhead <= 1)) {
+            throw new IllegalArgumentException("maxOverhead not in (0, 1]: " + maxOverhead);
+        }
+        this.depth = depth;
+        this.threadSet = threadSet;
+        this.maxOverhead = maxOverhead;
+        this.trie = new StackTrie(maxNodes);
+        this.threadSampler = SamplingProfiler.findDefaultThreadSampler();
+        /*
+         * The trie only records the innermost depth frames anyway, so
+         * spare the portable sampler from copying deeper stacks.
+         */
+        threadSampler.setDepth(threadSampler instanceof PortableThreadSampler
+                               ? Integer.MAX_VALUE : depth);
+    }
+
+    /**
+     * Sets the listener that is called every {@code periodMillis}
+     * while sampling and once when sampling stops. Must be called
+     * while the profiler is stopped.
+     */
+    public synchronized void setListener(Listener listener, int periodMillis) {
+        if (samplerThread != null) {
+            throw new IllegalStateException("cannot set listener while sampling");
+        }
+        if (listener != null && periodMillis < 1) {
+            throw new IllegalArgumentException("periodMillis < 1");
+        }
+        this.listener = listener;
+        this.listenerPeriodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+    }
+
+    /**
+     * Starts sampling at the specified rate, or slower if needed to
+     * stay within the overhead limit.
+     *
+     * @param interval The number of milliseconds between samples
+     */
+    public synchronized void start(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval < 1");
+        }
+        if (samplerThread != null) {
+            throw new IllegalStateException("profiling already started");
+        }
+        stop = false;
+        startMillis = System.currentTimeMillis();
+        effectiveIntervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+        samplerThread = new Thread(new Sampler(effectiveIntervalNanos), "ContinuousProfiler");
+        samplerThread.setDaemon(true);
+        samplerThread.setPriority(Thread.MAX_PRIORITY);
+        samplerThread.start();
+    }
+
+    /**
+     * Stops sampling and waits for the sampler thread to finish,
+     * including the final listener call. Sampling can be restarted
+     * with {@link #start(int)} to continue adding to the same data.
+     */
+    public synchronized void stop() {
+        if (samplerThread == null) {
+            return;
+        }
+        stop = true;
+        LockSupport.unpark(samplerThread);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                samplerThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        samplerThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Discards all samples collected so far. Thread events for threads
+     * that are still being sampled are kept.
+     */
+    public void reset() {
+        call(new Callable<Void>() {
+            public Void call() {
+                trie.clear();
+                List<HprofData.ThreadEvent> live = new ArrayList<HprofData.ThreadEvent>();
+                for (HprofData.ThreadEvent event : threadHistory) {
+                    if (event.type == HprofData.ThreadEventType.START
+                            && threadIds.containsValue(event.threadId)) {
+                        live.add(event);
+                    }
+                }
+                threadHistory.clear();
+                threadHistory.addAll(live);
+                historyGeneration++;
+                deadThreadCount = 0;
+                deadThreadLimit = MAX_UNSAMPLED_DEAD_THREADS;
+                publishCounts();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of the data collected so far in the form used
+     * by {@link AsciiHprofWriter} and {@link BinaryHprofWriter}. Unlike
+     * {@link SamplingProfiler#getHprofData}, this may be called while
+     * sampling.
+     */
+    public HprofData getHprofData() {
+        return call(new Callable<HprofData>() {
+            public HprofData call() {
+                return toHprofData();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of samples recorded.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the number of samples dropped because the node limit was
+     * reached.
+     */
+    public long getDroppedSampleCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the total time the sampler thread spent taking samples.
+     */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * Returns the current interval between samples, which may be
+     * longer than requested to stay within the overhead limit.
+     */
+    public long getEffectiveIntervalNanos() {
+        return effectiveIntervalNanos;
+    }
+
+    /**
+     * Returns the stack trace id used in hprof output for a trie node.
+     */
+    static int stackTraceId(int node) {
+        return FIRST_STACK_TRACE_ID + node;
+    }
+
+    /**
+     * Runs a request on the sampler thread if it is running, or on the
+     * calling thread otherwise.
+     */
+    private <T> T call(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        synchronized (this) {
+            if (samplerThread == null) {
+                task.run();
+            } else {
+                requests.add(task);
+                LockSupport.unpark(samplerThread);
+            }
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private HprofData toHprofData() {
+        Map<HprofData.StackTrace, int[]> stackTraces
+                = new HashMap<HprofData.StackTrace, int[]>();
+        HprofData data = new HprofData(stackTraces);
+        data.setFlags(BinaryHprof.ControlSettings.CPU_SAMPLING.bitmask);
+        data.setDepth(depth);
+        data.setStartMillis(startMillis);
+        for (HprofData.ThreadEvent event : threadHistory) {
+            data.addThreadEvent(event);
+        }
+
+        for (int node = 1; node < trie.getNodeCount(); node++) {
+            int count = trie.getCount(node);
+            if (count == 0) {
+                continue;
+            }
+            HprofData.StackTrace stackTrace = new HprofData.StackTrace(
+                    stackTraceId(node), trie.getThreadId(node), trie.getStackFrames(node));
+            data.addStackTrace(stackTrace, new int[] { count });
+        }
+        return data;
+    }
+
+    /**
+     * Drops the events of exited threads that have no samples in the
+     * trie, so that thread churn cannot grow the history without bound.
+     */
+    private void pruneThreadHistory() {
+        Set<Integer> kept = new HashSet<Integer>(threadIds.values());
+        for (int node = 1; node < trie.getNodeCount(); node++) {
+            if (trie.getParent(node) == StackTrie.ROOT) {
+                kept.add(trie.getThreadId(node));
+            }
+        }
+
+        List<HprofData.ThreadEvent> events = new ArrayList<HprofData.ThreadEvent>();
+        deadThreadCount = 0;
+        for (HprofData.ThreadEvent event : threadHistory) {
+            if (kept.contains(event.threadId)) {
+                events.add(event);
+                if (event.type == HprofData.ThreadEventType.END) {
+                    deadThreadCount++;
+                }
+            }
+        }
+        threadHistory.clear();
+        threadHistory.addAll(events);
+        historyGeneration++;
+        deadThreadLimit = deadThreadCount + MAX_UNSAMPLED_DEAD_THREADS;
+    }
+
+    private void publishCounts() {
+        sampleCount = trie.getSampleCount();
+        droppedCount = trie.getDroppedCount();
+    }
+
+    /**
+     * Body of the sampler thread.
+     */
+    private class Sampler implements Runnable {
+
+        private final long intervalNanos;
+
+        /**
+         * Moving average of the time taken by one sample of all threads.
+         */
+        private long averageBusyNanos;
+        private boolean warmedUp;
+
+        Sampler(long intervalNanos) {
+            this.intervalNanos = intervalNanos;
+        }
+
+        public void run() {
+            Thread self = Thread.currentThread();
+            long now = System.nanoTime();
+            long nextSample = now;
+            long nextExport = now + listenerPeriodNanos;
+
+            while (!stop) {
+                runRequests();
+
+                now = System.nanoTime();
+                if (now - nextSample < 0) {
+                    LockSupport.parkNanos(this, nextSample - now);
+                    continue;
+                }
+
+                sample(self);
+                long busy = System.nanoTime() - now;
+                busyNanos += busy;
+                // the first sample pays for warming up the stack walk,
+                // it would throttle sampling for a long time
+                if (warmedUp) {
+                    averageBusyNanos += (busy - averageBusyNanos) / 8;
+                }
+                warmedUp = true;
+                publishCounts();
+
+                long interval = Math.max(intervalNanos, (long) (averageBusyNanos / maxOverhead));
+                effectiveIntervalNanos = interval;
+                // skip samples that were missed rather than catching up
+                nextSample += interval;
+                if (nextSample - now < 0) {
+                    nextSample = now + interval;
+                }
+
+                if (listener != null && now - nextExport >= 0) {
+                    notifyListener();
+                    nextExport = System.nanoTime() + listenerPeriodNanos;
+                }
+            }
+
+            if (listener != null) {
+                notifyListener();
+            }
+            runRequests();
+        }
+
+        private void runRequests() {
+            FutureTask<?> task;
+            while ((task = requests.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void notifyListener() {
+            try {
+                listener.samplesAvailable(trie, Collections.unmodifiableList(threadHistory),
+                                           historyGeneration);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Listener failed, removing it", e);
+                listener = null;
+            }
+        }
+
+        private void sample(Thread self) {
+            // process thread creation and death first so that we
+            // assign thread ids to any new threads before recording
+            // stacks for them
+            Thread[] newThreads = threadSet.threads();
+            if (!Arrays.equals(currentThreads, newThreads)) {
+                updateThreadHistory(self, currentThreads, newThreads);
+                currentThreads = newThreads.clone();
+            }
+
+            for (Thread thread : currentThreads) {
+                if (thread == null) {
+                    break;
+                }
+                if (thread == self) {
+                    continue;
+                }
+                StackTraceElement[] stackFrames = threadSampler.getStackTrace(thread);
+                if (stackFrames == null) {
+                    continue;
+                }
+                trie.add(threadIds.get(thread), stackFrames, depth);
+            }
+        }
+
+        private void updateThreadHistory(Thread self, Thread[] oldThreads, Thread[] newThreads) {
+            Set<Thread> n = new HashSet<Thread>(Arrays.asList(newThreads));
+            Set<Thread> o = new HashSet<Thread>(Arrays.asList(oldThreads));
+
+            for (Thread thread : n) {
+                if (thread != null && thread != self && !o.contains(thread)) {
+                    addStartThread(thread);
+                }
+            }
+            for (Thread thread : o) {
+                if (thread != null && thread != self && !n.contains(thread)) {
+                    addEndThread(thread);
+                }
+            }
+        }
+
+        private void addStartThread(Thread thread) {
+            int threadId = nextThreadId++;
+            threadIds.put(thread, threadId);
+
+            // group will become null when thread is terminated
+            ThreadGroup group = thread.getThreadGroup();
+            String groupName = group == null ? null : group.getName();
+            ThreadGroup parentGroup = group == null ? null : group.getParent();
+            String parentGroupName = parentGroup == null ? null : parentGroup.getName();
+
+            threadHistory.add(HprofData.ThreadEvent.start(nextObjectId++, threadId,
+                                                          thread.getName(), groupName,
+                                                          parentGroupName));
+        }
+
+        private void addEndThread(Thread thread) {
+            Integer threadId = threadIds.remove(thread);
+            if (threadId != null) {
+                threadHistory.add(HprofData.ThreadEvent.end(threadId));
+                if (++deadThreadCount > deadThreadLimit) {
+                    pruneThreadHistory();
+                }
+            }
+        }
+    }
+}
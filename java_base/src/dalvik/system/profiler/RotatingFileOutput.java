@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.system.profiler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A sequence of numbered output files, {@code <prefix>.0<suffix>},
+ * {@code <prefix>.1<suffix>} and so on, used by the streaming profiler
+ * writers. A new file is started once the current one has grown past a
+ * size limit, and the oldest files are deleted so that at most a fixed
+ * number of them exist.
+ */
+final class RotatingFileOutput {
+
+    private final String prefix;
+    private final String suffix;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    private int nextIndex;
+    private CountingOutputStream out;
+
+    /**
+     * @param prefix the path of the files without index and suffix
+     * @param suffix the file name suffix, such as ".hprof"
+     * @param maxBytes the size after which a new file is started
+     * @param maxFiles the number of files to keep, including the
+     * current one
+     */
+    RotatingFileOutput(String prefix, String suffix, long maxBytes, int maxFiles) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes < 1");
+        }
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("maxFiles < 1");
+        }
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Returns the stream of the current file, or {@code null} if a new
+     * file needs to be started with {@link #next}.
+     */
+    OutputStream current() {
+        return out;
+    }
+
+    /**
+     * Returns true if the current file has reached the size limit.
+     */
+    boolean isFull() {
+        return out != null && out.count >= maxBytes;
+    }
+
+    /**
+     * Closes the current file, if any, and starts the next one,
+     * deleting the oldest file if there are too many.
+     */
+    OutputStream next() throws IOException {
+        close();
+        File obsolete = file(nextIndex - maxFiles);
+        if (obsolete != null) {
+            obsolete.delete();
+        }
+        out = new CountingOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file(nextIndex++))));
+        return out;
+    }
+
+    /**
+     * Returns the file with the given index, or {@code null} if the
+     * index is negative.
+     */
+    File file(int index) {
+        return (index < 0) ? null : new File(prefix + "." + index + suffix);
+    }
+
+    void close() throws IOException {
+        if (out != null) {
+            OutputStream o = out;
+            out = null;
+            o.close();
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
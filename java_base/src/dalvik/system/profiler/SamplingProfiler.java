@@ -30,7 +30,9 @@ import java.util.TimerTask;
  * Thread.getStackTrace} to collect samples. As such, the overhead is
  * higher than a native approach and it does not provide insight into
  * where time is spent within native code, but it can still provide
- * useful insight into where a program is spending time.
+ * useful insight into where a program is spending time. To keep
+ * profiling a long running program with bounded memory and overhead,
+ * see {@link ContinuousProfiler}.
  *
  * <h3>Usage Example</h3>
  *
@@ -161,7 +163,7 @@ public final class SamplingProfiler {
         hprofData.setDepth(depth);
     }
 
-    private static ThreadSampler findDefaultThreadSampler() {
+    static ThreadSampler findDefaultThreadSampler() {
         if ("Dalvik Core Library".equals(System.getProperty("java.specification.name"))) {
             String className = "dalvik.system.profiler.DalvikThreadSampler";
             try {
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.system.profiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact prefix tree of sampled stacks, used by {@link
+ * ContinuousProfiler}. Every distinct {@code StackTraceElement} is
+ * interned to a small integer frame id, and every distinct stack of a
+ * thread is a node of the trie, reached from the root through a node
+ * for the thread and then one node per frame from the outermost to the
+ * innermost. Stacks sharing callers share nodes, and a sample only
+ * increments the count of the node of its innermost frame, so no arrays
+ * are retained per sample.
+ *
+ * <p>Nodes are stored in parallel {@code int} arrays and found through
+ * an open addressing table keyed by parent node and frame id. Node ids
+ * are handed out in increasing order and are never reused until {@link
+ * #clear}, so a consumer can find the stacks added since it last looked
+ * by remembering {@link #getNodeCount}.
+ *
+ * <p>The trie holds at most a fixed number of nodes and frames. Once
+ * either limit is reached, samples that would need a new node or frame
+ * are dropped and counted by {@link #getDroppedCount}.
+ *
+ * <p>A {@code StackTrie} is not thread safe. {@link ContinuousProfiler}
+ * only touches it from its sampler thread.
+ */
+public final class StackTrie {
+
+    /**
+     * Id of the root node. Its children are the per-thread nodes.
+     */
+    public static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxNodes;
+
+    /*
+     * Node arrays. For per-thread nodes, the frame is the complement
+     * of the thread id, so it never collides with a frame id.
+     */
+    private int[] parents;
+    private int[] frames;
+    private int[] counts;
+    private int nodeCount;
+
+    /*
+     * Open addressing table from (parent, frame) to child node. Empty
+     * slots hold 0, which is safe because the root is nobody's child.
+     */
+    private long[] keys;
+    private int[] children;
+    private int mask;
+
+    private final Map<StackTraceElement, Integer> frameIds
+            = new HashMap<StackTraceElement, Integer>();
+    private StackTraceElement[] frameElements;
+    private int frameCount;
+
+    private long sampleCount;
+    private long droppedCount;
+    private int clearCount;
+
+    /**
+     * Creates an empty trie.
+     *
+     * @param maxNodes the maximum number of stack nodes, and also the
+     * maximum number of distinct frames, the trie may hold
+     */
+    public StackTrie(int maxNodes) {
+        if (maxNodes < 2) {
+            throw new IllegalArgumentException("maxNodes < 2: " + maxNodes);
+        }
+        this.maxNodes = maxNodes;
+        clear();
+    }
+
+    /**
+     * Discards all stacks, frames and counts.
+     */
+    public void clear() {
+        int capacity = Math.min(INITIAL_CAPACITY, maxNodes);
+        parents = new int[capacity];
+        frames = new int[capacity];
+        counts = new int[capacity];
+        parents[ROOT] = -1;
+        nodeCount = 1;
+
+        keys = new long[INITIAL_CAPACITY * 2];
+        children = new int[INITIAL_CAPACITY * 2];
+        mask = keys.length - 1;
+
+        frameIds.clear();
+        frameElements = new StackTraceElement[capacity];
+        frameCount = 0;
+
+        sampleCount = 0;
+        droppedCount = 0;
+        clearCount++;
+    }
+
+    /**
+     * Records one sample of a thread's stack.
+     *
+     * @param threadId the profiler's id for the sampled thread
+     * @param stack the stack with the innermost frame first, as
+     * returned by {@code Thread.getStackTrace}
+     * @param depth the number of innermost frames of {@code stack} to
+     * record
+     * @return the node of the sample's stack, or {@code -1} if the
+     * sample was dropped because the trie is full
+     */
+    public int add(int threadId, StackTraceElement[] stack, int depth) {
+        int node = child(ROOT, ~threadId);
+        for (int i = Math.min(depth, stack.length) - 1; i >= 0 && node >= 0; i--) {
+            int frame = intern(stack[i]);
+            node = (frame < 0) ? -1 : child(node, frame);
+        }
+
+        if (node < 0) {
+            droppedCount++;
+            return -1;
+        }
+        counts[node]++;
+        sampleCount++;
+        return node;
+    }
+
+    /**
+     * Returns the number of nodes, including the root. Valid node ids
+     * are {@code 0} to {@code getNodeCount() - 1}.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of samples whose innermost frame is this node.
+     */
+    public int getCount(int node) {
+        return counts[node];
+    }
+
+    /**
+     * Returns the parent of a node, or {@code -1} for the root.
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * Returns the frame id of a node, or {@code -1} for the root and
+     * the per-thread nodes.
+     */
+    public int getFrame(int node) {
+        return (node == ROOT || parents[node] == ROOT) ? -1 : frames[node];
+    }
+
+    /**
+     * Returns the number of frames from the per-thread node to this
+     * node, which is the length of the stack it represents.
+     */
+    public int getDepth(int node) {
+        int depth = 0;
+        while (node != ROOT && parents[node] != ROOT) {
+            depth++;
+            node = parents[node];
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the thread id of the stack a node belongs to, or {@code
+     * -1} for the root.
+     */
+    public int getThreadId(int node) {
+        if (node == ROOT) {
+            return -1;
+        }
+        while (parents[node] != ROOT) {
+            node = parents[node];
+        }
+        return ~frames[node];
+    }
+
+    /**
+     * Returns the frame ids of the stack a node represents, with the
+     * innermost frame first.
+     */
+    public int[] getFrameIds(int node) {
+        int[] result = new int[getDepth(node)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = frames[node];
+            node = parents[node];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stack a node represents, with the innermost frame
+     * first.
+     */
+    public StackTraceElement[] getStackFrames(int node) {
+        StackTraceElement[] result = new StackTraceElement[getDepth(node)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = frameElements[frames[node]];
+            node = parents[node];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of interned frames. Valid frame ids are
+     * {@code 0} to {@code getFrameCount() - 1}.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the stack frame for an interned frame id.
+     */
+    public StackTraceElement getFrameElement(int frame) {
+        if (frame < 0 || frame >= frameCount) {
+            throw new IndexOutOfBoundsException("frame " + frame + " of " + frameCount);
+        }
+        return frameElements[frame];
+    }
+
+    /**
+     * Returns the number of samples recorded since the trie was created
+     * or cleared.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the number of samples dropped because the trie was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns how often the trie was cleared. Node and frame ids from
+     * before a clear must not be used with the trie afterwards.
+     */
+    public int getClearCount() {
+        return clearCount;
+    }
+
+    private int intern(StackTraceElement element) {
+        Integer id = frameIds.get(element);
+        if (id != null) {
+            return id;
+        }
+        if (frameCount == maxNodes) {
+            return -1;
+        }
+        if (frameCount == frameElements.length) {
+            frameElements = Arrays.copyOf(frameElements, grow(frameElements.length));
+        }
+        frameElements[frameCount] = element;
+        frameIds.put(element, frameCount);
+        return frameCount++;
+    }
+
+    private int child(int parent, int frame) {
+        long key = ((long) parent << 32) | (frame & 0xffffffffL);
+        int slot = slot(key);
+        while (children[slot] != 0) {
+            if (keys[slot] == key) {
+                return children[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (nodeCount == maxNodes) {
+            return -1;
+        }
+        if (nodeCount == parents.length) {
+            int capacity = grow(parents.length);
+            parents = Arrays.copyOf(parents, capacity);
+            frames = Arrays.copyOf(frames, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        int node = nodeCount++;
+        parents[node] = parent;
+        frames[node] = frame;
+        keys[slot] = key;
+        children[slot] = node;
+
+        // keep the table at most half full
+        if (nodeCount * 2 > keys.length) {
+            rehash();
+        }
+        return node;
+    }
+
+    private int grow(int capacity) {
+        return (int) Math.min((long) capacity * 2, maxNodes);
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldChildren = children;
+
+        keys = new long[oldKeys.length * 2];
+        children = new int[oldChildren.length * 2];
+        mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldChildren[i] == 0) {
+                continue;
+            }
+            int slot = slot(oldKeys[i]);
+            while (children[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            children[slot] = oldChildren[i];
+        }
+    }
+}
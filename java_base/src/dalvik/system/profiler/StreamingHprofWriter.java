@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.system.profiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A {@link ContinuousProfiler.Listener} that appends binary hprof
+ * records to a set of rotating files while the profiler keeps
+ * sampling. Each time it is called, it writes the thread events and
+ * stack traces that are new since the last call, followed by a
+ * CPU_SAMPLES record holding only the samples taken since then.
+ *
+ * <p>Every file is a complete hprof file on its own: it starts with
+ * the header, control settings and thread history, and repeats any
+ * stack trace it refers to. Because samples are split over several
+ * CPU_SAMPLES records, the files must be read with a non-strict {@link
+ * BinaryHprofReader}, which adds the records up.
+ *
+ * <pre> {@code
+ * StreamingHprofWriter writer = new StreamingHprofWriter(
+ *         "/data/local/tmp/app", 12, 8 << 20, 4);
+ * profiler.setListener(writer, 10000);
+ * profiler.start(1);
+ * // ...
+ * profiler.stop();
+ * writer.close();
+ * }</pre>
+ */
+public final class StreamingHprofWriter implements ContinuousProfiler.Listener, Closeable {
+
+    private final RotatingFileOutput files;
+    private final int depth;
+
+    private BinaryHprofWriter writer;
+    private long fileStartMillis;
+
+    /** the trie clear count the state below refers to */
+    private int clearCount = -1;
+    /** the thread history generation the event index below refers to */
+    private int historyGeneration;
+    /** per node, the sample count already written */
+    private int[] writtenCounts = new int[0];
+    /** nodes whose stack trace was written to the current file */
+    private final BitSet writtenTraces = new BitSet();
+    /** number of thread history events written to the current file */
+    private int writtenEvents;
+
+    private int[] sampleCounts = new int[64];
+    private int[] sampleIds = new int[64];
+
+    private IOException exception;
+
+    /**
+     * Creates a writer for files named {@code <prefix>.<n>.hprof}.
+     *
+     * @param prefix the path of the files without index and suffix
+     * @param depth the stack depth the profiler was created with, for
+     * the control settings record
+     * @param maxFileBytes the size after which a new file is started
+     * @param maxFiles the number of files to keep
+     */
+    public StreamingHprofWriter(String prefix, int depth, long maxFileBytes, int maxFiles) {
+        this.files = new RotatingFileOutput(prefix, ".hprof", maxFileBytes, maxFiles);
+        this.depth = depth;
+    }
+
+    @Override public void samplesAvailable(StackTrie trie,
+                                           List<HprofData.ThreadEvent> threadHistory,
+                                           int historyGeneration) {
+        if (exception != null) {
+            return;
+        }
+        try {
+            write(trie, threadHistory, historyGeneration);
+        } catch (IOException e) {
+            exception = e;
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Returns the exception that stopped this writer, or {@code null}.
+     * Once writing fails, later samples are ignored.
+     */
+    public IOException getException() {
+        return exception;
+    }
+
+    /**
+     * Closes the current file. The next call from the profiler, if any,
+     * starts a new one.
+     */
+    @Override public void close() throws IOException {
+        writer = null;
+        files.close();
+    }
+
+    private void write(StackTrie trie, List<HprofData.ThreadEvent> threadHistory,
+                       int historyGeneration) throws IOException {
+        if (trie.getClearCount() != clearCount) {
+            // node ids are about to be reused, they must not share a
+            // file with the stack trace ids of the old nodes
+            clearCount = trie.getClearCount();
+            Arrays.fill(writtenCounts, 0);
+            writer = null;
+        }
+        if (historyGeneration != this.historyGeneration) {
+            // events were removed from the history, so writtenEvents no
+            // longer tells which ones are in the file; the new file gets
+            // all the events that are left
+            this.historyGeneration = historyGeneration;
+            writer = null;
+        }
+        if (writer == null || files.isFull()) {
+            startFile();
+        }
+
+        for (int i = writtenEvents; i < threadHistory.size(); i++) {
+            writer.writeThreadEvent(threadHistory.get(i));
+        }
+        writtenEvents = threadHistory.size();
+
+        int nodeCount = trie.getNodeCount();
+        if (writtenCounts.length < nodeCount) {
+            writtenCounts = Arrays.copyOf(writtenCounts, Math.max(nodeCount, writtenCounts.length * 2));
+        }
+
+        int samples = 0;
+        for (int node = 1; node < nodeCount; node++) {
+            int delta = trie.getCount(node) - writtenCounts[node];
+            if (delta <= 0) {
+                continue;
+            }
+            writtenCounts[node] = trie.getCount(node);
+
+            int stackTraceId = ContinuousProfiler.stackTraceId(node);
+            if (!writtenTraces.get(node)) {
+                writer.writeStackTrace(new HprofData.StackTrace(
+                        stackTraceId, trie.getThreadId(node), trie.getStackFrames(node)));
+                writtenTraces.set(node);
+            }
+
+            if (samples == sampleCounts.length) {
+                sampleCounts = Arrays.copyOf(sampleCounts, samples * 2);
+                sampleIds = Arrays.copyOf(sampleIds, samples * 2);
+            }
+            sampleCounts[samples] = delta;
+            sampleIds[samples] = stackTraceId;
+            samples++;
+        }
+
+        long micros = (System.currentTimeMillis() - fileStartMillis) * 1000;
+        writer.writeCpuSamples((int) Math.min(Integer.MAX_VALUE, micros),
+                               sampleCounts, sampleIds, samples);
+        writer.flush();
+    }
+
+    private void startFile() throws IOException {
+        writer = new BinaryHprofWriter(files.next());
+        fileStartMillis = System.currentTimeMillis();
+        writer.writeHeader(fileStartMillis);
+        writer.writeControlSettings(BinaryHprof.ControlSettings.CPU_SAMPLING.bitmask, depth);
+        writtenTraces.clear();
+        writtenEvents = 0;
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+}
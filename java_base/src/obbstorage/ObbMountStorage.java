@@ -20,8 +20,9 @@ import obbstorage.fat32.FsDirectory;
 import obbstorage.fat32.FsDirectoryEntry;
 import obbstorage.fat32.FsFile;
 import obbstorage.fat32.fat.FatFileSystem;
-import obbstorage.fat32.fat.SuperFloppyFormatter;
+import obbstorage.fat32.util.CachingBlockDevice;
 import obbstorage.fat32.util.FileDisk;
+import obbstorage.fat32.util.MappedBlockDevice;
 import obbstorage.obbstorage.EncryptedBlockFile;
 import obbstorage.obbstorage.ObbFile;
 import obbstorage.obbstorage.PBKDF;
@@ -63,7 +64,7 @@ public class ObbMountStorage {
                             ByteBuffer sTempBuf = ByteBuffer.allocate(1024 * 1024);
                             int capacity = sTempBuf.capacity();
                             long length = f.getLength();
-                            for (long pos = 0; pos < length; pos++) {
+                            for (long pos = 0; pos < length; pos += capacity) {
                                 int readLength = (int) (length - pos > capacity ? capacity : length - pos);
                                 sTempBuf.rewind();
                                 sTempBuf.limit(readLength);
@@ -71,7 +72,6 @@ public class ObbMountStorage {
                                 sTempBuf.rewind();
                                 while (sTempBuf.remaining() > 0)
                                     outputChannel.write(sTempBuf);
-                                pos += readLength;
                             }
                         } finally {
                             if (null != fos) fos.close();
@@ -94,12 +94,15 @@ public class ObbMountStorage {
             }
             byte[] fishkey = PBKDF.getKey(key, obbfile.mSalt);
             EncryptedBlockFile ebf = new EncryptedBlockFile(fishkey, obbInput, "r");
-            fd = new FileDisk(ebf, ebf.getEncryptedFileChannel(), false);
+            // keep decrypted FAT and directory clusters around between lookups
+            fd = new CachingBlockDevice(new FileDisk(ebf, ebf.getEncryptedFileChannel(), true));
         } else{
-            fd = new FileDisk(obbInput, false);
+            // unencrypted images are served straight from the page cache
+            fd = new MappedBlockDevice(obbInput);
         }
 
-        FatFileSystem fs = SuperFloppyFormatter.get(fd).format();
+        // the OBB already holds a file system, mount it read-only and serve it in place
+        FatFileSystem fs = FatFileSystem.read(fd, true);
         
         String name = Long.toString(System.currentTimeMillis());
 
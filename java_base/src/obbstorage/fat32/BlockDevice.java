@@ -48,6 +48,59 @@ public interface BlockDevice {
     void read(long devOffset, ByteBuffer dest)
             throws IOException;
 
+    /**
+     * Reads several blocks of data from this device into one buffer. Block
+     * {@code i} starts at {@code devOffsets[i]} and is {@code lengths[i]}
+     * bytes long; the blocks are stored back-to-back in {@code dest},
+     * starting at it's current position. Devices that can serve such a
+     * request with fewer underlying operations than one
+     * {@link #read(long, java.nio.ByteBuffer) read} per block should
+     * override this method.
+     *
+     * @param devOffsets the byte offsets where to read the blocks from
+     * @param lengths    the lengths of the blocks in bytes
+     * @param count      the number of blocks to read
+     * @param dest       the destination buffer where to store the data read
+     * @throws IOException              on read error
+     * @throws IllegalArgumentException if the blocks do not fit into the
+     *                                  remaining space of {@code dest}
+     */
+    default void read(long[] devOffsets, int[] lengths, int count,
+                      ByteBuffer dest) throws IOException {
+
+        long total = 0;
+        for (int i = 0; i < count; i++) total += lengths[i];
+
+        if (total > dest.remaining()) throw new IllegalArgumentException(
+                "blocks do not fit into buffer"); //NOI18N
+
+        final int limit = dest.limit();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                dest.limit(dest.position() + lengths[i]);
+                read(devOffsets[i], dest);
+            }
+        } finally {
+            dest.limit(limit);
+        }
+    }
+
+    /**
+     * Returns a read-only view of a range of this device that shares memory
+     * with the device instead of copying it, if this device supports that.
+     * The view is only valid until the device is closed.
+     *
+     * @param devOffset the byte offset of the range
+     * @param length    the length of the range in bytes
+     * @return the view, or {@code null} if this device can not provide one
+     *         for the given range
+     * @throws IOException on error mapping the range
+     */
+    default ByteBuffer map(long devOffset, int length) throws IOException {
+        return null;
+    }
+
     /**
      * Writes a block of data to this device.
      *
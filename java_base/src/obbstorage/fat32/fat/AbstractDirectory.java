@@ -247,12 +247,29 @@ abstract class AbstractDirectory {
         resetDirty();
     }
 
+    /**
+     * Returns a read-only view of this directory's contents that shares
+     * memory with the device, so it can be parsed without a copy. The
+     * default implementation returns {@code null}, which makes
+     * {@link #read()} fall back to {@link #read(java.nio.ByteBuffer)}.
+     *
+     * @param length the number of bytes to map
+     * @return the view or {@code null}
+     * @throws IOException on error mapping the data
+     */
+    protected ByteBuffer map(int length) throws IOException {
+        return null;
+    }
+
     protected final void read() throws IOException {
-        final ByteBuffer data = ByteBuffer.allocate(
-                getCapacity() * FatDirectoryEntry.SIZE);
+        final int length = getCapacity() * FatDirectoryEntry.SIZE;
+        ByteBuffer data = map(length);
 
-        read(data);
-        data.flip();
+        if (data == null) {
+            data = ByteBuffer.allocate(length);
+            read(data);
+            data.flip();
+        }
 
         for (int i = 0; i < getCapacity(); i++) {
             final FatDirectoryEntry e =
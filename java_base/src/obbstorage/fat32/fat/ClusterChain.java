@@ -37,6 +37,12 @@ final class ClusterChain extends AbstractFsObject {
     private final int clusterSize;
     private long startCluster;
 
+    /**
+     * The index of this chain's clusters, built on first use and kept up to
+     * date by {@link #setChainLength(int)}.
+     */
+    private ClusterExtents extents;
+
     /**
      * Creates a new {@code ClusterChain} that contains no clusters.
      *
@@ -88,6 +94,20 @@ final class ClusterChain extends AbstractFsObject {
         return startCluster;
     }
 
+    /**
+     * Returns the extent index of this chain, walking the {@code Fat} to
+     * build it if this is the first access.
+     *
+     * @return the index of this chain's clusters
+     */
+    ClusterExtents getExtents() {
+        if (extents == null) {
+            extents = ClusterExtents.build(fat, startCluster);
+        }
+
+        return extents;
+    }
+
     /**
      * Calculates the device offset (0-based) for the given cluster and offset
      * within the cluster.
@@ -142,8 +162,7 @@ final class ClusterChain extends AbstractFsObject {
     public int getChainLength() {
         if (getStartCluster() == 0) return 0;
 
-        final long[] chain = getFat().getChain(getStartCluster());
-        return chain.length;
+        return getExtents().getClusterCount();
     }
 
     /**
@@ -158,75 +177,132 @@ final class ClusterChain extends AbstractFsObject {
         if (nrClusters < 0) throw new IllegalArgumentException(
                 "negative cluster count"); //NOI18N
 
+        final ClusterExtents ext = getExtents();
+
         if ((this.startCluster == 0) && (nrClusters == 0)) {
             /* nothing to do */
         } else if ((this.startCluster == 0) && (nrClusters > 0)) {
             final long[] chain = fat.allocNew(nrClusters);
             this.startCluster = chain[0];
+
+            for (int i = 0; i < chain.length; i++) {
+                ext.append(chain[i]);
+            }
         } else {
-            final long[] chain = fat.getChain(startCluster);
+            final int length = ext.getClusterCount();
 
-            if (nrClusters != chain.length) {
-                if (nrClusters > chain.length) {
+            if (nrClusters != length) {
+                if (nrClusters > length) {
                     /* grow the chain */
-                    int count = nrClusters - chain.length;
+                    int count = nrClusters - length;
+                    long last = ext.getLastCluster();
 
                     while (count > 0) {
-                        fat.allocAppend(getStartCluster());
+                        last = fat.allocAppend(last);
+                        ext.append(last);
                         count--;
                     }
                 } else {
                     /* shrink the chain */
                     if (nrClusters > 0) {
-                        fat.setEof(chain[nrClusters - 1]);
-                        for (int i = nrClusters; i < chain.length; i++) {
-                            fat.setFree(chain[i]);
+                        fat.setEof(ext.getCluster(nrClusters - 1));
+                        for (int i = nrClusters; i < length; i++) {
+                            fat.setFree(ext.getCluster(i));
                         }
                     } else {
-                        for (int i = 0; i < chain.length; i++) {
-                            fat.setFree(chain[i]);
+                        for (int i = 0; i < length; i++) {
+                            fat.setFree(ext.getCluster(i));
                         }
 
                         this.startCluster = 0;
                     }
+
+                    ext.truncate(nrClusters);
                 }
             }
         }
     }
 
+    /**
+     * Reads data from this cluster chain. Runs of physically contiguous
+     * clusters are read with a single device request, and a read spanning
+     * several runs is handed to the device as one
+     * {@link BlockDevice#read(long[], int[], int, java.nio.ByteBuffer)
+     * vectored read}.
+     *
+     * @param offset the offset of the first byte to read
+     * @param dest   the buffer to store the data in
+     * @throws IOException on read error
+     */
     public void readData(long offset, ByteBuffer dest)
             throws IOException {
 
-        int len = dest.remaining();
+        final int len = dest.remaining();
 
         if ((startCluster == 0 && len > 0)) throw new EOFException();
+        if (len == 0) return;
 
-        final long[] chain = getFat().getChain(startCluster);
-        final BlockDevice dev = getDevice();
+        final ClusterExtents ext = getExtents();
+        final int chainIdx = (int) (offset / clusterSize);
+        if (chainIdx >= ext.getClusterCount()) throw new EOFException();
 
-        int chainIdx = (int) (offset / clusterSize);
-        if (offset % clusterSize != 0) {
-            int clusOfs = (int) (offset % clusterSize);
-            int size = Math.min(len,
-                    (int) (clusterSize - (offset % clusterSize) - 1));
-            dest.limit(dest.position() + size);
+        final int first = ext.findExtent(chainIdx);
+        final long firstOfs = (long) (chainIdx - ext.getExtentIndex(first)) *
+                clusterSize + (offset % clusterSize);
 
-            dev.read(getDevOffset(chain[chainIdx], clusOfs), dest);
+        final int count = countSegments(ext, first, firstOfs, len);
 
-            offset += size;
-            len -= size;
-            chainIdx++;
+        if (count == 1) {
+            device.read(getExtentDevOffset(ext, first) + firstOfs, dest);
+            return;
         }
 
-        while (len > 0) {
-            int size = Math.min(clusterSize, len);
-            dest.limit(dest.position() + size);
+        final long[] devOffsets = new long[count];
+        final int[] lengths = new int[count];
 
-            dev.read(getDevOffset(chain[chainIdx], 0), dest);
+        long extOfs = firstOfs;
+        int remaining = len;
 
-            len -= size;
-            chainIdx++;
+        for (int i = 0; i < count; i++) {
+            final int extent = first + i;
+            final int size = (int) Math.min(remaining,
+                    getExtentBytes(ext, extent) - extOfs);
+
+            devOffsets[i] = getExtentDevOffset(ext, extent) + extOfs;
+            lengths[i] = size;
+
+            remaining -= size;
+            extOfs = 0;
         }
+
+        device.read(devOffsets, lengths, count, dest);
+    }
+
+    /**
+     * Returns a read-only view of a range of this chain that shares memory
+     * with the device, for devices that can
+     * {@link BlockDevice#map(long, int) map} their contents.
+     *
+     * @param offset the offset of the first byte of the range
+     * @param length the length of the range in bytes
+     * @return the view, or {@code null} if the range is not stored in one
+     *         run of contiguous clusters or the device can not map it
+     * @throws IOException on error mapping the range
+     */
+    public ByteBuffer mapData(long offset, int length) throws IOException {
+        if (startCluster == 0 || length <= 0) return null;
+
+        final ClusterExtents ext = getExtents();
+        final int chainIdx = (int) (offset / clusterSize);
+        if (chainIdx >= ext.getClusterCount()) throw new EOFException();
+
+        final int extent = ext.findExtent(chainIdx);
+        final long extOfs = (long) (chainIdx - ext.getExtentIndex(extent)) *
+                clusterSize + (offset % clusterSize);
+
+        if (extOfs + length > getExtentBytes(ext, extent)) return null;
+
+        return device.map(getExtentDevOffset(ext, extent) + extOfs, length);
     }
 
     /**
@@ -251,32 +327,55 @@ final class ClusterChain extends AbstractFsObject {
             setSize(minSize);
         }
 
-        final long[] chain = fat.getChain(getStartCluster());
+        final ClusterExtents ext = getExtents();
+        final int chainIdx = (int) (offset / clusterSize);
 
-        int chainIdx = (int) (offset / clusterSize);
-        if (offset % clusterSize != 0) {
-            int clusOfs = (int) (offset % clusterSize);
-            int size = Math.min(len,
-                    (int) (clusterSize - (offset % clusterSize)));
+        int extent = ext.findExtent(chainIdx);
+        long extOfs = (long) (chainIdx - ext.getExtentIndex(extent)) *
+                clusterSize + (offset % clusterSize);
+
+        while (len > 0) {
+            final int size = (int) Math.min(len,
+                    getExtentBytes(ext, extent) - extOfs);
             srcBuf.limit(srcBuf.position() + size);
 
-            device.write(getDevOffset(chain[chainIdx], clusOfs), srcBuf);
+            device.write(getExtentDevOffset(ext, extent) + extOfs, srcBuf);
 
-            offset += size;
             len -= size;
-            chainIdx++;
+            extent++;
+            extOfs = 0;
         }
 
-        while (len > 0) {
-            int size = Math.min(clusterSize, len);
-            srcBuf.limit(srcBuf.position() + size);
+    }
+
+    /**
+     * Counts the extents touched by a request of {@code len} bytes that
+     * starts {@code extOfs} bytes into extent {@code first}.
+     */
+    private int countSegments(ClusterExtents ext, int first, long extOfs,
+                              int len) throws EOFException {
 
-            device.write(getDevOffset(chain[chainIdx], 0), srcBuf);
+        final int extentCount = ext.getExtentCount();
+        long remaining = len;
+        int extent = first;
 
-            len -= size;
-            chainIdx++;
+        while (true) {
+            if (extent >= extentCount) throw new EOFException();
+
+            remaining -= getExtentBytes(ext, extent) - extOfs;
+            if (remaining <= 0) return extent - first + 1;
+
+            extent++;
+            extOfs = 0;
         }
+    }
+
+    private long getExtentDevOffset(ClusterExtents ext, int extent) {
+        return getDevOffset(ext.getExtentCluster(extent), 0);
+    }
 
+    private long getExtentBytes(ClusterExtents ext, int extent) {
+        return (long) ext.getExtentLength(extent) * clusterSize;
     }
 
     @Override
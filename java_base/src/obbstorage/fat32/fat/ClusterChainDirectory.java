@@ -88,6 +88,11 @@ class ClusterChainDirectory extends AbstractDirectory {
         this.chain.readData(0, data);
     }
 
+    @Override
+    protected final ByteBuffer map(int length) throws IOException {
+        return this.chain.mapData(0, length);
+    }
+
     @Override
     protected final void write(ByteBuffer data) throws IOException {
         final int toWrite = data.remaining();
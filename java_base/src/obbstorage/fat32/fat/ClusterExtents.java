@@ -0,0 +1,213 @@
+/*
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package obbstorage.fat32.fat;
+
+import java.util.Arrays;
+
+/**
+ * An index over a {@link ClusterChain}, stored as a list of extents (runs of
+ * physically contiguous clusters). Looking up the cluster at a given chain
+ * position is a binary search over the extents, so random access into a
+ * large file does not need to walk the {@link Fat} linked list.
+ */
+final class ClusterExtents {
+
+    /**
+     * The first cluster of each extent.
+     */
+    private long[] firstCluster;
+
+    /**
+     * The chain index of the first cluster of each extent; strictly
+     * ascending, with {@code chainIndex[0] == 0}.
+     */
+    private int[] chainIndex;
+
+    private int extentCount;
+    private int clusterCount;
+
+    private ClusterExtents(int capacity) {
+        this.firstCluster = new long[capacity];
+        this.chainIndex = new int[capacity];
+    }
+
+    /**
+     * Builds the extent list for the chain starting at the given cluster by
+     * walking the {@code Fat} once.
+     *
+     * @param fat          the {@code Fat} holding the chain
+     * @param startCluster the first cluster of the chain, or 0 for an empty
+     *                     chain
+     * @return the extents of the chain
+     */
+    static ClusterExtents build(Fat fat, long startCluster) {
+        final ClusterExtents result = new ClusterExtents(4);
+
+        if (startCluster == 0) return result;
+
+        fat.testCluster(startCluster);
+
+        long cluster = startCluster;
+        while (true) {
+            result.append(cluster);
+
+            final long next = fat.getNextCluster(cluster);
+            if (next < 0) break;
+            cluster = next;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of clusters in the indexed chain.
+     *
+     * @return the chain length in clusters
+     */
+    int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * Returns the number of extents in the indexed chain. A chain that was
+     * allocated in one go on a fresh file system usually has exactly one.
+     *
+     * @return the number of contiguous cluster runs
+     */
+    int getExtentCount() {
+        return extentCount;
+    }
+
+    /**
+     * Returns the extent that holds the cluster at the given chain index.
+     *
+     * @param index the chain index, {@code 0 <= index < getClusterCount()}
+     * @return the extent number
+     */
+    int findExtent(int index) {
+        if (index < 0 || index >= clusterCount)
+            throw new IndexOutOfBoundsException(
+                    "chain index " + index + " of " + clusterCount);
+
+        final int pos = Arrays.binarySearch(chainIndex, 0, extentCount, index);
+        return (pos >= 0) ? pos : -pos - 2;
+    }
+
+    /**
+     * Returns the first cluster of an extent.
+     *
+     * @param extent the extent number
+     * @return the extent's first cluster
+     */
+    long getExtentCluster(int extent) {
+        return firstCluster[extent];
+    }
+
+    /**
+     * Returns the chain index of the first cluster of an extent.
+     *
+     * @param extent the extent number
+     * @return the chain index where the extent starts
+     */
+    int getExtentIndex(int extent) {
+        return chainIndex[extent];
+    }
+
+    /**
+     * Returns the number of clusters in an extent.
+     *
+     * @param extent the extent number
+     * @return the extent length in clusters
+     */
+    int getExtentLength(int extent) {
+        final int end = (extent + 1 < extentCount) ?
+                chainIndex[extent + 1] : clusterCount;
+
+        return end - chainIndex[extent];
+    }
+
+    /**
+     * Returns the cluster at the given position in the chain.
+     *
+     * @param index the chain index
+     * @return the cluster number
+     */
+    long getCluster(int index) {
+        final int extent = findExtent(index);
+        return firstCluster[extent] + (index - chainIndex[extent]);
+    }
+
+    /**
+     * Returns the last cluster of the chain.
+     *
+     * @return the last cluster, or 0 if the chain is empty
+     */
+    long getLastCluster() {
+        if (clusterCount == 0) return 0;
+
+        return getCluster(clusterCount - 1);
+    }
+
+    /**
+     * Appends a cluster to the end of the indexed chain, extending the last
+     * extent if the cluster directly follows it.
+     *
+     * @param cluster the cluster that was appended to the chain
+     */
+    void append(long cluster) {
+        if (extentCount > 0) {
+            final int last = extentCount - 1;
+            final long expected = firstCluster[last] +
+                    (clusterCount - chainIndex[last]);
+
+            if (cluster == expected) {
+                clusterCount++;
+                return;
+            }
+        }
+
+        if (extentCount == firstCluster.length) {
+            final int newCapacity = extentCount * 2;
+            firstCluster = Arrays.copyOf(firstCluster, newCapacity);
+            chainIndex = Arrays.copyOf(chainIndex, newCapacity);
+        }
+
+        firstCluster[extentCount] = cluster;
+        chainIndex[extentCount] = clusterCount;
+        extentCount++;
+        clusterCount++;
+    }
+
+    /**
+     * Cuts the indexed chain down to the given number of clusters.
+     *
+     * @param nrClusters the new chain length, {@code <= getClusterCount()}
+     */
+    void truncate(int nrClusters) {
+        if (nrClusters >= clusterCount) return;
+
+        if (nrClusters <= 0) {
+            extentCount = 0;
+            clusterCount = 0;
+            return;
+        }
+
+        extentCount = findExtent(nrClusters - 1) + 1;
+        clusterCount = nrClusters;
+    }
+
+}
@@ -127,6 +127,29 @@ public final class FatFile extends AbstractFsObject implements FsFile {
         chain.readData(offset, dest);
     }
 
+    /**
+     * Returns a read-only view of a part of this file that shares memory with
+     * the underlying device, so reading it does not copy the data. This only
+     * works for devices that can {@link obbstorage.fat32.BlockDevice#map(long, int) map}
+     * their contents and ranges that are stored in contiguous clusters;
+     * callers have to fall back to {@link #read(long, java.nio.ByteBuffer)}
+     * otherwise.
+     *
+     * @param offset the offset of the first byte of the range
+     * @param length the length of the range in bytes
+     * @return the view, or {@code null} if the range can not be mapped
+     * @throws IOException on error mapping the range
+     */
+    public ByteBuffer map(long offset, int length) throws IOException {
+        checkValid();
+
+        if (offset + length > getLength()) {
+            throw new EOFException();
+        }
+
+        return chain.mapData(offset, length);
+    }
+
     /**
      * <p>
      * {@inheritDoc}
@@ -22,9 +22,12 @@ package obbstorage.fat32.fat;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -62,6 +65,20 @@ public final class FatLfnDirectory
     private final Map<FatDirectoryEntry, FatLfnDirectory> entryToDirectory;
     private Dummy83BufferGenerator dbg;
 
+    /**
+     * If the LFN entries were parsed into the name indices yet. This is
+     * deferred until the directory is first accessed, so merely walking
+     * through a directory on the way to one of it's children is cheap.
+     */
+    private boolean parsed;
+
+    /**
+     * Immutable snapshot of the entries handed out by {@link #getEntries()}
+     * and {@link #iterator()}, or {@code null} if it must be rebuilt because
+     * the directory was modified.
+     */
+    private List<FatLfnDirectoryEntry> listing;
+
     FatLfnDirectory(AbstractDirectory dir, Fat fat, boolean readOnly)
             throws IOException {
 
@@ -86,8 +103,6 @@ public final class FatLfnDirectory
 
         this.usedNames = new HashSet<String>();
         this.dbg = new Dummy83BufferGenerator();
-
-        parseLfn();
     }
 
     private static ClusterChainDirectory read(FatDirectoryEntry entry, Fat fat)
@@ -145,6 +160,7 @@ public final class FatLfnDirectory
     @Override
     public FatLfnDirectoryEntry addFile(String name) throws IOException {
         checkWritable();
+        ensureParsed();
         checkUniqueName(name);
 
         name = name.trim();
@@ -156,7 +172,8 @@ public final class FatLfnDirectory
         dir.addEntries(entry.compactForm());
 
         shortNameIndex.put(sn, entry);
-        longNameIndex.put(name.toLowerCase(), entry);
+        longNameIndex.put(indexName(name), entry);
+        listing = null;
 
         getFile(entry.realEntry);
 
@@ -201,6 +218,7 @@ public final class FatLfnDirectory
     @Override
     public FatLfnDirectoryEntry addDirectory(String name) throws IOException {
         checkWritable();
+        ensureParsed();
         checkUniqueName(name);
 
         name = name.trim();
@@ -221,7 +239,8 @@ public final class FatLfnDirectory
         }
 
         shortNameIndex.put(sn, e);
-        longNameIndex.put(name.toLowerCase(), e);
+        longNameIndex.put(indexName(name), e);
+        listing = null;
 
         getDirectory(real);
 
@@ -242,7 +261,8 @@ public final class FatLfnDirectory
      */
     @Override
     public FatLfnDirectoryEntry getEntry(String name) {
-        name = name.trim().toLowerCase();
+        ensureParsed();
+        name = indexName(name);
 
         final FatLfnDirectoryEntry entry = longNameIndex.get(name);
 
@@ -254,7 +274,23 @@ public final class FatLfnDirectory
         }
     }
 
-    private void parseLfn() throws IOException {
+    /**
+     * Returns the key a name is stored under in {@link #longNameIndex}. FAT
+     * names are case-insensitive, and the folding must not depend on the
+     * default locale.
+     */
+    private static String indexName(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private void ensureParsed() {
+        if (!parsed) {
+            parsed = true;
+            parseLfn();
+        }
+    }
+
+    private void parseLfn() {
         int i = 0;
         final int size = dir.getEntryCount();
 
@@ -287,15 +323,15 @@ public final class FatLfnDirectory
                     FatLfnDirectoryEntry.extract(this, offset, ++i - offset);
 
             if (!current.realEntry.isDeleted() && current.isValid()) {
-                checkUniqueName(current.getName());
-
                 shortNameIndex.put(current.realEntry.getShortName(), current);
-                longNameIndex.put(current.getName().toLowerCase(), current);
+                longNameIndex.put(indexName(current.getName()), current);
             }
         }
     }
 
     private void updateLFN() throws IOException {
+        ensureParsed();
+
         ArrayList<FatDirectoryEntry> dest =
                 new ArrayList<FatDirectoryEntry>();
 
@@ -326,12 +362,30 @@ public final class FatLfnDirectory
         dir.flush();
     }
 
+    /**
+     * Returns the entries of this directory. The returned list is an
+     * immutable snapshot that is shared between callers until this
+     * directory is modified.
+     *
+     * @return the entries of this directory
+     */
+    public List<FatLfnDirectoryEntry> getEntries() {
+        ensureParsed();
+
+        if (listing == null) {
+            listing = Collections.unmodifiableList(
+                    new ArrayList<FatLfnDirectoryEntry>(shortNameIndex.values()));
+        }
+
+        return listing;
+    }
+
     @Override
     public Iterator<FsDirectoryEntry> iterator() {
         return new Iterator<FsDirectoryEntry>() {
 
             final Iterator<FatLfnDirectoryEntry> it =
-                    shortNameIndex.values().iterator();
+                    getEntries().iterator();
 
             @Override
             public boolean hasNext() {
@@ -388,19 +442,22 @@ public final class FatLfnDirectory
      * @see #linkEntry(obbstorage.fat32.fat.FatLfnDirectoryEntry)
      */
     void unlinkEntry(FatLfnDirectoryEntry entry) {
+        ensureParsed();
+
         final ShortName sn = entry.realEntry.getShortName();
 
         if (sn.equals(ShortName.DOT) || sn.equals(ShortName.DOT_DOT)) throw
                 new IllegalArgumentException(
                         "the dot entries can not be removed");
 
-        final String lowerName = entry.getName().toLowerCase();
+        final String lowerName = indexName(entry.getName());
 
         assert (this.longNameIndex.containsKey(lowerName));
         this.longNameIndex.remove(lowerName);
 
         assert (this.shortNameIndex.containsKey(sn));
         this.shortNameIndex.remove(sn);
+        this.listing = null;
 
         if (entry.isFile()) {
             this.entryToFile.remove(entry.realEntry);
@@ -417,19 +474,23 @@ public final class FatLfnDirectory
      * @see #unlinkEntry(obbstorage.fat32.fat.FatLfnDirectoryEntry)
      */
     void linkEntry(FatLfnDirectoryEntry entry) throws IOException {
+        ensureParsed();
         checkUniqueName(entry.getName());
         ShortName name;
         name = this.dbg.generate83BufferNew(entry.getName());
         entry.realEntry.setShortName(name);
 
-        this.longNameIndex.put(entry.getName().toLowerCase(), entry);
+        this.longNameIndex.put(indexName(entry.getName()), entry);
         this.shortNameIndex.put(entry.realEntry.getShortName(), entry);
+        this.listing = null;
 
         updateLFN();
     }
 
     @Override
     public String toString() {
+        ensureParsed();
+
         return getClass().getSimpleName() +
                 " [size=" + shortNameIndex.size() + //NOI18N
                 ", dir=" + dir + "]"; //NOI18N
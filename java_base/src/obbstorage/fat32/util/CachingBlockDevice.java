@@ -0,0 +1,442 @@
+/*
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package obbstorage.fat32.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import obbstorage.fat32.BlockDevice;
+import obbstorage.fat32.ReadOnlyException;
+
+/**
+ * A {@code BlockDevice} that keeps recently read blocks of another device in
+ * memory. This pays off for devices where reading is expensive, like
+ * encrypted images where every read has to decrypt the sectors again, and
+ * for the FAT and directory clusters that are read over and over while
+ * resolving paths.
+ * <p>
+ * The cache holds at most a fixed number of blocks and evicts the least
+ * recently used one when it is full. When reads are found to be sequential,
+ * the blocks following a miss are fetched in the same device read. Reads
+ * that span many blocks bypass the cache, so copying a large file does not
+ * push out everything else. Writes go through to the wrapped device and
+ * drop the blocks they touch.
+ * </p><p>
+ * Instances of this class are thread safe as long as the wrapped device
+ * supports concurrent reads.
+ * </p>
+ */
+public final class CachingBlockDevice implements BlockDevice {
+
+    /**
+     * The default block size. Choosing the cluster size of the file system
+     * on the device makes every cached block one cluster.
+     */
+    public final static int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * The default maximum number of cached blocks.
+     */
+    public final static int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The default number of blocks read ahead on a sequential miss.
+     */
+    public final static int DEFAULT_READ_AHEAD = 16;
+
+    private final BlockDevice dev;
+    private final int blockSize;
+    private final int capacity;
+    private final int readAhead;
+    private final int bypassBlocks;
+    private final long size;
+
+    private final Map<Long, byte[]> blocks;
+    private final Object lock = new Object();
+
+    /**
+     * Incremented whenever cached blocks are dropped, so a block that was
+     * read from the device before a concurrent write is not cached.
+     */
+    private long generation;
+
+    /**
+     * The block following the last read, used to detect sequential reads.
+     */
+    private volatile long nextBlock = -1;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong readAheads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+
+    /**
+     * Creates a new {@code CachingBlockDevice} with the default block size,
+     * capacity and read-ahead.
+     *
+     * @param dev the device to cache
+     * @throws IOException on error getting the size of the device
+     */
+    public CachingBlockDevice(BlockDevice dev) throws IOException {
+        this(dev, DEFAULT_BLOCK_SIZE, DEFAULT_CAPACITY, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Creates a new {@code CachingBlockDevice}.
+     *
+     * @param dev       the device to cache
+     * @param blockSize the size of a cached block in bytes, must be a
+     *                  multiple of the sector size of {@code dev}
+     * @param capacity  the maximum number of cached blocks
+     * @param readAhead the number of blocks read ahead on a sequential miss,
+     *                  or 0 to disable read-ahead
+     * @throws IOException              on error getting the size of the device
+     * @throws IllegalArgumentException if one of the parameters is invalid
+     */
+    public CachingBlockDevice(BlockDevice dev, int blockSize, int capacity,
+                              int readAhead) throws IOException {
+
+        if (blockSize <= 0 || blockSize % dev.getSectorSize() != 0)
+            throw new IllegalArgumentException(
+                    "invalid block size " + blockSize); //NOI18N
+
+        if (capacity <= 0) throw new IllegalArgumentException(
+                "invalid capacity " + capacity); //NOI18N
+
+        if (readAhead < 0) throw new IllegalArgumentException(
+                "invalid read-ahead " + readAhead); //NOI18N
+
+        this.dev = dev;
+        this.blockSize = blockSize;
+        this.capacity = capacity;
+        this.readAhead = Math.min(readAhead, capacity / 2);
+        this.bypassBlocks = Math.max(2, capacity / 32);
+        this.size = dev.getSize();
+
+        this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                if (size() <= CachingBlockDevice.this.capacity) return false;
+
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        checkClosed();
+
+        return size;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkClosed();
+
+        final int length = dest.remaining();
+        if (length == 0) return;
+
+        if (devOffset < 0 || (devOffset + length) > size) throw new IOException(
+                "reading past end of device");
+
+        final long first = devOffset / blockSize;
+        final long last = (devOffset + length - 1) / blockSize;
+        final int count = (int) (last - first + 1);
+        final boolean sequential = (first == nextBlock || first + 1 == nextBlock);
+        nextBlock = last + 1;
+
+        if (count >= bypassBlocks) {
+            bypassed.incrementAndGet();
+            dev.read(devOffset, dest);
+            return;
+        }
+
+        final byte[][] data = new byte[count][];
+        final long gen;
+        int missing = 0;
+
+        synchronized (lock) {
+            for (int i = 0; i < count; i++) {
+                data[i] = blocks.get(first + i);
+                if (data[i] == null) missing++;
+            }
+
+            gen = generation;
+        }
+
+        hits.addAndGet(count - missing);
+        misses.addAndGet(missing);
+
+        for (int i = 0; missing > 0; ) {
+            if (data[i] != null) {
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            while (end < count && data[end] == null) end++;
+
+            /* only read ahead when the miss is at the end of the request */
+            final int extra = (sequential && end == count) ?
+                    (int) Math.min(readAhead, getBlockCount() - (first + end)) : 0;
+
+            final byte[][] loaded = load(first + i, end - i + extra);
+            System.arraycopy(loaded, 0, data, i, end - i);
+            store(first + i, loaded, gen);
+
+            readAheads.addAndGet(extra);
+            missing -= end - i;
+            i = end;
+        }
+
+        int offset = (int) (devOffset - first * blockSize);
+        int remaining = length;
+
+        for (int i = 0; i < count; i++) {
+            final int n = Math.min(remaining, data[i].length - offset);
+            dest.put(data[i], offset, n);
+            remaining -= n;
+            offset = 0;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is passed on to the wrapped device; views are never served from
+     * the cache.
+     * </p>
+     */
+    @Override
+    public ByteBuffer map(long devOffset, int length) throws IOException {
+        checkClosed();
+
+        return dev.map(devOffset, length);
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws ReadOnlyException,
+            IOException, IllegalArgumentException {
+
+        checkClosed();
+
+        final int length = src.remaining();
+
+        try {
+            dev.write(devOffset, src);
+        } finally {
+            if (length > 0) {
+                invalidate(devOffset / blockSize,
+                        (devOffset + length - 1) / blockSize);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+
+        dev.flush();
+    }
+
+    @Override
+    public int getSectorSize() throws IOException {
+        checkClosed();
+
+        return dev.getSectorSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isClosed()) return;
+
+        synchronized (lock) {
+            blocks.clear();
+            generation++;
+        }
+
+        dev.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return dev.isClosed();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        checkClosed();
+
+        return dev.isReadOnly();
+    }
+
+    /**
+     * Returns the number of requested blocks that were found in the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requested blocks that had to be read from the
+     * wrapped device, not counting blocks read ahead.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of requested blocks that were found in the cache.
+     *
+     * @return the hit ratio, or 0 if nothing was read yet
+     */
+    public double getHitRatio() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    /**
+     * Returns the number of blocks that were read ahead of a sequential read.
+     *
+     * @return the number of blocks read ahead
+     */
+    public long getReadAheadCount() {
+        return readAheads.get();
+    }
+
+    /**
+     * Returns the number of blocks that were evicted to make room for others.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of reads that were too large to be cached and went
+     * straight to the wrapped device.
+     *
+     * @return the number of bypassed reads
+     */
+    public long getBypassCount() {
+        return bypassed.get();
+    }
+
+    /**
+     * Returns the number of blocks currently cached.
+     *
+     * @return the number of cached blocks
+     */
+    public int getCachedBlockCount() {
+        synchronized (lock) {
+            return blocks.size();
+        }
+    }
+
+    /**
+     * Resets all counters to zero. The cached blocks are kept.
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        readAheads.set(0);
+        evictions.set(0);
+        bypassed.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() +
+                " [blockSize=" + blockSize + //NOI18N
+                ", cached=" + getCachedBlockCount() + //NOI18N
+                "/" + capacity + //NOI18N
+                ", hits=" + hits.get() + //NOI18N
+                ", misses=" + misses.get() + //NOI18N
+                ", readAhead=" + readAheads.get() + //NOI18N
+                ", evictions=" + evictions.get() + //NOI18N
+                ", bypassed=" + bypassed.get() + "]"; //NOI18N
+    }
+
+    private long getBlockCount() {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Reads consecutive blocks from the wrapped device with a single read.
+     */
+    private byte[][] load(long block, int count) throws IOException {
+        final long start = block * blockSize;
+        final int length = (int) Math.min((long) count * blockSize, size - start);
+        final ByteBuffer buf = ByteBuffer.allocate(length);
+
+        dev.read(start, buf);
+
+        final byte[] all = buf.array();
+        final byte[][] result = new byte[count][];
+
+        for (int i = 0; i < count; i++) {
+            final int from = i * blockSize;
+            final byte[] b = new byte[Math.min(blockSize, length - from)];
+            System.arraycopy(all, from, b, 0, b.length);
+            result[i] = b;
+        }
+
+        return result;
+    }
+
+    private void store(long block, byte[][] data, long gen) {
+        synchronized (lock) {
+            if (gen != generation) return;
+
+            for (int i = 0; i < data.length; i++) {
+                blocks.put(block + i, data[i]);
+            }
+        }
+    }
+
+    private void invalidate(long first, long last) {
+        synchronized (lock) {
+            if (last - first < blocks.size()) {
+                for (long b = first; b <= last; b++) {
+                    blocks.remove(b);
+                }
+            } else {
+                blocks.keySet().removeIf(b -> b >= first && b <= last);
+            }
+
+            generation++;
+        }
+    }
+
+    private void checkClosed() {
+        if (isClosed()) throw new IllegalStateException("device already closed");
+    }
+
+}
@@ -123,6 +123,50 @@ public final class FileDisk implements BlockDevice {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation checks the device size only once for the whole
+     * request and issues positional reads directly on the channel.
+     * </p>
+     */
+    @Override
+    public void read(long[] devOffsets, int[] lengths, int count,
+                     ByteBuffer dest) throws IOException {
+
+        checkClosed();
+
+        final long size = getSize();
+        long total = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (devOffsets[i] + lengths[i] > size) throw new IOException(
+                    "reading past end of device");
+
+            total += lengths[i];
+        }
+
+        if (total > dest.remaining()) throw new IllegalArgumentException(
+                "blocks do not fit into buffer"); //NOI18N
+
+        final int limit = dest.limit();
+
+        try {
+            for (int i = 0; i < count; i++) {
+                dest.limit(dest.position() + lengths[i]);
+                long devOffset = devOffsets[i];
+
+                while (dest.hasRemaining()) {
+                    final int read = fc.read(dest, devOffset);
+                    if (read < 0) throw new IOException();
+                    devOffset += read;
+                }
+            }
+        } finally {
+            dest.limit(limit);
+        }
+    }
+
     @Override
     public void write(long devOffset, ByteBuffer src) throws IOException {
         checkClosed();
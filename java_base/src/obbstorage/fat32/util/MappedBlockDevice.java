@@ -0,0 +1,211 @@
+/*
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package obbstorage.fat32.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import obbstorage.fat32.BlockDevice;
+import obbstorage.fat32.ReadOnlyException;
+
+/**
+ * A read-only {@code BlockDevice} that memory maps a {@link File}. Reads are
+ * served from the page cache without system calls, and
+ * {@link #map(long, int)} hands out views of the image without copying.
+ * <p>
+ * The file is mapped in segments of at most {@link #MAPPING_SIZE} bytes.
+ * Consecutive segments overlap by {@link #SEGMENT_OVERLAP} bytes, so any
+ * range of up to that size can be handed out as a single view even if it
+ * crosses a segment boundary.
+ * </p>
+ */
+public final class MappedBlockDevice implements BlockDevice {
+
+    /**
+     * The number of bytes per sector for all {@code MappedBlockDevice}
+     * instances.
+     */
+    public final static int BYTES_PER_SECTOR = 512;
+
+    /**
+     * The maximum size of a single segment mapping.
+     */
+    public final static long MAPPING_SIZE = 1L << 30;
+
+    /**
+     * The number of bytes a segment mapping extends past the start of
+     * the next segment.
+     */
+    public final static int SEGMENT_OVERLAP = 64 * 1024 * 1024;
+
+    /**
+     * The distance between the start offsets of two consecutive segments.
+     */
+    private final static long SEGMENT_SIZE = MAPPING_SIZE - SEGMENT_OVERLAP;
+
+    private final RandomAccessFile raf;
+    private final FileChannel fc;
+    private final long size;
+    private MappedByteBuffer[] segments;
+    private boolean closed;
+
+    /**
+     * Creates a new instance of {@code MappedBlockDevice} for the specified
+     * {@code File}.
+     *
+     * @param file the file that holds the disk contents
+     * @throws FileNotFoundException if the specified file does not exist
+     * @throws IOException           on error mapping the file
+     */
+    public MappedBlockDevice(File file) throws IOException {
+        if (!file.exists()) throw new FileNotFoundException();
+
+        this.raf = new RandomAccessFile(file, "r"); //NOI18N
+        this.fc = raf.getChannel();
+        this.size = fc.size();
+        this.closed = false;
+
+        final int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        this.segments = new MappedByteBuffer[count];
+
+        try {
+            for (int i = 0; i < count; i++) {
+                final long start = i * SEGMENT_SIZE;
+                final long length = Math.min(MAPPING_SIZE, size - start);
+
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public long getSize() {
+        checkClosed();
+
+        return size;
+    }
+
+    @Override
+    public void read(long devOffset, ByteBuffer dest) throws IOException {
+        checkClosed();
+
+        int toRead = dest.remaining();
+        if (devOffset < 0 || (devOffset + toRead) > size) throw new IOException(
+                "reading past end of device");
+
+        while (toRead > 0) {
+            final int seg = (int) (devOffset / SEGMENT_SIZE);
+            final int segOffset = (int) (devOffset - seg * SEGMENT_SIZE);
+            final int count = Math.min(toRead,
+                    segments[seg].capacity() - segOffset);
+
+            final ByteBuffer src = segments[seg].duplicate();
+            src.limit(segOffset + count);
+            src.position(segOffset);
+            dest.put(src);
+
+            toRead -= count;
+            devOffset += count;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Ranges that do not fit into a single segment mapping, which can only
+     * happen for ranges longer than {@link #SEGMENT_OVERLAP}, are not
+     * mapped.
+     * </p>
+     */
+    @Override
+    public ByteBuffer map(long devOffset, int length) throws IOException {
+        checkClosed();
+
+        if (devOffset < 0 || (devOffset + length) > size) throw new IOException(
+                "mapping past end of device");
+
+        final int seg = (int) (devOffset / SEGMENT_SIZE);
+        final int segOffset = (int) (devOffset - seg * SEGMENT_SIZE);
+
+        if (segOffset + length > segments[seg].capacity()) return null;
+
+        final ByteBuffer view = segments[seg].asReadOnlyBuffer();
+        view.limit(segOffset + length);
+        view.position(segOffset);
+        return view.slice();
+    }
+
+    @Override
+    public void write(long devOffset, ByteBuffer src) throws IOException {
+        checkClosed();
+
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+    }
+
+    @Override
+    public int getSectorSize() {
+        checkClosed();
+
+        return BYTES_PER_SECTOR;
+    }
+
+    /**
+     * Closes the underlying file. The mappings themselves are released by
+     * the garbage collector once no views of them are left.
+     *
+     * @throws IOException on error closing the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed()) return;
+
+        this.closed = true;
+        this.segments = null;
+        this.fc.close();
+        this.raf.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    private void checkClosed() {
+        if (closed) throw new IllegalStateException("device already closed");
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        checkClosed();
+
+        return true;
+    }
+
+}
@@ -16,7 +16,7 @@
 
 package obbstorage.obbstorage;
 
-import obbstorage.twofish.Twofish_Algorithm;
+import obbstorage.twofish.Twofish_Engine;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -29,7 +29,8 @@ import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.InvalidKeyException;
-import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class EncryptedBlockFile extends RandomAccessFile {
 
@@ -37,7 +38,19 @@ public class EncryptedBlockFile extends RandomAccessFile {
      * The number of bytes per sector for all {@code FileDisk} instances.
      */
     public final static int BYTES_PER_SECTOR = 512;
-    private final Object mKey;
+
+    /**
+     * Sectors per batch when a read has to be staged in a scratch buffer.
+     */
+    private final static int SCRATCH_SECTORS = 128;
+
+    /**
+     * Requests of at least this many sectors are decrypted on the common
+     * {@code ForkJoinPool}; this is also the size of one parallel work unit.
+     */
+    private final static int PARALLEL_SECTORS = 64;
+
+    private final Twofish_Engine mEngine;
     private final EncryptedBlockFileChannel mEBFC;
 
     public EncryptedBlockFile(byte[] key, File file, String mode) throws FileNotFoundException,
@@ -47,7 +60,7 @@ public class EncryptedBlockFile extends RandomAccessFile {
         if (!file.exists())
             throw new FileNotFoundException();
 
-        mKey = Twofish_Algorithm.makeKey(key);
+        mEngine = Twofish_Engine.get(key);
     }
 
     public EncryptedBlockFileChannel getEncryptedFileChannel() {
@@ -76,6 +89,8 @@ public class EncryptedBlockFile extends RandomAccessFile {
 
     private final class EncryptedBlockFileChannel extends FileChannel {
         final FileChannel mFC;
+        private final ThreadLocal<byte[]> mScratch =
+                ThreadLocal.withInitial(() -> new byte[SCRATCH_SECTORS * BYTES_PER_SECTOR]);
 
         protected EncryptedBlockFileChannel(FileChannel wrappedFC) {
             super();
@@ -121,69 +136,42 @@ public class EncryptedBlockFile extends RandomAccessFile {
 
         @Override
         public int read(ByteBuffer dest, long position) throws IOException {
-            boolean isMisaligned;
-            boolean isPartial;
-            boolean doubleBuffer;
-
-            int toRead = dest.remaining();
-            int targetRead = toRead;
-            int numSectors = toRead / BYTES_PER_SECTOR;
+            final int toRead = dest.remaining();
             if ((position + toRead) > length())
                 throw new IOException(
                         "reading past end of device");
 
-            int alignmentOff;
-            int firstSector = (int) position / BYTES_PER_SECTOR;
-            if (0 != (alignmentOff = (int) (position % BYTES_PER_SECTOR))) {
-                toRead += alignmentOff;
-                numSectors = toRead / BYTES_PER_SECTOR;
-                isMisaligned = true;
-                doubleBuffer = true;
-                System.out.println("Alignment off reading from sector: " + firstSector);
-            } else {
-                isMisaligned = false;
-                doubleBuffer = false;
-                alignmentOff = 0;
-            }
+            if (toRead == 0)
+                return 0;
 
-            int partialReadSize;
-            if (0 != (partialReadSize = toRead % BYTES_PER_SECTOR)) {
-                isPartial = true;
-                doubleBuffer = true;
-                numSectors = toRead / BYTES_PER_SECTOR + 1;
-                System.out.println("Partial read from sector: " + firstSector);
-            } else {
-                isPartial = false;
-            }
+            long sector = position / BYTES_PER_SECTOR;
+            int skip = (int) (position % BYTES_PER_SECTOR);
 
-            ByteBuffer tempDest;
-            if (doubleBuffer) {
-                tempDest = ByteBuffer.allocate(BYTES_PER_SECTOR);
-            } else {
-                tempDest = null;
+            if (skip == 0 && toRead % BYTES_PER_SECTOR == 0 && dest.hasArray()) {
+                // sector aligned, decrypt straight into the caller's buffer
+                readDecryptedSectors(sector, toRead / BYTES_PER_SECTOR,
+                        dest.array(), dest.arrayOffset() + dest.position());
+                dest.position(dest.position() + toRead);
+                return toRead;
             }
-            int lastSector = firstSector + numSectors;
-            if (isMisaligned) {
-                // first sector is misaligned. Read and decrypt into temp dest
-                readDecryptedSector(firstSector++, tempDest);
-                tempDest.position(alignmentOff);
-                // special case -- small sector;
-                if (firstSector == lastSector && isPartial) {
-                    tempDest.limit(partialReadSize);
-                }
-                dest.put(tempDest);
-            }
-            for (int i = firstSector; i < lastSector; i++) {
-                if (firstSector + 1 == lastSector && isPartial) {
-                    readDecryptedSector(i, tempDest);
-                    tempDest.rewind();
-                    tempDest.limit(partialReadSize);
-                    dest.put(tempDest);
-                } else {
-                    readDecryptedSector(i, dest);
-                }
+
+            // misaligned or partial access, go through the scratch buffer
+            final byte[] scratch = mScratch.get();
+            final long endSector = (position + toRead + BYTES_PER_SECTOR - 1) / BYTES_PER_SECTOR;
+            int remaining = toRead;
+
+            while (remaining > 0) {
+                final int count = (int) Math.min(SCRATCH_SECTORS, endSector - sector);
+                readDecryptedSectors(sector, count, scratch, 0);
+
+                final int take = Math.min(count * BYTES_PER_SECTOR - skip, remaining);
+                dest.put(scratch, skip, take);
+
+                remaining -= take;
+                sector += count;
+                skip = 0;
             }
-            return targetRead;
+            return toRead;
         }
 
         @Override
@@ -234,7 +222,7 @@ public class EncryptedBlockFile extends RandomAccessFile {
         public int write(ByteBuffer src, long position) throws IOException {
             int toWrite = src.remaining();
             int targetWrite = toWrite;
-            int firstSector = (int) position / BYTES_PER_SECTOR;
+            int firstSector = (int) (position / BYTES_PER_SECTOR);
             int numSectors = toWrite / BYTES_PER_SECTOR;
 
             boolean fixAccess = false;
@@ -245,7 +233,6 @@ public class EncryptedBlockFile extends RandomAccessFile {
                 toWrite += alignmentOff;
                 numSectors = toWrite / BYTES_PER_SECTOR;
                 fixAccess = true;
-                System.out.println("Alignment off writing to sector: " + firstSector);
             } else {
                 readOffset = position;
             }
@@ -253,7 +240,6 @@ public class EncryptedBlockFile extends RandomAccessFile {
             if (0 != toWrite % BYTES_PER_SECTOR) {
                 numSectors = toWrite / BYTES_PER_SECTOR + 1;
                 fixAccess = true;
-                System.out.println("Partial Sector [" + toWrite % BYTES_PER_SECTOR + "] writing to sector: " + firstSector);
             }
 
             if (fixAccess) {
@@ -287,92 +273,122 @@ public class EncryptedBlockFile extends RandomAccessFile {
         }
 
         /**
-         * plain: the initial vector is the 32-bit little-endian version of the
-         * sector number, padded with zeros if necessary.
+         * Reads {@code count} consecutive sectors with one positional read and
+         * decrypts them in place. Large requests are decrypted in parallel,
+         * which is possible because every sector is chained from its own IV.
          */
-        private void cryptIVPlainGen(int sector, byte[] out) {
-            Arrays.fill(out, (byte) 0);
-            out[0] = (byte) (sector & 0xff);
-            out[1] = (byte) (sector >> 8 & 0xff);
-            out[2] = (byte) (sector >> 16 & 0xff);
-            out[3] = (byte) (sector >>> 24);
-        }
-
-        private void readDecryptedSector(int sector, ByteBuffer dest) throws IOException {
-            ByteBuffer temp = ByteBuffer.allocate(BYTES_PER_SECTOR);
-            int toRead = BYTES_PER_SECTOR;
-            int devOffset = BYTES_PER_SECTOR * sector;
-
-            // number of chained twofish blocks
-            int blockSize = Twofish_Algorithm.blockSize();
-            byte[] bufLast = new byte[blockSize];
-            int numBlocks = toRead / blockSize;
+        private void readDecryptedSectors(long firstSector, int count, byte[] buf, int off)
+                throws IOException {
+            final ByteBuffer temp = ByteBuffer.wrap(buf, off, count * BYTES_PER_SECTOR);
+            long devOffset = firstSector * BYTES_PER_SECTOR;
 
-            // read unencrypted sector
-            while (toRead > 0) {
+            // read unencrypted sectors
+            while (temp.hasRemaining()) {
                 final int read = mFC.read(temp, devOffset);
                 if (read < 0)
                     throw new IOException();
-                toRead -= read;
                 devOffset += read;
             }
-            temp.rewind();
 
-            // set initialization vector
-            cryptIVPlainGen(sector, bufLast);
+            if (count >= PARALLEL_SECTORS) {
+                ForkJoinPool.commonPool().invoke(
+                        new DecryptTask(firstSector, count, buf, off));
+            } else {
+                decryptSectors(firstSector, count, buf, off);
+            }
+        }
+
+        private void decryptSectors(long firstSector, int count, byte[] buf, int off) {
+            for (int i = 0; i < count; i++) {
+                decryptSector((int) (firstSector + i), buf, off + i * BYTES_PER_SECTOR);
+            }
+        }
 
-            byte[] buf = new byte[blockSize];
-            for (int i = 0; i < numBlocks; i++) {
-                temp.get(buf);
-                // decrypt with chained blocks --- xor with the previous encrypted block
-                byte[] decryptBuf = Twofish_Algorithm.blockDecrypt(buf, 0, mKey);
+        /**
+         * Decrypts one sector in place. The blocks are processed back to
+         * front, so the previous ciphertext block that every block is chained
+         * to is still intact when it is needed.
+         */
+        private void decryptSector(int sector, byte[] buf, int off) {
+            final int blockSize = Twofish_Engine.blockSize();
+
+            for (int pos = off + BYTES_PER_SECTOR - blockSize; pos > off; pos -= blockSize) {
+                mEngine.decrypt(buf, pos, buf, pos);
                 for (int j = 0; j < blockSize; j++) {
-                    decryptBuf[j] ^= bufLast[j];
+                    buf[pos + j] ^= buf[pos - blockSize + j];
+                }
+            }
+
+            // the first block is chained to the plain IV, the 32-bit
+            // little-endian sector number padded with zeros
+            mEngine.decrypt(buf, off, buf, off);
+            buf[off] ^= (byte) (sector & 0xff);
+            buf[off + 1] ^= (byte) (sector >> 8 & 0xff);
+            buf[off + 2] ^= (byte) (sector >> 16 & 0xff);
+            buf[off + 3] ^= (byte) (sector >>> 24);
+        }
+
+        private final class DecryptTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final long mFirstSector;
+            private final int mCount;
+            private final byte[] mBuf;
+            private final int mOff;
+
+            DecryptTask(long firstSector, int count, byte[] buf, int off) {
+                mFirstSector = firstSector;
+                mCount = count;
+                mBuf = buf;
+                mOff = off;
+            }
+
+            @Override
+            protected void compute() {
+                if (mCount <= PARALLEL_SECTORS) {
+                    decryptSectors(mFirstSector, mCount, mBuf, mOff);
+                    return;
                 }
-                System.arraycopy(buf, 0, bufLast, 0, blockSize);
-                dest.put(decryptBuf);
+                final int half = mCount / 2;
+                invokeAll(new DecryptTask(mFirstSector, half, mBuf, mOff),
+                        new DecryptTask(mFirstSector + half, mCount - half, mBuf,
+                                mOff + half * BYTES_PER_SECTOR));
             }
         }
 
         private void writeEncryptedSector(int sector, ByteBuffer src) throws IOException {
-            byte[] sectorBuf = new byte[BYTES_PER_SECTOR];
-            int toRead = BYTES_PER_SECTOR;
-            int devOffset = BYTES_PER_SECTOR * sector;
+            final byte[] sectorBuf = mScratch.get();
+            long devOffset = (long) BYTES_PER_SECTOR * sector;
 
             // number of chained twofish blocks
-            int blockSize = Twofish_Algorithm.blockSize();
-            byte[] bufLast = new byte[blockSize];
-            int numBlocks = toRead / blockSize;
+            final int blockSize = Twofish_Engine.blockSize();
 
             // fetch unencrypted sector
-            src.get(sectorBuf);
-
-            // set initialization vector
-            cryptIVPlainGen(sector, bufLast);
-
-            int pos = 0;
-            byte[] buf = new byte[blockSize];
-            for (int i = 0; i < numBlocks; i++) {
-                System.arraycopy(sectorBuf, pos, buf, 0, blockSize);
-                // encrypt with chained blocks --- xor with the previous encrypted block
+            src.get(sectorBuf, 0, BYTES_PER_SECTOR);
+
+            // encrypt with chained blocks --- xor with the previous encrypted block,
+            // the first block is chained to the plain IV, the 32-bit
+            // little-endian sector number padded with zeros
+            sectorBuf[0] ^= (byte) (sector & 0xff);
+            sectorBuf[1] ^= (byte) (sector >> 8 & 0xff);
+            sectorBuf[2] ^= (byte) (sector >> 16 & 0xff);
+            sectorBuf[3] ^= (byte) (sector >>> 24);
+            mEngine.encrypt(sectorBuf, 0, sectorBuf, 0);
+            for (int pos = blockSize; pos < BYTES_PER_SECTOR; pos += blockSize) {
                 for (int j = 0; j < blockSize; j++) {
-                    buf[j] ^= bufLast[j];
-                }
-                byte[] encryptBuf = Twofish_Algorithm.blockEncrypt(buf, 0, mKey);
-                bufLast = encryptBuf;
-                int toWrite = blockSize;
-                ByteBuffer encryptBuffer = ByteBuffer.wrap(encryptBuf);
-                while (toWrite > 0) {
-                    final int written = mFC.write(encryptBuffer, devOffset);
-                    if (written < 0)
-                        throw new IOException();
-                    toWrite -= written;
-                    devOffset += written;
+                    sectorBuf[pos + j] ^= sectorBuf[pos - blockSize + j];
                 }
-                pos += blockSize;
+                mEngine.encrypt(sectorBuf, pos, sectorBuf, pos);
             }
-        }
 
+            final ByteBuffer encryptBuffer = ByteBuffer.wrap(sectorBuf, 0, BYTES_PER_SECTOR);
+            while (encryptBuffer.hasRemaining()) {
+                final int written = mFC.write(encryptBuffer, devOffset);
+                if (written < 0)
+                    throw new IOException();
+                devOffset += written;
+            }
+        }
 
     }
 }
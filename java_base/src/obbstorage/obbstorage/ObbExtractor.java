@@ -1,15 +1,27 @@
 package obbstorage.obbstorage;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import obbstorage.fat32.BlockDevice;
 import obbstorage.fat32.FsDirectory;
@@ -19,11 +31,27 @@ import obbstorage.fat32.fat.BootSector;
 import obbstorage.fat32.fat.FatFileSystem;
 import obbstorage.fat32.fat.FatType;
 import obbstorage.fat32.fat.FatUtils;
+import obbstorage.fat32.util.CachingBlockDevice;
 import obbstorage.fat32.util.FileDisk;
 
 public class ObbExtractor {
 
-    private ByteBuffer tempBuf = ByteBuffer.allocate(1024 * 1024);
+    /**
+     * Size of one copy chunk, and of each of the direct buffers chunks are
+     * staged in.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Number of copy workers; the source is a single device, so more threads
+     * than this only add contention.
+     */
+    private final int mThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Files found by the directory walk, copied once the walk is complete.
+     */
+    private final List<CopyJob> mJobs = new ArrayList<CopyJob>();
 
     public boolean extract(String obbPath, String secureKey, String extractionPath, boolean verboseMode) {
 
@@ -65,10 +93,13 @@ public class ObbExtractor {
                 System.out.println(bi.toString(16));
             } catch (InvalidKeyException e) {
                 e.printStackTrace();
+                return false;
             } catch (NoSuchAlgorithmException e) {
                 e.printStackTrace();
+                return false;
             } catch (UnsupportedEncodingException e) {
                 e.printStackTrace();
+                return false;
             }
             isEncrypted = true;
         } else {
@@ -80,7 +111,9 @@ public class ObbExtractor {
         try {
             if (isEncrypted) {
                 EncryptedBlockFile ebf = new EncryptedBlockFile(fishKey, obbInputFile, "r");
-                fd = new FileDisk(ebf, ebf.getEncryptedFileChannel(), true);
+                // the walk reads the FAT and directory clusters repeatedly,
+                // file data is read in chunks large enough to bypass the cache
+                fd = new CachingBlockDevice(new FileDisk(ebf, ebf.getEncryptedFileChannel(), true));
             } else {
                 fd = new FileDisk(obbInputFile, true);
             }
@@ -91,10 +124,13 @@ public class ObbExtractor {
                 printVerboseInfo(bs, rootDir);
             }
             dumpDirectory(rootDir, 0, directoryFile, hasOutputDirectory);
+            copyFiles();
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } catch (InvalidKeyException e) {
             e.printStackTrace();
+            return false;
         }
         return true;
     }
@@ -138,29 +174,162 @@ public class ObbExtractor {
                 File curFile = new File(curDirectory, e.getName());
                 if (curFile.exists()) {
                     throw new IOException("File exists: " + curFile);
-                } else {
-                    FsFile f = e.getFile();
-                    FileOutputStream fos = null;
-                    try {
-                        fos = new FileOutputStream(curFile);
-                        FileChannel outputChannel = fos.getChannel();
-                        int capacity = tempBuf.capacity();
-                        long length = f.getLength();
-                        for (long pos = 0; pos < length; pos++) {
-                            int readLength = (int) (length - pos > capacity ? capacity : length - pos);
-                            tempBuf.rewind();
-                            tempBuf.limit(readLength);
-                            f.read(pos, tempBuf);
-                            tempBuf.rewind();
-                            while (tempBuf.remaining() > 0) {
-                                outputChannel.write(tempBuf);
-                            }
-                            pos += readLength;
+                }
+                // getFile() also builds the cluster index of the file, after
+                // which reads from the read-only file system can run concurrently
+                mJobs.add(new CopyJob(e.getFile(), curFile));
+            }
+        }
+    }
+
+    /**
+     * Copies the files collected by {@link #dumpDirectory} in chunks of
+     * {@link #CHUNK_SIZE} over a pool of workers. The number of chunks in flight is
+     * bounded by a fixed set of direct buffers, each chunk is written with a
+     * positional write so chunks of one file may complete in any order.
+     */
+    private void copyFiles() throws IOException {
+        if (mJobs.isEmpty()) {
+            return;
+        }
+
+        final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(mThreads * 2);
+        for (int i = 0; i < mThreads * 2; i++) {
+            buffers.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+        }
+
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final List<Future<?>> chunks = new ArrayList<Future<?>>();
+        final ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+        final long start = System.nanoTime();
+        long totalBytes = 0;
+
+        try {
+            try {
+                for (final CopyJob job : mJobs) {
+                    if (failure.get() != null) {
+                        break;
+                    }
+                    job.open();
+                    totalBytes += job.mLength;
+
+                    for (long pos = 0; pos < job.mLength; pos += CHUNK_SIZE) {
+                        final ByteBuffer buf = buffers.take();
+                        if (failure.get() != null) {
+                            buffers.add(buf);
+                            break;
                         }
-                    } finally {
-                        if (null != fos) fos.close();
+
+                        final long chunkPos = pos;
+                        chunks.add(pool.submit(() -> {
+                            try {
+                                job.copyChunk(chunkPos, buf);
+                            } catch (IOException ex) {
+                                failure.compareAndSet(null, ex);
+                            } finally {
+                                buffers.add(buf);
+                            }
+                        }));
                     }
                 }
+            } finally {
+                pool.shutdown();
+            }
+            // every chunk has to be written before the channels are closed
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException ex) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("extraction interrupted");
+        } catch (ExecutionException ex) {
+            throw new IOException("extraction failed", ex.getCause());
+        } finally {
+            // also waits for the chunks in flight when the walk above failed
+            awaitTermination(pool);
+            for (CopyJob job : mJobs) {
+                job.closeQuietly();
+            }
+            mJobs.clear();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        final double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.out.println(String.format("Extracted %d bytes in %.2f s (%.1f MB/s)",
+                totalBytes, seconds, totalBytes / seconds / (1024 * 1024)));
+    }
+
+    /**
+     * Waits for the workers to finish, without giving up on interrupts: the
+     * output channels must not be closed under a running chunk.
+     */
+    private static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException ex) {
+                interrupted = true;
+                pool.shutdownNow();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class CopyJob {
+        final FsFile mFile;
+        final File mTarget;
+        final long mLength;
+        private final AtomicInteger mPendingChunks;
+        private FileChannel mChannel;
+
+        CopyJob(FsFile file, File target) {
+            mFile = file;
+            mTarget = target;
+            mLength = file.getLength();
+            mPendingChunks = new AtomicInteger((int) ((mLength + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        }
+
+        void open() throws IOException {
+            mChannel = FileChannel.open(mTarget.toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            if (mLength == 0) {
+                closeQuietly();
+            }
+        }
+
+        void copyChunk(long pos, ByteBuffer buf) throws IOException {
+            final int readLength = (int) Math.min(CHUNK_SIZE, mLength - pos);
+            buf.clear();
+            buf.limit(readLength);
+            mFile.read(pos, buf);
+            buf.flip();
+
+            long writePos = pos;
+            while (buf.hasRemaining()) {
+                writePos += mChannel.write(buf, writePos);
+            }
+
+            if (mPendingChunks.decrementAndGet() == 0) {
+                mChannel.close();
+            }
+        }
+
+        void closeQuietly() {
+            if (mChannel == null) {
+                return;
+            }
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
             }
         }
     }
@@ -21,6 +21,9 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.interfaces.PBEKey;
@@ -30,8 +33,39 @@ public class PBKDF {
     public static final int SALT_LEN = 8;
     private static final int ROUNDS = 1024;
     private static final int KEY_BITS = 128;
+    private static final int CACHE_SIZE = 8;
+
+    /**
+     * Keys derived recently, so that remounting an OBB does not pay for the
+     * key derivation again.
+     */
+    private static final Map<CacheKey, byte[]> sKeyCache =
+            new LinkedHashMap<CacheKey, byte[]>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, byte[]> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
 
     public static byte[] getKey(String password, byte[] saltBytes) throws InvalidKeyException, NoSuchAlgorithmException, UnsupportedEncodingException {
+        final CacheKey cacheKey = new CacheKey(password, saltBytes);
+        synchronized (sKeyCache) {
+            final byte[] cached = sKeyCache.get(cacheKey);
+            if (cached != null) {
+                return cached.clone();
+            }
+        }
+
+        final byte[] key = deriveKey(password, saltBytes);
+        if (key != null) {
+            synchronized (sKeyCache) {
+                sKeyCache.put(cacheKey, key.clone());
+            }
+        }
+        return key;
+    }
+
+    private static byte[] deriveKey(String password, byte[] saltBytes) throws NoSuchAlgorithmException {
         PBEKeySpec pwKey = new PBEKeySpec(password.toCharArray(), saltBytes, ROUNDS, KEY_BITS);
         SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
         PBEKey pbeKey;
@@ -52,4 +86,26 @@ public class PBKDF {
         return saltBytes;
     }
 
+    private static final class CacheKey {
+        private final String mPassword;
+        private final byte[] mSalt;
+
+        CacheKey(String password, byte[] salt) {
+            mPassword = password;
+            mSalt = salt.clone();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) return false;
+            final CacheKey other = (CacheKey) obj;
+            return mPassword.equals(other.mPassword) && Arrays.equals(mSalt, other.mSalt);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mPassword.hashCode() + Arrays.hashCode(mSalt);
+        }
+    }
+
 }
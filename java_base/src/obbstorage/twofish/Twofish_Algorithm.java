@@ -607,7 +607,25 @@ public final class Twofish_Algorithm // implicit no-argument constructor
      */
     public static byte[]
     blockDecrypt(byte[] in, int inOffset, Object sessionKey) {
-        if (DEBUG) trace(IN, "blockDecrypt(" + in + ", " + inOffset + ", " + sessionKey + ")");
+        byte[] result = new byte[BLOCK_SIZE];
+        blockDecrypt(in, inOffset, result, 0, sessionKey);
+        return result;
+    }
+
+    /**
+     * Decrypt exactly one block of ciphertext into a caller supplied buffer.
+     * The whole block is read before any output is written, so in and out
+     * may be the same region to decrypt in place.
+     *
+     * @param in         The ciphertext.
+     * @param inOffset   Index of in from which to start considering data.
+     * @param out        The buffer receiving the plaintext.
+     * @param outOffset  Index of out where the plaintext is stored.
+     * @param sessionKey The session key to use for decryption.
+     */
+    public static void
+    blockDecrypt(byte[] in, int inOffset, byte[] out, int outOffset, Object sessionKey) {
+        if (DEBUG) trace(IN, "blockDecrypt(" + in + ", " + inOffset + ", " + out + ", " + outOffset + ", " + sessionKey + ")");
         Object[] sk = (Object[]) sessionKey; // extract S-box and session key
         int[] sBox = (int[]) sk[0];
         int[] sKey = (int[]) sk[1];
@@ -666,19 +684,17 @@ public final class Twofish_Algorithm // implicit no-argument constructor
         if (DEBUG && debuglevel > 6)
             System.out.println("PTw=" + intToString(x2) + intToString(x3) + intToString(x0) + intToString(x1));
 
-        byte[] result = new byte[]{
-                (byte) x0, (byte) (x0 >>> 8), (byte) (x0 >>> 16), (byte) (x0 >>> 24),
-                (byte) x1, (byte) (x1 >>> 8), (byte) (x1 >>> 16), (byte) (x1 >>> 24),
-                (byte) x2, (byte) (x2 >>> 8), (byte) (x2 >>> 16), (byte) (x2 >>> 24),
-                (byte) x3, (byte) (x3 >>> 8), (byte) (x3 >>> 16), (byte) (x3 >>> 24),
-        };
+        int o = outOffset;
+        out[o++] = (byte) x0; out[o++] = (byte) (x0 >>> 8); out[o++] = (byte) (x0 >>> 16); out[o++] = (byte) (x0 >>> 24);
+        out[o++] = (byte) x1; out[o++] = (byte) (x1 >>> 8); out[o++] = (byte) (x1 >>> 16); out[o++] = (byte) (x1 >>> 24);
+        out[o++] = (byte) x2; out[o++] = (byte) (x2 >>> 8); out[o++] = (byte) (x2 >>> 16); out[o++] = (byte) (x2 >>> 24);
+        out[o++] = (byte) x3; out[o++] = (byte) (x3 >>> 8); out[o++] = (byte) (x3 >>> 16); out[o]   = (byte) (x3 >>> 24);
 
         if (DEBUG && debuglevel > 6) {
-            System.out.println("PT=" + toString(result));
+            System.out.println("PT=" + toString(out, outOffset, BLOCK_SIZE));
             System.out.println();
         }
         if (DEBUG) trace(OUT, "blockDecrypt()");
-        return result;
     }
 
     /**
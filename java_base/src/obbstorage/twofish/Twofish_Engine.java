@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 1997, 1998 Systemics Ltd on behalf of
+ * the Cryptix Development Team. All rights reserved.
+ */
+package obbstorage.twofish;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+//...........................................................................
+
+/**
+ * Table driven Twofish block cipher bound to one key. The key dependent
+ * S-boxes, which already have the MDS matrix folded in, are kept as four
+ * consecutive 256 entry segments of one {@code int[]} and the round subkeys
+ * in another, so a block is processed with nothing but array lookups and no
+ * allocation.
+ * <p/>
+ * Instances are immutable and may be shared between threads. Use
+ * {@link #get(byte[])} to reuse the key schedule of a key that was seen
+ * before.
+ * <p/>
+ * The key schedule is computed by {@link Twofish_Algorithm#makeKey(byte[])},
+ * this class only replaces the per-block code paths.
+ */
+public final class Twofish_Engine {
+    static final int BLOCK_SIZE = Twofish_Algorithm.BLOCK_SIZE;
+    private static final int ROUNDS = 16;
+
+    /* Subkey array indices, see Twofish_Algorithm */
+    private static final int INPUT_WHITEN = 0;
+    private static final int OUTPUT_WHITEN = INPUT_WHITEN + BLOCK_SIZE / 4;
+    private static final int ROUND_SUBKEYS = OUTPUT_WHITEN + BLOCK_SIZE / 4;
+
+    /**
+     * Number of key schedules kept by {@link #get(byte[])}.
+     */
+    private static final int CACHE_SIZE = 8;
+
+    private static final Map<KeyBytes, Twofish_Engine> sCache =
+            new LinkedHashMap<KeyBytes, Twofish_Engine>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<KeyBytes, Twofish_Engine> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private static final VarHandle LE_INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final int[] sBox = new int[4 * 256];
+    private final int[] sKey;
+
+    /**
+     * Expand a user-supplied key material into a new engine.
+     *
+     * @param key The 64/128/192/256-bit user-key to use.
+     * @throws InvalidKeyException If the key is invalid.
+     */
+    public Twofish_Engine(byte[] key) throws InvalidKeyException {
+        Object[] sk = (Object[]) Twofish_Algorithm.makeKey(key);
+        int[] sBox = (int[]) sk[0];
+
+        for (int i = 0; i < 256; i++) {
+            this.sBox[i] = sBox[2 * i];
+            this.sBox[0x100 | i] = sBox[2 * i + 1];
+            this.sBox[0x200 | i] = sBox[0x200 + 2 * i];
+            this.sBox[0x300 | i] = sBox[0x200 + 2 * i + 1];
+        }
+        sKey = (int[]) sk[1];
+    }
+
+    /**
+     * Returns an engine for the given key, reusing the key schedule of a
+     * recently used engine with the same key.
+     *
+     * @param key The 64/128/192/256-bit user-key to use.
+     * @return An engine for the key.
+     * @throws InvalidKeyException If the key is invalid.
+     */
+    public static Twofish_Engine get(byte[] key) throws InvalidKeyException {
+        if (key == null)
+            throw new InvalidKeyException("Empty key");
+
+        KeyBytes cacheKey = new KeyBytes(key);
+        synchronized (sCache) {
+            Twofish_Engine engine = sCache.get(cacheKey);
+            if (engine != null)
+                return engine;
+        }
+
+        Twofish_Engine engine = new Twofish_Engine(key);
+        synchronized (sCache) {
+            sCache.put(cacheKey, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * @return The length in bytes of the Algorithm input block.
+     */
+    public static int blockSize() {
+        return BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypt exactly one block of plaintext. The whole block is read before
+     * any output is written, so src and dst may be the same region.
+     *
+     * @param src    The plaintext.
+     * @param srcOff Index of src from which to start considering data.
+     * @param dst    The buffer receiving the ciphertext.
+     * @param dstOff Index of dst where the ciphertext is stored.
+     */
+    public void encrypt(byte[] src, int srcOff, byte[] dst, int dstOff) {
+        final int[] s = this.sBox;
+        final int[] sKey = this.sKey;
+
+        int x0 = getInt(src, srcOff) ^ sKey[INPUT_WHITEN];
+        int x1 = getInt(src, srcOff + 4) ^ sKey[INPUT_WHITEN + 1];
+        int x2 = getInt(src, srcOff + 8) ^ sKey[INPUT_WHITEN + 2];
+        int x3 = getInt(src, srcOff + 12) ^ sKey[INPUT_WHITEN + 3];
+
+        int t0, t1;
+        int k = ROUND_SUBKEYS;
+        for (int R = 0; R < ROUNDS; R += 2) {
+            t0 = s[x0 & 0xFF] ^ s[0x100 | (x0 >>> 8) & 0xFF] ^ s[0x200 | (x0 >>> 16) & 0xFF] ^ s[0x300 | x0 >>> 24];
+            t1 = s[x1 >>> 24] ^ s[0x100 | x1 & 0xFF] ^ s[0x200 | (x1 >>> 8) & 0xFF] ^ s[0x300 | (x1 >>> 16) & 0xFF];
+            x2 ^= t0 + t1 + sKey[k++];
+            x2 = x2 >>> 1 | x2 << 31;
+            x3 = x3 << 1 | x3 >>> 31;
+            x3 ^= t0 + 2 * t1 + sKey[k++];
+
+            t0 = s[x2 & 0xFF] ^ s[0x100 | (x2 >>> 8) & 0xFF] ^ s[0x200 | (x2 >>> 16) & 0xFF] ^ s[0x300 | x2 >>> 24];
+            t1 = s[x3 >>> 24] ^ s[0x100 | x3 & 0xFF] ^ s[0x200 | (x3 >>> 8) & 0xFF] ^ s[0x300 | (x3 >>> 16) & 0xFF];
+            x0 ^= t0 + t1 + sKey[k++];
+            x0 = x0 >>> 1 | x0 << 31;
+            x1 = x1 << 1 | x1 >>> 31;
+            x1 ^= t0 + 2 * t1 + sKey[k++];
+        }
+
+        putInt(dst, dstOff, x2 ^ sKey[OUTPUT_WHITEN]);
+        putInt(dst, dstOff + 4, x3 ^ sKey[OUTPUT_WHITEN + 1]);
+        putInt(dst, dstOff + 8, x0 ^ sKey[OUTPUT_WHITEN + 2]);
+        putInt(dst, dstOff + 12, x1 ^ sKey[OUTPUT_WHITEN + 3]);
+    }
+
+    /**
+     * Decrypt exactly one block of ciphertext. The whole block is read before
+     * any output is written, so src and dst may be the same region.
+     *
+     * @param src    The ciphertext.
+     * @param srcOff Index of src from which to start considering data.
+     * @param dst    The buffer receiving the plaintext.
+     * @param dstOff Index of dst where the plaintext is stored.
+     */
+    public void decrypt(byte[] src, int srcOff, byte[] dst, int dstOff) {
+        final int[] s = this.sBox;
+        final int[] sKey = this.sKey;
+
+        int x2 = getInt(src, srcOff) ^ sKey[OUTPUT_WHITEN];
+        int x3 = getInt(src, srcOff + 4) ^ sKey[OUTPUT_WHITEN + 1];
+        int x0 = getInt(src, srcOff + 8) ^ sKey[OUTPUT_WHITEN + 2];
+        int x1 = getInt(src, srcOff + 12) ^ sKey[OUTPUT_WHITEN + 3];
+
+        int t0, t1;
+        int k = ROUND_SUBKEYS + 2 * ROUNDS - 1;
+        for (int R = 0; R < ROUNDS; R += 2) {
+            t0 = s[x2 & 0xFF] ^ s[0x100 | (x2 >>> 8) & 0xFF] ^ s[0x200 | (x2 >>> 16) & 0xFF] ^ s[0x300 | x2 >>> 24];
+            t1 = s[x3 >>> 24] ^ s[0x100 | x3 & 0xFF] ^ s[0x200 | (x3 >>> 8) & 0xFF] ^ s[0x300 | (x3 >>> 16) & 0xFF];
+            x1 ^= t0 + 2 * t1 + sKey[k--];
+            x1 = x1 >>> 1 | x1 << 31;
+            x0 = x0 << 1 | x0 >>> 31;
+            x0 ^= t0 + t1 + sKey[k--];
+
+            t0 = s[x0 & 0xFF] ^ s[0x100 | (x0 >>> 8) & 0xFF] ^ s[0x200 | (x0 >>> 16) & 0xFF] ^ s[0x300 | x0 >>> 24];
+            t1 = s[x1 >>> 24] ^ s[0x100 | x1 & 0xFF] ^ s[0x200 | (x1 >>> 8) & 0xFF] ^ s[0x300 | (x1 >>> 16) & 0xFF];
+            x3 ^= t0 + 2 * t1 + sKey[k--];
+            x3 = x3 >>> 1 | x3 << 31;
+            x2 = x2 << 1 | x2 >>> 31;
+            x2 ^= t0 + t1 + sKey[k--];
+        }
+
+        putInt(dst, dstOff, x0 ^ sKey[INPUT_WHITEN]);
+        putInt(dst, dstOff + 4, x1 ^ sKey[INPUT_WHITEN + 1]);
+        putInt(dst, dstOff + 8, x2 ^ sKey[INPUT_WHITEN + 2]);
+        putInt(dst, dstOff + 12, x3 ^ sKey[INPUT_WHITEN + 3]);
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (int) LE_INT.get(b, off);
+    }
+
+    private static void putInt(byte[] b, int off, int x) {
+        LE_INT.set(b, off, x);
+    }
+
+    /**
+     * Checks the engine against {@link Twofish_Algorithm} on random 128, 192
+     * and 256-bit keys, in place and out of place, and against the Twofish
+     * known answer for the all-zero 128-bit key and block.
+     *
+     * @return True if every block matched.
+     */
+    public static boolean self_test() {
+        try {
+            final byte[] zero = new byte[16];
+            final byte[] kat = new byte[BLOCK_SIZE];
+            new Twofish_Engine(zero).encrypt(new byte[BLOCK_SIZE], 0, kat, 0);
+            if (!Arrays.equals(kat, ZERO_KEY_CIPHERTEXT))
+                return false;
+
+            final Random random = new Random(0);
+            for (int keysize = 16; keysize <= 32; keysize += 8) {
+                for (int n = 0; n < 64; n++) {
+                    final byte[] kb = new byte[keysize];
+                    final byte[] pt = new byte[BLOCK_SIZE];
+                    random.nextBytes(kb);
+                    random.nextBytes(pt);
+
+                    final Object key = Twofish_Algorithm.makeKey(kb);
+                    final byte[] expected = Twofish_Algorithm.blockEncrypt(pt, 0, key);
+                    final Twofish_Engine engine = new Twofish_Engine(kb);
+
+                    final byte[] ct = new byte[BLOCK_SIZE];
+                    engine.encrypt(pt, 0, ct, 0);
+                    if (!Arrays.equals(ct, expected))
+                        return false;
+
+                    final byte[] buf = pt.clone();
+                    engine.encrypt(buf, 0, buf, 0);
+                    if (!Arrays.equals(buf, expected))
+                        return false;
+                    engine.decrypt(buf, 0, buf, 0);
+                    if (!Arrays.equals(buf, pt))
+                        return false;
+                    if (!Arrays.equals(Twofish_Algorithm.blockDecrypt(ct, 0, key), pt))
+                        return false;
+                }
+            }
+            return true;
+        } catch (InvalidKeyException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Twofish known answer for the all-zero 128-bit key and plaintext.
+     */
+    private static final byte[] ZERO_KEY_CIPHERTEXT = {
+            (byte) 0x9F, (byte) 0x58, (byte) 0x9F, (byte) 0x5C,
+            (byte) 0xF6, (byte) 0x12, (byte) 0x2C, (byte) 0x32,
+            (byte) 0xB6, (byte) 0xBF, (byte) 0xEC, (byte) 0x2F,
+            (byte) 0x2A, (byte) 0xE8, (byte) 0xC3, (byte) 0x5A,
+    };
+
+    public static void main(String[] args) {
+        System.out.println("Self-test OK? " + self_test());
+    }
+
+    /**
+     * Cache key comparing raw key material by value.
+     */
+    private static final class KeyBytes {
+        private final byte[] bytes;
+        private final int hash;
+
+        KeyBytes(byte[] bytes) {
+            this.bytes = bytes.clone();
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof KeyBytes && Arrays.equals(bytes, ((KeyBytes) obj).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}